@@ -9,6 +9,7 @@
 #include <sys/mman.h>
 #include <expat.h>
 #include <math.h>
+#include <float.h>
 #include "mapgenerator.h"
 #include <proj_api.h>
 #include <triangle.h>
@@ -22,12 +23,18 @@ typedef struct _Way Way;
 typedef struct _TempRoutingWay TempRoutingWay;
 typedef struct _MapWay MapWay;
 typedef struct _MapPolygon MapPolygon;
+typedef struct _ArchiveEntry ArchiveEntry;
+typedef struct _VertexData VertexData;
+typedef struct _PolygonLayer PolygonLayer;
+typedef struct _Quantization Quantization;
+typedef struct _TileGrid TileGrid;
 
 struct _Tile {
     List *polygons;
     List *ways;
     int x;
     int y;
+    int level;
 };
 
 struct _Vec {
@@ -68,11 +75,89 @@ struct _MapPolygon {
     RoutingTagSet *tagset;
 };
 
+/* Index entry of the tile archive, offsets are from the start of the file */
+struct _ArchiveEntry {
+    int level;
+    int x;
+    int y;
+    int line_offset;
+    int line_length;
+    int poly_offset;
+    int poly_length;
+    int vertex_offset;
+    int vertex_length;
+};
+
+/* A polygon layer of the pre-tessellated format: all polygons of one color,
+ * drawn as triangles */
+struct _PolygonLayer {
+    unsigned char rgba[4];
+    int start_vertex;
+    int nrof_vertices;
+    int nrof_polygons;
+    int *polygon_index;
+};
+
+/* Positions are written as shorts of (position - origin) / scale */
+struct _Quantization {
+    float origin_x;
+    float origin_y;
+    float scale;
+};
+
+/* Tile geometry in the layout the app uploads to vertex buffer objects.
+ * Coordinates are kept as floats until they are quantised on writing. */
+struct _VertexData {
+    int nrof_line_vertices;
+    float *line_coords;          // x, y, z, s, t
+    unsigned char *line_colors;  // fill rgba, outline rgba
+    int nrof_line_indices;
+    int *line_indices;           // GL_TRIANGLES
+    Quantization line_quantization;
+    int nrof_polygon_vertices;
+    float *polygon_coords;       // x, y
+    Quantization polygon_quantization;
+    int nrof_layers;
+    PolygonLayer *layers;
+};
+
+/* The tiles of one pyramid level covering the bounding box of the map */
+struct _TileGrid {
+    int level;
+    int start_x;
+    int start_y;
+    int nrof_tiles_x;
+    int nrof_tiles_y;
+    Tile **tiles;
+};
+
 struct _TempRoutingWay {
     int node_id;
     RoutingWay *way;
 };
 
+#define ARCHIVE_MAGIC 0x414d4c47 /* "GLMA" */
+#define ARCHIVE_VERSION 3
+#define ARCHIVE_FILE "tiles.map"
+
+#define COMPRESSED_MAGIC 0x434d4c47 /* "GLMC" */
+#define COMPRESSED_VERSION 1
+
+#define VERTEX_MAGIC 0x564d4c47 /* "GLMV" */
+#define VERTEX_FORMAT_VERSION 5
+
+/* tiles with more line vertices need int indices */
+#define MAX_SHORT_INDEX_VERTICES 65536
+
+/* finest quantisation step of vertex positions, in metres */
+#define MIN_POSITION_SCALE (1 / 64.0f)
+
+/* Levels of the tile pyramid. Tiles of level p are tile_size << p metres
+ * wide and hold the features of the level 0 tiles below them, merged and
+ * simplified with a tolerance of 1 << p metres. Lines narrower and
+ * polygons smaller than that get dropped. */
+#define PYRAMID_LEVELS 5
+
 char *tag_keys[] = TAG_KEYS;
 char *tag_values[] = TAG_VALUES;
 
@@ -225,6 +310,11 @@ projPJ pj_merc, pj_latlong;
 double center_x = 1991418.0;
 double center_y = 8267328.0;
 double scale = 1.0;
+double tile_size = 500.0;
+
+// Point compression, see write_points()
+int compress_points = 0;
+double point_quantum = 0.5;
  
 int
 node_sort_cb(const void *n1, const void *n2)
@@ -636,6 +726,1213 @@ wayparser_end(void *data, const char *el) {
 }
 
 
+// Width of a tile in metres
+static double
+tile_extent(Tile *tile) {
+    return tile_size * (1 << tile->level);
+}
+
+// Point quantum of a tile, coarser levels are simplified with a larger
+// tolerance and can use a larger quantum as well
+static double
+tile_quantum(Tile *tile) {
+    return point_quantum * (1 << tile->level);
+}
+
+static void
+write_varint(FILE *fp, int value) {
+    // zig-zag encode so that small negative values stay short
+    unsigned int v = ((unsigned int)value << 1) ^ (value >> 31);
+
+    while (v >= 0x80) {
+        fputc((v & 0x7f) | 0x80, fp);
+        v >>= 7;
+    }
+    fputc(v, fp);
+}
+
+// Write the section header. Compressed sections start with magic, version,
+// the counts, the tile origin and the quantum; uncompressed ones with just
+// the counts.
+static void
+write_section_header(FILE *fp, Tile *tile, int nrof_items, int nrof_points) {
+    if (compress_points) {
+        int magic = COMPRESSED_MAGIC;
+        int version = COMPRESSED_VERSION;
+        int origin_x = tile->x * tile_extent(tile);
+        int origin_y = tile->y * tile_extent(tile);
+        float quantum = tile_quantum(tile);
+
+        fwrite(&magic, sizeof(int), 1, fp);
+        fwrite(&version, sizeof(int), 1, fp);
+        fwrite(&nrof_items, sizeof(int), 1, fp);
+        fwrite(&nrof_points, sizeof(int), 1, fp);
+        fwrite(&origin_x, sizeof(int), 1, fp);
+        fwrite(&origin_y, sizeof(int), 1, fp);
+        fwrite(&quantum, sizeof(float), 1, fp);
+    } else {
+        fwrite(&nrof_items, sizeof(int), 1, fp);
+        fwrite(&nrof_points, sizeof(int), 1, fp);
+    }
+}
+
+// Write points, either as raw floats or, when compressing, as multiples of
+// the tile quantum relative to the tile origin, each coordinate stored as the
+// varint difference to the previous point. q holds the previous point.
+static void
+write_points(FILE *fp, Tile *tile, float *vertices, int n, int *q) {
+    int i;
+    double extent = tile_extent(tile);
+    double quantum = tile_quantum(tile);
+
+    if (!compress_points) {
+        fwrite(vertices, sizeof(float), 2*n, fp);
+        return;
+    }
+
+    for (i = 0; i < n; i++) {
+        int x = lround((vertices[2*i] - tile->x * extent) / quantum);
+        int y = lround((vertices[2*i + 1] - tile->y * extent) / quantum);
+
+        write_varint(fp, x - q[0]);
+        write_varint(fp, y - q[1]);
+        q[0] = x;
+        q[1] = y;
+    }
+}
+
+// Keep the following sections 4 byte aligned
+static void
+write_padding(FILE *fp) {
+    while (ftell(fp) % 4)
+        fputc(0, fp);
+}
+
+// Write the line section of a tile: a header, one record per line and
+// then the points of all lines
+void
+write_lines(FILE *fp, Tile *tile) {
+    List *l;
+    int nrof_lines = 0;
+    int nrof_nodes = 0;
+    int q[2] = { 0, 0 };
+
+    for (l = tile->ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        nrof_nodes += mapway->length;
+        nrof_lines++;
+    }
+
+    write_section_header(fp, tile, nrof_lines, nrof_nodes);
+    for (l = tile->ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        fwrite(&(mapway->length), sizeof(int), 1, fp);
+        fwrite(&(mapway->width), sizeof(float), 1, fp);
+        fwrite(&(mapway->height), sizeof(float), 1, fp);
+        fwrite(&(mapway->outline_color), sizeof(unsigned char), 4, fp);
+        fwrite(&(mapway->fill_color), sizeof(unsigned char), 4, fp);
+        fwrite(&(mapway->bridge), sizeof(int), 1, fp);
+        fwrite(&(mapway->tunnel), sizeof(int), 1, fp);
+    }
+    for (l = tile->ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        write_points(fp, tile, mapway->vertices, mapway->length, q);
+    }
+    write_padding(fp);
+}
+
+// Write the polygon section of a tile: a header, one record per polygon
+// and then the points of all polygons
+void
+write_polygons(FILE *fp, Tile *tile) {
+    List *l;
+    int nrof_polygons = 0;
+    int nrof_vertices = 0;
+    int q[2] = { 0, 0 };
+
+    for (l = tile->polygons; l; l = l->next) {
+        MapPolygon *polygon = l->data;
+        nrof_vertices += polygon->size;
+        nrof_polygons++;
+    }
+
+    write_section_header(fp, tile, nrof_polygons, nrof_vertices);
+    for (l = tile->polygons; l; l = l->next) {
+        MapPolygon *polygon = l->data;
+        fwrite(&(polygon->size), sizeof(int), 1, fp);
+        fwrite(&(polygon->rgba), sizeof(unsigned char), 4, fp);
+    }
+    for (l = tile->polygons; l; l = l->next) {
+        MapPolygon *polygon = l->data;
+        write_points(fp, tile, polygon->vertices, polygon->size, q);
+    }
+    write_padding(fp);
+}
+
+// Update a bounding box with n points
+static void
+add_to_bbox(float *bbox, float *vertices, int n) {
+    int i;
+
+    for (i = 0; i < n; i++) {
+        bbox[0] = fminf(bbox[0], vertices[2*i]);
+        bbox[1] = fminf(bbox[1], vertices[2*i + 1]);
+        bbox[2] = fmaxf(bbox[2], vertices[2*i]);
+        bbox[3] = fmaxf(bbox[3], vertices[2*i + 1]);
+    }
+}
+
+// Choose origin and scale from the bounding box of the points, widened by
+// margin on each side. This has to give exactly the same result as
+// GLMapLoader.setQuantization
+static void
+set_quantization(Quantization *q, float *bbox, int nrof_points, float margin) {
+    float range;
+
+    q->origin_x = 0;
+    q->origin_y = 0;
+    q->scale = MIN_POSITION_SCALE;
+
+    if (nrof_points == 0)
+        return;
+
+    q->origin_x = floorf((bbox[0] + bbox[2]) / 2 + 0.5f);
+    q->origin_y = floorf((bbox[1] + bbox[3]) / 2 + 0.5f);
+
+    range = fmaxf(fmaxf(bbox[2] - q->origin_x, q->origin_x - bbox[0]),
+                  fmaxf(bbox[3] - q->origin_y, q->origin_y - bbox[1])) + margin;
+
+    while (range > q->scale * 32767)
+        q->scale *= 2;
+}
+
+static short
+quantize(float position, float origin, float scale) {
+    float q = floorf((position - origin) * (1 / scale) + 0.5f);
+
+    return (short) fmaxf(-32768, fminf(32767, q));
+}
+
+static void
+add_vertex(VertexData *vd, float x, float y, float z, float s, float t,
+        unsigned char *color) {
+    float *c = vd->line_coords + 5 * vd->nrof_line_vertices;
+
+    c[0] = x;
+    c[1] = y;
+    c[2] = z;
+    c[3] = s;
+    c[4] = t;
+    memcpy(vd->line_colors + 8 * vd->nrof_line_vertices, color, 8);
+    vd->nrof_line_vertices++;
+}
+
+// Add the triangles between consecutive (left, right) vertex pairs of a
+// line, wound the same way as the triangle strip through them
+static void
+add_line_indices(VertexData *vd, int first, int nrof_pairs) {
+    int k;
+    int *i = vd->line_indices + vd->nrof_line_indices;
+
+    for (k = 0; k < nrof_pairs - 1; k++) {
+        int left = first + 2 * k;
+        int right = left + 1;
+
+        *i++ = right;
+        *i++ = left;
+        *i++ = left + 2;
+
+        *i++ = right;
+        *i++ = left + 2;
+        *i++ = right + 2;
+    }
+    vd->nrof_line_indices = i - vd->line_indices;
+}
+
+// Extrude the lines of a tile into triangles, this has to give exactly the
+// same vertices and indices as GLMapLoader.unpackLinesToPolygons
+void
+tessellate_lines(VertexData *vd, List *ways) {
+    List *l;
+    int j, k, n, first;
+    float a, x, y, next_x, next_y, prev_x, prev_y, ux, uy, vx, vy, wx, wy;
+    float uxw, uyw, sxw, syw, vxw, vyw;
+    float shrink = 0.2f;
+    unsigned char color[8];
+    int nrof_vertices = 0;
+    int nrof_points = 0;
+    float max_width = 0;
+    float bbox[4] = { FLT_MAX, FLT_MAX, -FLT_MAX, -FLT_MAX };
+
+    for (l = ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        nrof_vertices += 2 * mapway->length + 4;
+        nrof_points += mapway->length;
+        max_width = fmaxf(max_width, mapway->width);
+        add_to_bbox(bbox, mapway->vertices, mapway->length);
+    }
+
+    // Leave room for the line width, miter joins can reach further out
+    set_quantization(&vd->line_quantization, bbox, nrof_points, 4 * max_width);
+
+    vd->nrof_line_vertices = 0;
+    vd->line_coords = malloc(5 * nrof_vertices * sizeof(float));
+    vd->line_colors = malloc(8 * nrof_vertices);
+    vd->nrof_line_indices = 0;
+    vd->line_indices = malloc(3 * nrof_vertices * sizeof(int));
+
+    for (l = ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        float width = mapway->width;
+        float z = mapway->height;
+        float *p = mapway->vertices;
+        int plain = !mapway->bridge && !mapway->tunnel;
+
+        for (k = 0; k < 4; k++) {
+            color[k] = mapway->fill_color[k];
+            color[k + 4] = mapway->outline_color[k];
+        }
+        if (mapway->bridge) {
+            // Add an outline to all bridges
+            color[4] = 144;
+            color[5] = 144;
+            color[6] = 144;
+            color[7] = 255;
+        }
+
+        n = 0;
+        x = p[n];
+        y = p[n + 1];
+        n += 2;
+        next_x = p[n];
+        next_y = p[n + 1];
+        n += 2;
+
+        // Calculate triangle corners for the given width
+        vx = next_x - x;
+        vy = next_y - y;
+        a = sqrtf(vx * vx + vy * vy);
+        vx = vx / a;
+        vy = vy / a;
+
+        ux = -vy;
+        uy = vx;
+
+        uxw = ux * width;
+        uyw = uy * width;
+        sxw = vx * width * shrink;
+        syw = vy * width * shrink;
+        vxw = vx * width * (1 - shrink);
+        vyw = vy * width * (1 - shrink);
+
+        first = vd->nrof_line_vertices;
+
+        if (plain) {
+            // For rounded line edges
+            add_vertex(vd, x + uxw - vxw, y + uyw - vyw, z, -1.0f, 1.0f, color);
+            add_vertex(vd, x - uxw - vxw, y - uyw - vyw, z, 1.0f, 1.0f, color);
+
+            // Start of line
+            add_vertex(vd, x + uxw + sxw, y + uyw + syw, z, -1.0f, 0.0f, color);
+            add_vertex(vd, x - uxw + sxw, y - uyw + syw, z, 1.0f, 0.0f, color);
+        } else {
+            add_vertex(vd, x + uxw, y + uyw, z, -1.0f, 0.0f, color);
+            add_vertex(vd, x - uxw, y - uyw, z, 1.0f, 0.0f, color);
+        }
+
+        prev_x = x;
+        prev_y = y;
+        x = next_x;
+        y = next_y;
+
+        for (j = 1; j < mapway->length - 1; j++) {
+            next_x = p[n];
+            next_y = p[n + 1];
+            n += 2;
+
+            // Unit vector pointing back to previous node
+            vx = prev_x - x;
+            vy = prev_y - y;
+            a = sqrtf(vx * vx + vy * vy);
+            vx = vx / a;
+            vy = vy / a;
+
+            // Unit vector pointing forward to next node
+            wx = next_x - x;
+            wy = next_y - y;
+            a = sqrtf(wx * wx + wy * wy);
+            wx = wx / a;
+            wy = wy / a;
+
+            // Sum of these two vectors points
+            ux = vx + wx;
+            uy = vy + wy;
+            a = -wy * ux + wx * uy;
+
+            if (a < 0.01 && a > -0.01) {
+                // Almost straight, use normal vector
+                ux = -wy;
+                uy = wx;
+            } else {
+                // Normalize u, and project normal vector onto this
+                ux = ux / a;
+                uy = uy / a;
+            }
+
+            uxw = ux * width;
+            uyw = uy * width;
+
+            add_vertex(vd, x + uxw, y + uyw, z, -1.0f, 0.0f, color);
+            add_vertex(vd, x - uxw, y - uyw, z, 1.0f, 0.0f, color);
+
+            prev_x = x;
+            prev_y = y;
+            x = next_x;
+            y = next_y;
+        }
+
+        vx = prev_x - x;
+        vy = prev_y - y;
+
+        a = sqrtf(vx * vx + vy * vy);
+        vx = vx / a;
+        vy = vy / a;
+
+        ux = vy;
+        uy = -vx;
+
+        uxw = ux * width;
+        uyw = uy * width;
+
+        if (plain) {
+            sxw = vx * width * shrink;
+            syw = vy * width * shrink;
+            vxw = vx * width * (1 - shrink);
+            vyw = vy * width * (1 - shrink);
+
+            add_vertex(vd, x + uxw + sxw, y + uyw + syw, z, -1.0f, 0.0f, color);
+            add_vertex(vd, x - uxw + sxw, y - uyw + syw, z, 1.0f, 0.0f, color);
+
+            // For rounded line edges
+            add_vertex(vd, x + uxw - vxw, y + uyw - vyw, z, -1.0f, -1.0f, color);
+            add_vertex(vd, x - uxw - vxw, y - uyw - vyw, z, 1.0f, -1.0f, color);
+        } else {
+            add_vertex(vd, x + uxw, y + uyw, z, -1.0f, 0.0f, color);
+            add_vertex(vd, x - uxw, y - uyw, z, 1.0f, 0.0f, color);
+        }
+
+        add_line_indices(vd, first, (vd->nrof_line_vertices - first) / 2);
+    }
+}
+
+// Links between the remaining points of the ring being triangulated
+static float *ring_x;
+static float *ring_y;
+static int *ring_next;
+static int *ring_prev;
+static int ring_capacity;
+
+// Number of vertices a polygon with size points takes as triangles
+static int
+polygon_vertices(int size) {
+    return size < 3 ? 0 : 3 * (size - 2);
+}
+
+static float
+cross(float ax, float ay, float bx, float by, float cx, float cy) {
+    return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+}
+
+// True if no other remaining point of the ring lies inside or on the
+// convex corner prev, i, next
+static int
+is_ear(int prev, int i, int next, float sign) {
+    float *x = ring_x;
+    float *y = ring_y;
+    int r;
+
+    if (sign * cross(x[prev], y[prev], x[i], y[i], x[next], y[next]) <= 0)
+        return 0;
+
+    for (r = ring_next[next]; r != prev; r = ring_next[r]) {
+        if (sign * cross(x[prev], y[prev], x[i], y[i], x[r], y[r]) >= 0
+                && sign * cross(x[i], y[i], x[next], y[next], x[r], y[r]) >= 0
+                && sign * cross(x[next], y[next], x[prev], y[prev], x[r], y[r]) >= 0)
+            return 0;
+    }
+    return 1;
+}
+
+static float *
+add_ring_vertex(float *c, int i) {
+    *c++ = ring_x[i];
+    *c++ = ring_y[i];
+    return c;
+}
+
+// Write a polygon ring of size points to c as triangles by ear clipping,
+// like GLMapLoader.triangulate. Exactly polygon_vertices(size) vertices
+// are written, rings with repeated points are padded with degenerate
+// triangles.
+static void
+triangulate_ring(float *c, float *vertices, int size) {
+    float *end = c + 2 * polygon_vertices(size);
+    double area = 0;
+    float sign;
+    int i, j, m;
+    int remaining, tries;
+
+    if (ring_capacity < size) {
+        ring_capacity = size;
+        ring_x = realloc(ring_x, size * sizeof(float));
+        ring_y = realloc(ring_y, size * sizeof(float));
+        ring_next = realloc(ring_next, size * sizeof(int));
+        ring_prev = realloc(ring_prev, size * sizeof(int));
+    }
+
+    // Drop repeated points, they would block every ear around them
+    m = 0;
+    for (i = 0; i < size; i++) {
+        float x = vertices[2*i];
+        float y = vertices[2*i + 1];
+
+        if (m > 0 && x == ring_x[m-1] && y == ring_y[m-1])
+            continue;
+        ring_x[m] = x;
+        ring_y[m] = y;
+        m++;
+    }
+    while (m > 1 && ring_x[m-1] == ring_x[0] && ring_y[m-1] == ring_y[0])
+        m--;
+
+    // Orientation of the ring, relative to its first point to keep the
+    // precision of the float coordinates
+    for (i = 0, j = m - 1; i < m; j = i++)
+        area += (double)(ring_x[j] - ring_x[0]) * (ring_y[i] - ring_y[0])
+            - (double)(ring_x[i] - ring_x[0]) * (ring_y[j] - ring_y[0]);
+    sign = area < 0 ? -1 : 1;
+
+    for (i = 0; i < m; i++) {
+        ring_next[i] = i + 1 < m ? i + 1 : 0;
+        ring_prev[i] = i > 0 ? i - 1 : m - 1;
+    }
+
+    remaining = m;
+    tries = 0;
+
+    for (i = 0; remaining >= 3;) {
+        int prev = ring_prev[i];
+        int next = ring_next[i];
+
+        // Self-intersecting rings can run out of ears, then the corner is
+        // clipped anyway
+        if (remaining > 3 && tries < remaining && !is_ear(prev, i, next, sign)) {
+            i = next;
+            tries++;
+            continue;
+        }
+
+        c = add_ring_vertex(c, prev);
+        c = add_ring_vertex(c, i);
+        c = add_ring_vertex(c, next);
+
+        ring_next[prev] = next;
+        ring_prev[next] = prev;
+        remaining--;
+        tries = 0;
+        i = prev;
+    }
+
+    while (c < end)
+        c = add_ring_vertex(c, 0);
+}
+
+// Group the polygons of a tile by color into layers of triangles, as
+// GLMapLoader.unpackPolygons does
+void
+tessellate_polygons(VertexData *vd, List *polygons) {
+    List *l;
+    int i, k;
+    int nrof_polygons;
+    int nrof_vertices = 0;
+    int *cursor;
+    int *polygon;
+    int *polygon_layer;
+    unsigned int *color_keys;
+    int *color_layers;
+    int mask;
+    int nrof_points = 0;
+    float bbox[4] = { FLT_MAX, FLT_MAX, -FLT_MAX, -FLT_MAX };
+
+    vd->nrof_layers = 0;
+    vd->layers = NULL;
+    vd->nrof_polygon_vertices = 0;
+    vd->polygon_coords = NULL;
+
+    for (l = polygons; l; l = l->next) {
+        MapPolygon *p = l->data;
+        nrof_points += p->size;
+        add_to_bbox(bbox, p->vertices, p->size);
+    }
+    set_quantization(&vd->polygon_quantization, bbox, nrof_points, 0);
+
+    if (!polygons)
+        return;
+
+    // Layers are looked up in an open addressing table keyed on the packed
+    // RGBA value, kept at most half full
+    nrof_polygons = list_count(polygons);
+    for (mask = 1; mask < 2 * nrof_polygons; mask <<= 1)
+        ;
+    color_keys = malloc(mask * sizeof(unsigned int));
+    color_layers = malloc(mask * sizeof(int));
+    for (i = 0; i < mask; i++)
+        color_layers[i] = -1;
+    mask--;
+    polygon_layer = malloc(nrof_polygons * sizeof(int));
+
+    // Set up the layers in order of first occurrence
+    for (l = polygons, k = 0; l; l = l->next, k++) {
+        MapPolygon *p = l->data;
+        PolygonLayer *layer;
+        unsigned int color;
+
+        memcpy(&color, p->rgba, 4);
+        i = ((color * 0x9E3779B9u) >> 16) & mask;
+        while (color_layers[i] >= 0 && color_keys[i] != color)
+            i = (i + 1) & mask;
+
+        if (color_layers[i] < 0) {
+            color_keys[i] = color;
+            color_layers[i] = vd->nrof_layers++;
+            vd->layers = realloc(vd->layers, vd->nrof_layers * sizeof(PolygonLayer));
+            layer = &vd->layers[vd->nrof_layers - 1];
+            memcpy(layer->rgba, p->rgba, 4);
+            layer->nrof_vertices = 0;
+            layer->nrof_polygons = 0;
+        }
+        polygon_layer[k] = color_layers[i];
+
+        layer = &vd->layers[polygon_layer[k]];
+        layer->nrof_vertices += polygon_vertices(p->size);
+        layer->nrof_polygons++;
+        nrof_vertices += polygon_vertices(p->size);
+    }
+
+    cursor = malloc(vd->nrof_layers * sizeof(int));
+    polygon = malloc(vd->nrof_layers * sizeof(int));
+    for (i = 0; i < vd->nrof_layers; i++) {
+        PolygonLayer *layer = &vd->layers[i];
+        layer->start_vertex = i ? vd->layers[i-1].start_vertex + vd->layers[i-1].nrof_vertices : 0;
+        layer->polygon_index = malloc(2 * layer->nrof_polygons * sizeof(int));
+        cursor[i] = layer->start_vertex;
+        polygon[i] = 0;
+    }
+
+    vd->nrof_polygon_vertices = nrof_vertices;
+    vd->polygon_coords = malloc(2 * nrof_vertices * sizeof(float));
+
+    for (l = polygons, k = 0; l; l = l->next, k++) {
+        MapPolygon *p = l->data;
+        int n = polygon_vertices(p->size);
+
+        i = polygon_layer[k];
+        triangulate_ring(vd->polygon_coords + 2 * cursor[i], p->vertices, p->size);
+
+        vd->layers[i].polygon_index[polygon[i]++] = cursor[i];
+        vd->layers[i].polygon_index[polygon[i]++] = n;
+        cursor[i] += n;
+    }
+
+    free(color_keys);
+    free(color_layers);
+    free(polygon_layer);
+    free(cursor);
+    free(polygon);
+}
+
+void
+free_vertex_data(VertexData *vd) {
+    int i;
+
+    for (i = 0; i < vd->nrof_layers; i++)
+        free(vd->layers[i].polygon_index);
+    free(vd->layers);
+    free(vd->line_coords);
+    free(vd->line_colors);
+    free(vd->line_indices);
+    free(vd->polygon_coords);
+}
+
+// Write line vertices as x, y shorts and z * 10, s, t bytes plus one byte
+// padding
+static void
+write_line_vertices(FILE *fp, VertexData *vd) {
+    Quantization *q = &vd->line_quantization;
+    int i;
+
+    for (i = 0; i < vd->nrof_line_vertices; i++) {
+        float *c = vd->line_coords + 5 * i;
+        short xy[2];
+        signed char zst[4];
+
+        xy[0] = quantize(c[0], q->origin_x, q->scale);
+        xy[1] = quantize(c[1], q->origin_y, q->scale);
+        zst[0] = floorf(c[2] * 10 + 0.5f);
+        zst[1] = c[3];
+        zst[2] = c[4];
+        zst[3] = 0;
+
+        fwrite(xy, sizeof(short), 2, fp);
+        fwrite(zst, sizeof(signed char), 4, fp);
+    }
+}
+
+// Write line indices as unsigned shorts, or as ints for tiles with too many
+// vertices
+static void
+write_line_indices(FILE *fp, VertexData *vd) {
+    int i;
+
+    if (vd->nrof_line_vertices > MAX_SHORT_INDEX_VERTICES) {
+        fwrite(vd->line_indices, sizeof(int), vd->nrof_line_indices, fp);
+        return;
+    }
+
+    for (i = 0; i < vd->nrof_line_indices; i++) {
+        unsigned short index = vd->line_indices[i];
+        fwrite(&index, sizeof(unsigned short), 1, fp);
+    }
+}
+
+// Extend bbox by vertices first to first + n - 1 of coords, which holds
+// stride floats per vertex, at their quantised positions
+static void
+add_quantized_to_bbox(float *bbox, Quantization *q, float *coords, int stride,
+        int first, int n) {
+    int i;
+
+    for (i = first; i < first + n; i++) {
+        float *c = coords + stride * i;
+        float x = q->origin_x + quantize(c[0], q->origin_x, q->scale) * q->scale;
+        float y = q->origin_y + quantize(c[1], q->origin_y, q->scale) * q->scale;
+
+        bbox[0] = fminf(bbox[0], x);
+        bbox[1] = fminf(bbox[1], y);
+        bbox[2] = fmaxf(bbox[2], x);
+        bbox[3] = fmaxf(bbox[3], y);
+    }
+}
+
+// Write polygon vertices as x, y shorts
+static void
+write_polygon_vertices(FILE *fp, VertexData *vd) {
+    Quantization *q = &vd->polygon_quantization;
+    int i;
+
+    for (i = 0; i < vd->nrof_polygon_vertices; i++) {
+        short xy[2];
+
+        xy[0] = quantize(vd->polygon_coords[2*i], q->origin_x, q->scale);
+        xy[1] = quantize(vd->polygon_coords[2*i + 1], q->origin_y, q->scale);
+        fwrite(xy, sizeof(short), 2, fp);
+    }
+}
+
+// Write the pre-tessellated section of a tile: magic, format version,
+// vertex and index counts, origin and scale of the line and polygon
+// positions, the bounding box of the tile and the polygon layer table with
+// the bounding box of each layer, followed by the line vertex, line color,
+// line index and polygon vertex streams. The app hands these streams to
+// glBufferData as they are.
+void
+write_vertices(FILE *fp, Tile *tile) {
+    VertexData vd;
+    int i, j;
+    int magic = VERTEX_MAGIC;
+    int version = VERTEX_FORMAT_VERSION;
+    float bbox[4] = { FLT_MAX, FLT_MAX, -FLT_MAX, -FLT_MAX };
+    float (*layer_bbox)[4];
+
+    tessellate_lines(&vd, tile->ways);
+    tessellate_polygons(&vd, tile->polygons);
+
+    // Line positions include the line width
+    add_quantized_to_bbox(bbox, &vd.line_quantization, vd.line_coords, 5, 0,
+            vd.nrof_line_vertices);
+    layer_bbox = malloc(vd.nrof_layers * sizeof(*layer_bbox));
+    for (i = 0; i < vd.nrof_layers; i++) {
+        PolygonLayer *layer = &vd.layers[i];
+
+        layer_bbox[i][0] = layer_bbox[i][1] = FLT_MAX;
+        layer_bbox[i][2] = layer_bbox[i][3] = -FLT_MAX;
+        for (j = 0; j < layer->nrof_polygons; j++)
+            add_quantized_to_bbox(layer_bbox[i], &vd.polygon_quantization,
+                    vd.polygon_coords, 2, layer->polygon_index[2*j],
+                    layer->polygon_index[2*j + 1]);
+
+        bbox[0] = fminf(bbox[0], layer_bbox[i][0]);
+        bbox[1] = fminf(bbox[1], layer_bbox[i][1]);
+        bbox[2] = fmaxf(bbox[2], layer_bbox[i][2]);
+        bbox[3] = fmaxf(bbox[3], layer_bbox[i][3]);
+    }
+
+    fwrite(&magic, sizeof(int), 1, fp);
+    fwrite(&version, sizeof(int), 1, fp);
+    fwrite(&vd.nrof_line_vertices, sizeof(int), 1, fp);
+    fwrite(&vd.nrof_line_indices, sizeof(int), 1, fp);
+    fwrite(&vd.nrof_polygon_vertices, sizeof(int), 1, fp);
+    fwrite(&vd.nrof_layers, sizeof(int), 1, fp);
+    fwrite(&vd.line_quantization, sizeof(float), 3, fp);
+    fwrite(&vd.polygon_quantization, sizeof(float), 3, fp);
+    fwrite(bbox, sizeof(float), 4, fp);
+    for (i = 0; i < vd.nrof_layers; i++) {
+        PolygonLayer *layer = &vd.layers[i];
+        fwrite(layer->rgba, sizeof(unsigned char), 4, fp);
+        fwrite(&layer->start_vertex, sizeof(int), 1, fp);
+        fwrite(&layer->nrof_vertices, sizeof(int), 1, fp);
+        fwrite(&layer->nrof_polygons, sizeof(int), 1, fp);
+        fwrite(layer_bbox[i], sizeof(float), 4, fp);
+        fwrite(layer->polygon_index, sizeof(int), 2 * layer->nrof_polygons, fp);
+    }
+    write_line_vertices(fp, &vd);
+    fwrite(vd.line_colors, sizeof(unsigned char), 8 * vd.nrof_line_vertices, fp);
+    write_line_indices(fp, &vd);
+    write_polygon_vertices(fp, &vd);
+
+    free(layer_bbox);
+    free_vertex_data(&vd);
+}
+
+// Set up the tiles of a pyramid level covering the bounding box
+static void
+create_tile_grid(TileGrid *grid, int level, double min_x, double min_y,
+        double max_x, double max_y) {
+    double extent = tile_size * (1 << level);
+    int i, j;
+
+    grid->level = level;
+    grid->start_x = floor(min_x / extent);
+    grid->start_y = floor(min_y / extent);
+    grid->nrof_tiles_x = (int)floor(max_x / extent) + 1 - grid->start_x;
+    grid->nrof_tiles_y = (int)floor(max_y / extent) + 1 - grid->start_y;
+    grid->tiles = malloc(grid->nrof_tiles_x * sizeof(Tile *));
+    for (i = 0; i < grid->nrof_tiles_x; i++) {
+        grid->tiles[i] = malloc(grid->nrof_tiles_y * sizeof(Tile));
+        for (j = 0; j < grid->nrof_tiles_y; j++) {
+            grid->tiles[i][j].polygons = NULL;
+            grid->tiles[i][j].ways = NULL;
+            grid->tiles[i][j].x = grid->start_x + i;
+            grid->tiles[i][j].y = grid->start_y + j;
+            grid->tiles[i][j].level = level;
+        }
+    }
+}
+
+// The tile of a grid that stores a feature starting at point v
+static Tile *
+grid_tile(TileGrid *grid, float *v) {
+    double extent = tile_size * (1 << grid->level);
+    int ti = (int)floor(v[0] / extent) - grid->start_x;
+    int tj = (int)floor(v[1] / extent) - grid->start_y;
+
+    return &grid->tiles[ti][tj];
+}
+
+// Douglas-Peucker: mark the points between first and last that are further
+// than tolerance from the simplified line
+static void
+mark_points(float *v, int first, int last, float tolerance, char *keep) {
+    float dx, dy, len;
+    float max = 0;
+    int i, index = -1;
+
+    if (last - first < 2)
+        return;
+
+    dx = v[2*last] - v[2*first];
+    dy = v[2*last + 1] - v[2*first + 1];
+    len = sqrtf(dx * dx + dy * dy);
+
+    for (i = first + 1; i < last; i++) {
+        float px = v[2*i] - v[2*first];
+        float py = v[2*i + 1] - v[2*first + 1];
+        float d;
+
+        if (len > 0)
+            d = fabsf(px * dy - py * dx) / len;
+        else
+            d = sqrtf(px * px + py * py);
+
+        if (d > max) {
+            max = d;
+            index = i;
+        }
+    }
+
+    if (max <= tolerance)
+        return;
+
+    keep[index] = 1;
+    mark_points(v, first, index, tolerance, keep);
+    mark_points(v, index, last, tolerance, keep);
+}
+
+// Simplify n points into a newly allocated array, returns the number of
+// points kept
+static int
+simplify_points(float *v, int n, float tolerance, float **out) {
+    char *keep = calloc(n, 1);
+    int i, m = 0;
+
+    keep[0] = 1;
+    keep[n - 1] = 1;
+    mark_points(v, 0, n - 1, tolerance, keep);
+
+    *out = malloc(2 * n * sizeof(float));
+    for (i = 0; i < n; i++) {
+        if (!keep[i])
+            continue;
+        (*out)[2*m] = v[2*i];
+        (*out)[2*m + 1] = v[2*i + 1];
+        m++;
+    }
+    free(keep);
+
+    return m;
+}
+
+static float
+polygon_area(float *v, int n) {
+    float area = 0;
+    int i, j;
+
+    for (i = 0, j = n - 1; i < n; j = i++)
+        area += v[2*j] * v[2*i + 1] - v[2*i] * v[2*j + 1];
+
+    return fabsf(area / 2);
+}
+
+static int
+same_style(MapWay *a, MapWay *b) {
+    return a->width == b->width && a->height == b->height &&
+        a->bridge == b->bridge && a->tunnel == b->tunnel &&
+        !memcmp(a->outline_color, b->outline_color, 4) &&
+        !memcmp(a->fill_color, b->fill_color, 4);
+}
+
+static int
+compare_point(float *p, float *q) {
+    if (p[0] != q[0])
+        return p[0] < q[0] ? -1 : 1;
+    if (p[1] != q[1])
+        return p[1] < q[1] ? -1 : 1;
+    return 0;
+}
+
+static int
+way_start_cb(const void *a, const void *b) {
+    return compare_point((*(MapWay **)a)->vertices, (*(MapWay **)b)->vertices);
+}
+
+// Find an unused line of the same style as way that starts where way ends,
+// lines are sorted by their first point
+static int
+find_continuation(MapWay **sorted, char *used, int n, MapWay *way) {
+    float *end = way->vertices + 2 * (way->length - 1);
+    int low = 0;
+    int high = n;
+
+    while (low < high) {
+        int mid = (low + high) / 2;
+        if (compare_point(sorted[mid]->vertices, end) < 0)
+            low = mid + 1;
+        else
+            high = mid;
+    }
+
+    for (; low < n && !compare_point(sorted[low]->vertices, end); low++)
+        if (!used[low] && same_style(sorted[low], way))
+            return low;
+
+    return -1;
+}
+
+// Join lines of the same style where one ends at the start of another.
+// Returns a list of new lines, the original lines are left untouched.
+static List *
+merge_ways(List *ways) {
+    int n = list_count(ways);
+    MapWay **sorted = malloc(n * sizeof(MapWay *));
+    char *used = calloc(n, 1);
+    List *merged = NULL;
+    List *l;
+    int i, j;
+
+    for (i = 0, l = ways; l; i++, l = l->next)
+        sorted[i] = l->data;
+    qsort(sorted, n, sizeof(MapWay *), way_start_cb);
+
+    for (i = 0; i < n; i++) {
+        MapWay *way;
+
+        if (used[i])
+            continue;
+        used[i] = 1;
+
+        way = malloc(sizeof(MapWay));
+        *way = *sorted[i];
+        way->vertices = malloc(2 * way->length * sizeof(float));
+        memcpy(way->vertices, sorted[i]->vertices, 2 * way->length * sizeof(float));
+
+        while ((j = find_continuation(sorted, used, n, way)) >= 0) {
+            MapWay *next = sorted[j];
+
+            // the first point of the next line is the last one of this
+            way->vertices = realloc(way->vertices,
+                    2 * (way->length + next->length - 1) * sizeof(float));
+            memcpy(way->vertices + 2 * way->length, next->vertices + 2,
+                    2 * (next->length - 1) * sizeof(float));
+            way->length += next->length - 1;
+            used[j] = 1;
+        }
+        merged = list_append(merged, way);
+    }
+    free(sorted);
+    free(used);
+
+    return merged;
+}
+
+// Fill a coarser pyramid level from the features of the map. Lines
+// narrower and polygons smaller than the tolerance of the level are left
+// out, connected lines are joined and everything is simplified.
+static void
+fill_pyramid_level(TileGrid *grid, List *ways, List *polygons) {
+    float tolerance = 1 << grid->level;
+    int nrof_lines = 0;
+    int nrof_nodes = 0;
+    int nrof_polygons = 0;
+    int nrof_vertices = 0;
+    List *l;
+    int i, j;
+
+    for (l = ways; l; l = l->next) {
+        MapWay *mapway = l->data;
+        Tile *tile;
+
+        if (mapway->width < tolerance)
+            continue;
+
+        tile = grid_tile(grid, mapway->vertices);
+        tile->ways = list_append(tile->ways, mapway);
+    }
+
+    for (l = polygons; l; l = l->next) {
+        MapPolygon *polygon = l->data;
+        MapPolygon *simple;
+        Tile *tile;
+
+        if (polygon_area(polygon->vertices, polygon->size) < 16 * tolerance * tolerance)
+            continue;
+
+        simple = malloc(sizeof(MapPolygon));
+        *simple = *polygon;
+        simple->size = simplify_points(polygon->vertices, polygon->size, tolerance,
+                &simple->vertices);
+        if (simple->size < 3) {
+            free(simple->vertices);
+            free(simple);
+            continue;
+        }
+
+        tile = grid_tile(grid, simple->vertices);
+        tile->polygons = list_append(tile->polygons, simple);
+        nrof_polygons++;
+        nrof_vertices += simple->size;
+    }
+
+    for (i = 0; i < grid->nrof_tiles_x; i++) {
+        for (j = 0; j < grid->nrof_tiles_y; j++) {
+            Tile *tile = &grid->tiles[i][j];
+            List *unmerged = tile->ways;
+
+            // the lines themselves belong to level 0
+            tile->ways = merge_ways(unmerged);
+            list_free(unmerged);
+            for (l = tile->ways; l; l = l->next) {
+                MapWay *mapway = l->data;
+                float *vertices = mapway->vertices;
+
+                mapway->length = simplify_points(vertices, mapway->length, tolerance,
+                        &mapway->vertices);
+                free(vertices);
+                nrof_lines++;
+                nrof_nodes += mapway->length;
+            }
+        }
+    }
+
+    printf("Pyramid level %d: %dx%d tiles, %d lines, %d vertices, "
+            "%d polygons, %d vertices\n", grid->level, grid->nrof_tiles_x,
+            grid->nrof_tiles_y, nrof_lines, nrof_nodes, nrof_polygons, nrof_vertices);
+}
+
+// File name of a tile: <x>_<y>.<ext> for level 0 and <x>_<y>_<level>.<ext>
+// for the coarser pyramid levels
+static void
+tile_file_name(char *filename, int size, Tile *tile, const char *ext) {
+    if (tile->level == 0)
+        snprintf(filename, size, "%d_%d.%s", tile->x, tile->y, ext);
+    else
+        snprintf(filename, size, "%d_%d_%d.%s", tile->x, tile->y, tile->level, ext);
+}
+
+// Write the .line, .poly and, when pre-tessellating, .vtx files of a tile
+static void
+write_tile_files(Tile *tile, int pretessellate) {
+    FILE *fp;
+    char filename[4096];
+    List *l;
+
+    // Calculate array sizes
+    l = tile->ways;
+    int nrof_lines = 0;
+    int nrof_nodes = 0;
+    while (l) {
+        MapWay *mapway = l->data;
+        l = l->next;
+        nrof_nodes += mapway->length;
+        nrof_lines++;
+    }
+
+    l = tile->polygons;
+    int nrof_vertices = 0;
+    int nrof_polygons = 0;
+    while (l) {
+        MapPolygon *polygon = l->data;
+        nrof_vertices += polygon->size;
+        nrof_polygons++;
+        l = l->next;
+    }
+    if (!nrof_lines && !nrof_polygons)
+        return;
+
+    // Write lines
+    tile_file_name(filename, sizeof(filename)-1, tile, "line");
+
+    printf("Storing %d lines, %d vertices\n", nrof_lines, nrof_nodes);
+    printf("Writing output (%s)...\n", filename);
+    fp = fopen(filename, "w");
+    if (!fp) {
+        fprintf(stderr, "Can't open output file for writing.\n");
+        exit(-1);
+    }
+    write_lines(fp, tile);
+    fclose(fp);
+
+
+    // Write polygons
+    tile_file_name(filename, sizeof(filename)-1, tile, "poly");
+    printf("Writing output (%s)...\n", filename);
+    fp = fopen(filename, "w");
+    if (!fp) {
+        fprintf(stderr, "Can't open output file for writing.\n");
+        exit(-1);
+    }
+    write_polygons(fp, tile);
+    fclose(fp);
+
+    if (!pretessellate)
+        return;
+
+    // Write pre-tessellated vertices
+    tile_file_name(filename, sizeof(filename)-1, tile, "vtx");
+    printf("Writing output (%s)...\n", filename);
+    fp = fopen(filename, "w");
+    if (!fp) {
+        fprintf(stderr, "Can't open output file for writing.\n");
+        exit(-1);
+    }
+    write_vertices(fp, tile);
+    fclose(fp);
+}
+
+// Write the tiles of all pyramid levels into one archive file. The archive
+// starts with magic, version and number of tiles, followed by an index of
+// ArchiveEntry sorted by level, x, then y. The line and polygon sections have the same layout
+// as the separate .line and .poly files. The pre-tessellated vertex section
+// is only written when requested, otherwise its length is 0.
+void
+write_archive(const char *filename, TileGrid *grids, int nrof_levels, int pretessellate) {
+    FILE *fp;
+    ArchiveEntry *index;
+    int p, ti, tj;
+    int n = 0;
+    int magic = ARCHIVE_MAGIC;
+    int version = ARCHIVE_VERSION;
+
+    for (p = 0; p < nrof_levels; p++)
+        for (ti = 0; ti < grids[p].nrof_tiles_x; ti++)
+            for (tj = 0; tj < grids[p].nrof_tiles_y; tj++)
+                if (grids[p].tiles[ti][tj].ways || grids[p].tiles[ti][tj].polygons)
+                    n++;
+
+    printf("Writing archive with %d tiles (%s)...\n", n, filename);
+    fp = fopen(filename, "w");
+    if (!fp) {
+        fprintf(stderr, "Can't open output file for writing.\n");
+        exit(-1);
+    }
+
+    index = calloc(n, sizeof(ArchiveEntry));
+
+    // Reserve space for the index, it is filled in at the end
+    fwrite(&magic, sizeof(int), 1, fp);
+    fwrite(&version, sizeof(int), 1, fp);
+    fwrite(&n, sizeof(int), 1, fp);
+    fwrite(index, sizeof(ArchiveEntry), n, fp);
+
+    n = 0;
+    for (p = 0; p < nrof_levels; p++) {
+        Tile **tiles = grids[p].tiles;
+
+        for (ti = 0; ti < grids[p].nrof_tiles_x; ti++) {
+            for (tj = 0; tj < grids[p].nrof_tiles_y; tj++) {
+                ArchiveEntry *entry;
+
+                if (!tiles[ti][tj].ways && !tiles[ti][tj].polygons)
+                    continue;
+
+                entry = &index[n++];
+                entry->level = p;
+                entry->x = tiles[ti][tj].x;
+                entry->y = tiles[ti][tj].y;
+
+                entry->line_offset = ftell(fp);
+                write_lines(fp, &tiles[ti][tj]);
+                entry->line_length = ftell(fp) - entry->line_offset;
+
+                entry->poly_offset = ftell(fp);
+                write_polygons(fp, &tiles[ti][tj]);
+                entry->poly_length = ftell(fp) - entry->poly_offset;
+
+                if (pretessellate) {
+                    entry->vertex_offset = ftell(fp);
+                    write_vertices(fp, &tiles[ti][tj]);
+                    entry->vertex_length = ftell(fp) - entry->vertex_offset;
+                }
+            }
+        }
+    }
+
+    fseek(fp, 3 * sizeof(int), SEEK_SET);
+    fwrite(index, sizeof(ArchiveEntry), n, fp);
+    fclose(fp);
+    free(index);
+}
+
+
 int
 main(int argc, char **argv)
 {
@@ -643,20 +1940,45 @@ main(int argc, char **argv)
     FILE *osmfilepointer;
     struct stat st;
     char *filename;
-    int i, j, ti, tj;
+    int i, ti, tj;
     int done;
     int len;
     List *cn, *l;
     RoutingWay *w;
     RoutingNode *nd;
+    int opt;
+    int pretessellate = 0;
     mapways = NULL;
     polygons = NULL;
 
     
     printf("Mapgenerator\n");
 
-    if (argc > 1) {
-        filename = argv[1];
+    while ((opt = getopt(argc, argv, "tcq:")) != -1) {
+        switch (opt) {
+            case 't':
+                // Also write tiles in the pre-tessellated vertex format
+                pretessellate = 1;
+                break;
+            case 'c':
+                // Store points as quantized varint deltas
+                compress_points = 1;
+                break;
+            case 'q':
+                point_quantum = atof(optarg);
+                if (point_quantum <= 0) {
+                    printf("Invalid quantum: %s\n", optarg);
+                    return 0;
+                }
+                break;
+            default:
+                printf("Usage: %s [-t] [-c [-q quantum]] file.osm\n", argv[0]);
+                return 0;
+        }
+    }
+
+    if (optind < argc) {
+        filename = argv[optind];
     } else {
         printf("Input file must be specified.\n");
         return 0;
@@ -831,123 +2153,36 @@ main(int argc, char **argv)
     }
     printf("Bounding box: %lf, %lf, %lf, %lf\n", min_x, min_y, max_x, max_y);
 
-    // Set up the tiles
-    double tile_size = 500.0;
-    int start_tile_x = min_x / tile_size;
-    int start_tile_y = min_y / tile_size;
-    int nrof_tiles_x = ceil(max_x / tile_size) - start_tile_x;
-    int nrof_tiles_y = ceil(max_y / tile_size) - start_tile_y;
-    int nrof_tiles = nrof_tiles_x * nrof_tiles_y;
-    Tile **tiles;
-    tiles = malloc(nrof_tiles_x * sizeof(Tile *));
-    for (i = 0; i < nrof_tiles_x; i++) {
-        tiles[i] = malloc(nrof_tiles_y * sizeof(Tile));
-        for (j = 0; j < nrof_tiles_y; j++) {
-            tiles[i][j].polygons = NULL;
-            tiles[i][j].ways = NULL;
-            tiles[i][j].x = start_tile_x + i;
-            tiles[i][j].y = start_tile_y + j;
-        }
-    }
+    // Set up the tiles of all pyramid levels
+    TileGrid grids[PYRAMID_LEVELS];
+    int p;
+    for (p = 0; p < PYRAMID_LEVELS; p++)
+        create_tile_grid(&grids[p], p, min_x, min_y, max_x, max_y);
 
-    printf("Splitting data into %dx%d tiles\n", nrof_tiles_x, nrof_tiles_y);
+    printf("Splitting data into %dx%d tiles\n", grids[0].nrof_tiles_x, grids[0].nrof_tiles_y);
 
     for (i = 0, l=mapways; i < nrof_lines; i++, l = l->next) {
         MapWay *mapway = l->data;
         // FIXME: Storing the whole way in the tile where the first node is located...
-        ti = (int)(mapway->vertices[0]/tile_size) - start_tile_x;
-        tj = (int)(mapway->vertices[1]/tile_size) - start_tile_y;
-        tiles[ti][tj].ways = list_append(tiles[ti][tj].ways, mapway);
+        Tile *tile = grid_tile(&grids[0], mapway->vertices);
+        tile->ways = list_append(tile->ways, mapway);
         // FIXME: convert with scale and center coordinates?
     }
     for (i = 0, l=polygons; i < nrof_polygons; i++, l = l->next) {
         MapPolygon *polygon = l->data;
-        ti = (int)(polygon->vertices[0]/tile_size) - start_tile_x;
-        tj = (int)(polygon->vertices[1]/tile_size) - start_tile_y;
-        tiles[ti][tj].polygons = list_append(tiles[ti][tj].polygons, polygon);
+        Tile *tile = grid_tile(&grids[0], polygon->vertices);
+        tile->polygons = list_append(tile->polygons, polygon);
     }
 
-    // Write to output files
-    FILE *fp;
-
-    for (ti = 0; ti < nrof_tiles_x; ti++) {
-        for (tj = 0; tj < nrof_tiles_y; tj++) {
-            // Calculate array sizes
-            l = tiles[ti][tj].ways;
-            int nrof_lines = 0;
-            int nrof_nodes = 0;
-            while (l) {
-                MapWay *mapway = l->data;
-                l = l->next;
-                nrof_nodes += mapway->length;
-                nrof_lines++;
-            }
-
-            l = tiles[ti][tj].polygons;
-            int nrof_vertices = 0;
-            int nrof_polygons = 0;
-            while (l) {
-                MapPolygon *polygon = l->data;
-                nrof_vertices += polygon->size;
-                nrof_polygons++;
-                l = l->next;
-            }
-	if (!nrof_lines && !nrof_polygons)
-		continue;
-
-            // Write lines
-            char filename[4096];
-            snprintf(filename, sizeof(filename)-1, "%d_%d.line", 
-                    tiles[ti][tj].x, tiles[ti][tj].y);
-
-            printf("Storing %d lines, %d vertices\n", nrof_lines, nrof_nodes);
-            printf("Writing output (%s)...\n", filename);
-            fp = fopen(filename, "w");
-            if (!fp) {
-                fprintf(stderr, "Can't open output file for writing.\n");
-                exit(-1);
-            }
-            fwrite(&nrof_lines, sizeof(int), 1, fp);
-            fwrite(&nrof_nodes, sizeof(int), 1, fp);
-            for (i = 0, l=tiles[ti][tj].ways; i < nrof_lines; i++, l = l->next) {
-                MapWay *mapway = l->data;
-                fwrite(&(mapway->length), sizeof(int), 1, fp);
-                fwrite(&(mapway->width), sizeof(float), 1, fp);
-                fwrite(&(mapway->height), sizeof(float), 1, fp);
-                fwrite(&(mapway->outline_color), sizeof(unsigned char), 4, fp);
-                fwrite(&(mapway->fill_color), sizeof(unsigned char), 4, fp);
-                fwrite(&(mapway->bridge), sizeof(int), 1, fp);
-                fwrite(&(mapway->tunnel), sizeof(int), 1, fp);
-            }
-            for (i = 0, l=tiles[ti][tj].ways; i < nrof_lines; i++, l = l->next) {
-                MapWay *mapway = l->data;
-                fwrite(mapway->vertices, sizeof(float), 2*mapway->length, fp);
-            }
-            fclose(fp);
+    for (p = 1; p < PYRAMID_LEVELS; p++)
+        fill_pyramid_level(&grids[p], mapways, polygons);
 
+    // Write to output files
+    for (p = 0; p < PYRAMID_LEVELS; p++)
+        for (ti = 0; ti < grids[p].nrof_tiles_x; ti++)
+            for (tj = 0; tj < grids[p].nrof_tiles_y; tj++)
+                write_tile_files(&grids[p].tiles[ti][tj], pretessellate);
 
-            // Write polygons
-            snprintf(filename, sizeof(filename)-1, "%d_%d.poly", 
-                    tiles[ti][tj].x, tiles[ti][tj].y);
-            printf("Writing output (%s)...\n", filename);
-            fp = fopen(filename, "w");
-            if (!fp) {
-                fprintf(stderr, "Can't open output file for writing.\n");
-                exit(-1);
-            }
-            fwrite(&nrof_polygons, sizeof(int), 1, fp);
-            fwrite(&nrof_vertices, sizeof(int), 1, fp);
-            for (i = 0, l=tiles[ti][tj].polygons; i < nrof_polygons; i++, l = l->next) {
-                MapPolygon *polygon = l->data;
-                fwrite(&(polygon->size), sizeof(int), 1, fp);
-                fwrite(&(polygon->rgba), sizeof(unsigned char), 4, fp);
-            }
-            for (i = 0, l=tiles[ti][tj].polygons; i < nrof_polygons; i++, l = l->next) {
-                MapPolygon *polygon = l->data;
-                fwrite(polygon->vertices, sizeof(float), 2*polygon->size, fp);
-            }
-            fclose(fp);
-        }
-    }
+    write_archive(ARCHIVE_FILE, grids, PYRAMID_LEVELS, pretessellate);
 }
 
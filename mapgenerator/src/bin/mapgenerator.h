@@ -116,6 +116,7 @@ List * list_prepend(List *list, void *data);
 List * list_append(List *list, void *data);
 List * list_find(List *list, void *data, List_Compare_Cb compare);
 int list_count(List *list);
+void list_free(List *list);
 
 int routing_index_bsearch(RoutingNode* nodes, int id, int low, int high);
 int routing_index_find_node(RoutingIndex* ri, int id);
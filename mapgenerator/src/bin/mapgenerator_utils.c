@@ -208,6 +208,17 @@ int list_count(List *list) {
     return count;
 }
 
+// Free the list nodes, not the data they point to
+void list_free(List *list) {
+    List *l;
+
+    while (list) {
+        l = list->next;
+        free(list);
+        list = l;
+    }
+}
+
 int routing_index_bsearch(RoutingNode *nodes, int id, int low, int high) {
     int mid;
 
@@ -0,0 +1,127 @@
+package com.android.glmap;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First-fit allocator of byte ranges within an arena of fixed capacity.
+ * Free ranges are kept sorted by offset and merged with their neighbours
+ * when a range is freed. It knows nothing about GL, VBOArena puts it in
+ * front of a buffer object.
+ */
+class ArenaAllocator {
+	private final int capacity;
+	private final int alignment;
+
+	// free ranges, offset to size
+	private final TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+
+	private int usedBytes;
+	private int nrofAllocations;
+
+	/**
+	 * @param capacity
+	 *            size of the arena in bytes
+	 * @param alignment
+	 *            all offsets and sizes are multiples of this, a power of two
+	 */
+	ArenaAllocator(int capacity, int alignment) {
+		this.capacity = capacity & ~(alignment - 1);
+		this.alignment = alignment;
+		if (this.capacity > 0)
+			free.put(0, this.capacity);
+	}
+
+	private int align(int size) {
+		return (size + alignment - 1) & ~(alignment - 1);
+	}
+
+	/**
+	 * @return the offset of a range of at least size bytes, or -1 when no
+	 *         free range is large enough.
+	 */
+	int allocate(int size) {
+		size = align(Math.max(size, 1));
+
+		for (Map.Entry<Integer, Integer> e : free.entrySet()) {
+			int offset = e.getKey();
+			int length = e.getValue();
+			if (length < size)
+				continue;
+
+			free.remove(offset);
+			if (length > size)
+				free.put(offset + size, length - size);
+
+			usedBytes += size;
+			nrofAllocations++;
+			return offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return a range obtained from allocate() with the same size.
+	 */
+	void free(int offset, int size) {
+		size = align(Math.max(size, 1));
+
+		usedBytes -= size;
+		nrofAllocations--;
+
+		// merge with the free ranges before and after
+		Map.Entry<Integer, Integer> prev = free.floorEntry(offset);
+		if (prev != null && prev.getKey() + prev.getValue() == offset) {
+			free.remove(prev.getKey());
+			offset = prev.getKey();
+			size += prev.getValue();
+		}
+
+		Integer next = free.get(offset + size);
+		if (next != null) {
+			free.remove(offset + size);
+			size += next;
+		}
+
+		free.put(offset, size);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int getUsedBytes() {
+		return usedBytes;
+	}
+
+	int getFreeBytes() {
+		return capacity - usedBytes;
+	}
+
+	int getAllocationCount() {
+		return nrofAllocations;
+	}
+
+	int getFreeRangeCount() {
+		return free.size();
+	}
+
+	int getLargestFreeRange() {
+		int largest = 0;
+		for (int length : free.values())
+			largest = Math.max(largest, length);
+		return largest;
+	}
+
+	/**
+	 * @return the share of free bytes that are not part of the largest free
+	 *         range, 0 when all free space is in one piece.
+	 */
+	float getFragmentation() {
+		int freeBytes = getFreeBytes();
+		if (freeBytes == 0)
+			return 0;
+
+		return 1 - (float) getLargestFreeRange() / freeBytes;
+	}
+}
@@ -0,0 +1,57 @@
+package com.android.glmap;
+
+/**
+ * Axis aligned bounding box in map coordinates, used to skip tiles and
+ * polygon layers outside of the screen. A new box is empty.
+ */
+class BoundingBox {
+	float minX;
+	float minY;
+	float maxX;
+	float maxY;
+
+	BoundingBox() {
+		reset();
+	}
+
+	void reset() {
+		minX = Float.MAX_VALUE;
+		minY = Float.MAX_VALUE;
+		maxX = -Float.MAX_VALUE;
+		maxY = -Float.MAX_VALUE;
+	}
+
+	boolean isEmpty() {
+		return minX > maxX;
+	}
+
+	/**
+	 * Extend the box to contain x/y. NaN coordinates, which the extrusion of
+	 * repeated points yields, are ignored.
+	 */
+	void add(float x, float y) {
+		if (x < minX)
+			minX = x;
+		if (x > maxX)
+			maxX = x;
+		if (y < minY)
+			minY = y;
+		if (y > maxY)
+			maxY = y;
+	}
+
+	/**
+	 * Extend the box to contain another box widened by margin on each side.
+	 */
+	void add(BoundingBox box, float margin) {
+		if (box.isEmpty())
+			return;
+
+		add(box.minX - margin, box.minY - margin);
+		add(box.maxX + margin, box.maxY + margin);
+	}
+
+	boolean intersects(float minX, float minY, float maxX, float maxY) {
+		return this.minX <= maxX && this.maxX >= minX && this.minY <= maxY && this.maxY >= minY;
+	}
+}
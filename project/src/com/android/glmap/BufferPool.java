@@ -0,0 +1,142 @@
+package com.android.glmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Pool of direct ByteBuffers for tile vertex data, bucketed in power-of-two
+ * size classes. Loaders borrow buffers with get(), the renderer hands them
+ * back with release() once they are uploaded to the GPU. At most maxBytes
+ * of idle buffers are kept, anything beyond that is left to the GC.
+ */
+class BufferPool {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "BufferPool";
+
+	// smallest size class is 4kB, buffers above the largest are not pooled
+	private static final int MIN_SIZE_SHIFT = 12;
+	private static final int MAX_SIZE_SHIFT = 24;
+
+	private final ArrayList<ArrayList<ByteBuffer>> free;
+
+	private int maxBytes;
+	private int pooledBytes;
+
+	// Statistics
+	private int hits;
+	private int misses;
+	private long allocatedBytes;
+	private long highWaterMark;
+
+	BufferPool(int maxBytes) {
+		this.maxBytes = maxBytes;
+
+		free = new ArrayList<ArrayList<ByteBuffer>>();
+		for (int i = MIN_SIZE_SHIFT; i <= MAX_SIZE_SHIFT; i++)
+			free.add(new ArrayList<ByteBuffer>());
+	}
+
+	private static int sizeClass(int size) {
+		int shift = MIN_SIZE_SHIFT;
+		while ((1 << shift) < size)
+			shift++;
+
+		return shift;
+	}
+
+	/**
+	 * Borrow a native-order buffer with at least size bytes. Position is 0
+	 * and limit is size.
+	 */
+	synchronized ByteBuffer get(int size) {
+		int shift = sizeClass(size);
+		ByteBuffer buf = null;
+
+		if (shift <= MAX_SIZE_SHIFT) {
+			ArrayList<ByteBuffer> list = free.get(shift - MIN_SIZE_SHIFT);
+			if (!list.isEmpty()) {
+				buf = list.remove(list.size() - 1);
+				pooledBytes -= buf.capacity();
+				hits++;
+			}
+		}
+
+		if (buf == null) {
+			int capacity = shift <= MAX_SIZE_SHIFT ? 1 << shift : size;
+			buf = ByteBuffer.allocateDirect(capacity);
+			misses++;
+
+			allocatedBytes += capacity;
+			if (allocatedBytes > highWaterMark)
+				highWaterMark = allocatedBytes;
+		}
+
+		buf.clear();
+		buf.limit(size);
+		buf.order(ByteOrder.nativeOrder());
+
+		return buf;
+	}
+
+	/**
+	 * Return a buffer obtained from get(). Buffers not created by the pool
+	 * are ignored.
+	 */
+	synchronized void release(ByteBuffer buf) {
+		if (buf == null || buf.isReadOnly() || !buf.isDirect())
+			return;
+
+		int capacity = buf.capacity();
+		int shift = sizeClass(capacity);
+
+		if (shift > MAX_SIZE_SHIFT || (1 << shift) != capacity
+		      || pooledBytes + capacity > maxBytes) {
+			allocatedBytes -= capacity;
+			return;
+		}
+
+		free.get(shift - MIN_SIZE_SHIFT).add(buf);
+		pooledBytes += capacity;
+
+		if (DEBUG)
+			Log.i(TAG, "hits: " + hits + ", misses: " + misses + ", pooled: " + pooledBytes
+			      + ", high water mark: " + highWaterMark);
+	}
+
+	synchronized void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+
+		// drop idle buffers from the largest size class down
+		for (int i = free.size() - 1; i >= 0 && pooledBytes > maxBytes; i--) {
+			ArrayList<ByteBuffer> list = free.get(i);
+			while (!list.isEmpty() && pooledBytes > maxBytes) {
+				int capacity = list.remove(list.size() - 1).capacity();
+				pooledBytes -= capacity;
+				allocatedBytes -= capacity;
+			}
+		}
+	}
+
+	synchronized int getHits() {
+		return hits;
+	}
+
+	synchronized int getMisses() {
+		return misses;
+	}
+
+	synchronized int getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 * Largest number of bytes held by pooled and borrowed buffers at once.
+	 */
+	synchronized long getHighWaterMark() {
+		return highWaterMark;
+	}
+}
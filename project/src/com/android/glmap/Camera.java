@@ -0,0 +1,28 @@
+package com.android.glmap;
+
+/**
+ * A position of the map view. Cameras are immutable, the GL thread
+ * publishes a new one for each frame that moved the view and other threads
+ * read it without waiting.
+ */
+final class Camera {
+	// the centre of the view in metres
+	final float x;
+	final float y;
+	// the view spans 2 / z metres over the height of the screen
+	final float z;
+
+	Camera(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	Camera moveBy(float dx, float dy) {
+		return new Camera(x + dx, y + dy, z);
+	}
+
+	Camera zoomBy(float factor) {
+		return new Camera(x, y, z * factor);
+	}
+}
@@ -0,0 +1,173 @@
+package com.android.glmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pan and zoom input and the fling animation, applied to the camera once
+ * per frame. The input thread only adds to the pending deltas, the GL
+ * thread takes them all at the start of a frame, so several touch events
+ * between two frames make one camera update and one render request.
+ */
+class CameraAnimator {
+	/**
+	 * Deltas since the last frame. Pan deltas are in pixels at the zoom
+	 * before the first zoom delta, i.e. divided by the zoom so far.
+	 */
+	private static class Input {
+		final float x;
+		final float y;
+		final float zoom;
+
+		Input(float x, float y, float zoom) {
+			this.x = x;
+			this.y = y;
+			this.zoom = zoom;
+		}
+	}
+
+	/**
+	 * A fling of x/y pixels that slows down over its duration.
+	 */
+	private static class Fling {
+		final float x;
+		final float y;
+		final long start;
+		final long duration;
+
+		Fling(float x, float y, long start, long duration) {
+			this.x = x;
+			this.y = y;
+			this.start = start;
+			this.duration = duration;
+		}
+	}
+
+	private static final Input NONE = new Input(0, 0, 1);
+
+	private final AtomicReference<Input> pending = new AtomicReference<Input>(NONE);
+	private final AtomicReference<Fling> fling = new AtomicReference<Fling>();
+
+	// the fling being applied and its part already applied, GL thread only
+	private Fling current;
+	private float currentDone;
+
+	// Frame pacing statistics: input events, frames that updated the
+	// camera and render requests made for input
+	private final AtomicInteger nrofEvents = new AtomicInteger();
+	private final AtomicInteger nrofUpdates = new AtomicInteger();
+	private final AtomicInteger nrofRequests = new AtomicInteger();
+
+	/**
+	 * Add a pan by x/y pixels, see GLMapRenderer.move().
+	 *
+	 * @return true if this is the first input since the last frame, which
+	 *         needs a frame to be requested.
+	 */
+	boolean move(float x, float y) {
+		Input in, out;
+		do {
+			in = pending.get();
+			out = new Input(in.x + x / in.zoom, in.y + y / in.zoom, in.zoom);
+		} while (!pending.compareAndSet(in, out));
+
+		return added(in);
+	}
+
+	/**
+	 * Add a zoom by the given factor.
+	 *
+	 * @return true if this is the first input since the last frame.
+	 */
+	boolean zoom(float factor) {
+		Input in, out;
+		do {
+			in = pending.get();
+			out = new Input(in.x, in.y, in.zoom * factor);
+		} while (!pending.compareAndSet(in, out));
+
+		return added(in);
+	}
+
+	private boolean added(Input previous) {
+		nrofEvents.incrementAndGet();
+		if (previous != NONE)
+			return false;
+
+		nrofRequests.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Start a fling by x/y pixels over the given time, replacing a running
+	 * fling.
+	 */
+	void fling(float x, float y, int millis) {
+		fling.set(new Fling(x, y, System.nanoTime(), Math.max(1, millis) * 1000000L));
+	}
+
+	/**
+	 * @return true if a fling was running.
+	 */
+	boolean stopFling() {
+		return fling.getAndSet(null) != null;
+	}
+
+	/**
+	 * @return true while a fling runs, which needs another frame.
+	 */
+	boolean isAnimating() {
+		return fling.get() != null;
+	}
+
+	/**
+	 * Apply the input since the last frame and the fling up to the time
+	 * now, on the GL thread.
+	 *
+	 * @return the moved camera, or the given one if nothing changed.
+	 */
+	Camera apply(Camera camera, int width, int height, long now) {
+		Input input = pending.getAndSet(NONE);
+		float x = input.x;
+		float y = input.y;
+
+		Fling f = fling.get();
+		if (f != current) {
+			current = f;
+			currentDone = 0;
+		}
+
+		if (f != null) {
+			// the position along the fling, as by a DecelerateInterpolator
+			float t = Math.min(1, (float) (now - f.start) / f.duration);
+			float done = 1 - (1 - t) * (1 - t);
+
+			x += (done - currentDone) * f.x / input.zoom;
+			y += (done - currentDone) * f.y / input.zoom;
+			currentDone = done;
+
+			if (t >= 1)
+				fling.compareAndSet(f, null);
+		}
+
+		if (input == NONE && f == null)
+			return camera;
+
+		nrofUpdates.incrementAndGet();
+
+		return camera.moveBy(-x / ((camera.z / 2) * width), -y / ((camera.z / 2) * height))
+		      .zoomBy(input.zoom);
+	}
+
+	int getEventCount() {
+		return nrofEvents.get();
+	}
+
+	int getUpdateCount() {
+		return nrofUpdates.get();
+	}
+
+	int getRequestCount() {
+		return nrofRequests.get();
+	}
+}
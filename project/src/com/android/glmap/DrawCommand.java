@@ -0,0 +1,49 @@
+package com.android.glmap;
+
+/**
+ * One draw call of a frame. The renderer fills a list of commands and
+ * sorts it, so that calls sharing a program, color or vertex buffer follow
+ * each other. Polygons are sorted by color first, their drawing order
+ * matters. Lines are sorted by buffer and offset first, the outline and
+ * fill of a tile share all buffers.
+ */
+class DrawCommand implements Comparable<DrawCommand> {
+	// passes in drawing order
+	static final int PASS_POLYGONS = 0;
+	static final int PASS_LINES = 1;
+
+	// line states
+	static final int LINE_OUTLINE = 0;
+	static final int LINE_FILL = 1;
+
+	int pass;
+	// state within the pass, the polygon color or line style
+	int state;
+	long key;
+
+	GLMapTile tile;
+	PolygonLayer layer;
+
+	// range of line indices to draw
+	int count;
+	int offset;
+	int indexType;
+
+	void set(int pass, int state, GLMapTile tile, int buffer, int offset) {
+		this.pass = pass;
+		this.state = state;
+		this.tile = tile;
+		this.layer = null;
+
+		long b = buffer & 0xffff;
+		long o = (offset >>> 2) & 0xffffff;
+		if (pass == PASS_POLYGONS)
+			this.key = ((long) pass << 56) | ((long) (state & 0xffff) << 40) | (b << 24) | o;
+		else
+			this.key = ((long) pass << 56) | (b << 40) | (o << 8) | (state & 0xff);
+	}
+
+	public int compareTo(DrawCommand other) {
+		return key < other.key ? -1 : (key == other.key ? 0 : 1);
+	}
+}
@@ -0,0 +1,106 @@
+package com.android.glmap;
+
+import java.nio.Buffer;
+
+/**
+ * The part of OpenGL ES 2.0 used by the renderer. All GL calls go through
+ * this interface: GLES20Backend passes them on to the device,
+ * RecordingBackend counts them so that frames can be rendered and measured
+ * on a JVM without a GL context. The methods have the signatures of their
+ * GLES20 counterparts.
+ */
+interface GLBackend {
+	void glAttachShader(int program, int shader);
+
+	void glBindBuffer(int target, int buffer);
+
+	void glBlendFunc(int sfactor, int dfactor);
+
+	void glBufferData(int target, int size, Buffer data, int usage);
+
+	void glBufferSubData(int target, int offset, int size, Buffer data);
+
+	void glClear(int mask);
+
+	void glClearColor(float red, float green, float blue, float alpha);
+
+	void glColorMask(boolean red, boolean green, boolean blue, boolean alpha);
+
+	void glCompileShader(int shader);
+
+	int glCreateProgram();
+
+	int glCreateShader(int type);
+
+	void glCullFace(int mode);
+
+	void glDeleteBuffers(int n, int[] buffers, int offset);
+
+	void glDeleteProgram(int program);
+
+	void glDeleteShader(int shader);
+
+	void glDepthFunc(int func);
+
+	void glDepthMask(boolean flag);
+
+	void glDisable(int cap);
+
+	void glDisableVertexAttribArray(int index);
+
+	void glDrawArrays(int mode, int first, int count);
+
+	void glDrawElements(int mode, int count, int type, int offset);
+
+	void glEnable(int cap);
+
+	void glEnableVertexAttribArray(int index);
+
+	void glFrontFace(int mode);
+
+	void glGenBuffers(int n, int[] buffers, int offset);
+
+	int glGetAttribLocation(int program, String name);
+
+	int glGetError();
+
+	String glGetProgramInfoLog(int program);
+
+	void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+	String glGetShaderInfoLog(int shader);
+
+	void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+	String glGetString(int name);
+
+	int glGetUniformLocation(int program, String name);
+
+	void glLinkProgram(int program);
+
+	void glShaderSource(int shader, String string);
+
+	void glStencilFunc(int func, int ref, int mask);
+
+	void glStencilMask(int mask);
+
+	void glStencilOp(int fail, int zfail, int zpass);
+
+	void glUniform1f(int location, float x);
+
+	void glUniform2f(int location, float x, float y);
+
+	void glUniform4f(int location, float x, float y, float z, float w);
+
+	void glUseProgram(int program);
+
+	void glVertexAttrib2f(int index, float x, float y);
+
+	void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      int offset);
+
+	void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      Buffer ptr);
+
+	void glViewport(int x, int y, int width, int height);
+}
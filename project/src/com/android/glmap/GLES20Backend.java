@@ -0,0 +1,196 @@
+package com.android.glmap;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+
+/**
+ * GLBackend of the device, every call goes straight to GLES20.
+ */
+class GLES20Backend implements GLBackend {
+	public void glAttachShader(int program, int shader) {
+		GLES20.glAttachShader(program, shader);
+	}
+
+	public void glBindBuffer(int target, int buffer) {
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	public void glBlendFunc(int sfactor, int dfactor) {
+		GLES20.glBlendFunc(sfactor, dfactor);
+	}
+
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		GLES20.glBufferData(target, size, data, usage);
+	}
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		GLES20.glBufferSubData(target, offset, size, data);
+	}
+
+	public void glClear(int mask) {
+		GLES20.glClear(mask);
+	}
+
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+
+	public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		GLES20.glColorMask(red, green, blue, alpha);
+	}
+
+	public void glCompileShader(int shader) {
+		GLES20.glCompileShader(shader);
+	}
+
+	public int glCreateProgram() {
+		return GLES20.glCreateProgram();
+	}
+
+	public int glCreateShader(int type) {
+		return GLES20.glCreateShader(type);
+	}
+
+	public void glCullFace(int mode) {
+		GLES20.glCullFace(mode);
+	}
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		GLES20.glDeleteBuffers(n, buffers, offset);
+	}
+
+	public void glDeleteProgram(int program) {
+		GLES20.glDeleteProgram(program);
+	}
+
+	public void glDeleteShader(int shader) {
+		GLES20.glDeleteShader(shader);
+	}
+
+	public void glDepthFunc(int func) {
+		GLES20.glDepthFunc(func);
+	}
+
+	public void glDepthMask(boolean flag) {
+		GLES20.glDepthMask(flag);
+	}
+
+	public void glDisable(int cap) {
+		GLES20.glDisable(cap);
+	}
+
+	public void glDisableVertexAttribArray(int index) {
+		GLES20.glDisableVertexAttribArray(index);
+	}
+
+	public void glDrawArrays(int mode, int first, int count) {
+		GLES20.glDrawArrays(mode, first, count);
+	}
+
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		GLES20.glDrawElements(mode, count, type, offset);
+	}
+
+	public void glEnable(int cap) {
+		GLES20.glEnable(cap);
+	}
+
+	public void glEnableVertexAttribArray(int index) {
+		GLES20.glEnableVertexAttribArray(index);
+	}
+
+	public void glFrontFace(int mode) {
+		GLES20.glFrontFace(mode);
+	}
+
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		GLES20.glGenBuffers(n, buffers, offset);
+	}
+
+	public int glGetAttribLocation(int program, String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+
+	public int glGetError() {
+		return GLES20.glGetError();
+	}
+
+	public String glGetProgramInfoLog(int program) {
+		return GLES20.glGetProgramInfoLog(program);
+	}
+
+	public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		GLES20.glGetProgramiv(program, pname, params, offset);
+	}
+
+	public String glGetShaderInfoLog(int shader) {
+		return GLES20.glGetShaderInfoLog(shader);
+	}
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		GLES20.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	public String glGetString(int name) {
+		return GLES20.glGetString(name);
+	}
+
+	public int glGetUniformLocation(int program, String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+
+	public void glLinkProgram(int program) {
+		GLES20.glLinkProgram(program);
+	}
+
+	public void glShaderSource(int shader, String string) {
+		GLES20.glShaderSource(shader, string);
+	}
+
+	public void glStencilFunc(int func, int ref, int mask) {
+		GLES20.glStencilFunc(func, ref, mask);
+	}
+
+	public void glStencilMask(int mask) {
+		GLES20.glStencilMask(mask);
+	}
+
+	public void glStencilOp(int fail, int zfail, int zpass) {
+		GLES20.glStencilOp(fail, zfail, zpass);
+	}
+
+	public void glUniform1f(int location, float x) {
+		GLES20.glUniform1f(location, x);
+	}
+
+	public void glUniform2f(int location, float x, float y) {
+		GLES20.glUniform2f(location, x, y);
+	}
+
+	public void glUniform4f(int location, float x, float y, float z, float w) {
+		GLES20.glUniform4f(location, x, y, z, w);
+	}
+
+	public void glUseProgram(int program) {
+		GLES20.glUseProgram(program);
+	}
+
+	public void glVertexAttrib2f(int index, float x, float y) {
+		GLES20.glVertexAttrib2f(index, x, y);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      int offset) {
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      Buffer ptr) {
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+	}
+
+	public void glViewport(int x, int y, int width, int height) {
+		GLES20.glViewport(x, y, width, height);
+	}
+}
@@ -39,4 +39,9 @@ public class GLMapActivity extends Activity {
         super.onResume();
         mView.onResume();
     }
+
+    @Override public void onLowMemory() {
+        super.onLowMemory();
+        mView.onLowMemory();
+    }
 }
@@ -5,52 +5,423 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import android.util.FloatMath;
 import android.util.Log;
 
+/**
+ * Decodes tile files into vertex buffers. A loader keeps its scratch arrays
+ * and file handles between calls and is therefore not thread-safe: every
+ * decoding thread uses its own instance, see {@link TileLoaderPool}.
+ */
 class GLMapLoader {
 	private final boolean DEBUG = false;
 
 	private static final String TAG = "GLMapLoader";
 
-	private static final String tiledir = "/sdcard/GLMap/tiles/";
+	// the tests run on a JVM with the tiles in another directory
+	static final String tiledir = System.getProperty("glmap.tiles", "/sdcard/GLMap/tiles/");
+	static final String archiveFile = tiledir + "tiles.map";
 
 	private static final int LINE_DATA_SIZE = 28;
 	private static final int POLYGON_DATA_SIZE = 8;
 	private static final int HEADER_SIZE = 8;
-	private static final int VERTEX_LINE_FLOATS = 5;
+	private static final int TESSELLATED_LINE_VERTEX_SIZE = 8;
 	private static final int VERTEX_COLOR_BYTES = 8;
-	private static final int POLY_VERTEX_SIZE = 8;
+	private static final int POLY_VERTEX_SIZE = 4;
+
+	// tiles with more line vertices need int indices
+	private static final int MAX_SHORT_INDEX_VERTICES = 65536;
+
+	// Triangulate polygons by ear clipping, so that the renderer can draw
+	// them directly. Otherwise they are triangle fans around the first
+	// point of the tile, which need the stencil buffer to be filled.
+	static final boolean TRIANGULATE_POLYGONS = true;
+
+	// Write line vertices on the centre line with their extrusion to the
+	// line edge, which the vertex shader scales by the current line width.
+	// Otherwise the vertices are extruded here, in the format of the
+	// pre-tessellated tiles.
+	static final boolean EXTRUDE_LINES_IN_SHADER = true;
+	private static final int LINE_VERTEX_SIZE = EXTRUDE_LINES_IN_SHADER ? 12
+	      : TESSELLATED_LINE_VERTEX_SIZE;
+
+	// Levels of detail: the geometry is simplified to these tolerances in
+	// metres, level 0 keeps all points. A level is only built if it drops
+	// at least a tenth of the points of the previous level, otherwise it
+	// shares the geometry of the previous level.
+	static final float[] LOD_TOLERANCE = { 0, 2, 8, 32 };
+	private static final float LOD_MIN_REDUCTION = 0.9f;
+
+	// finest quantisation step of vertex positions, in metres
+	private static final float MIN_POSITION_SCALE = 1 / 64f;
+
+	// Compressed .line/.poly sections, see mapgenerator.c write_points()
+	private static final int COMPRESSED_MAGIC = 0x434d4c47; // "GLMC"
+	private static final int COMPRESSED_VERSION = 1;
+	private static final int COMPRESSED_HEADER_SIZE = 28;
+
+	// Pre-tessellated tile format, see mapgenerator.c write_vertices()
+	private static final int VERTEX_MAGIC = 0x564d4c47; // "GLMV"
+	private static final int VERTEX_FORMAT_VERSION = 5;
+	private static final int VERTEX_HEADER_SIZE = 64;
+	private static final int VERTEX_LAYER_SIZE = 32;
 	private ByteBuffer fileBuffer;
 
-	private int coordPos;
-	private int colorPos;
+	private final BufferPool bufferPool;
+	private final TileArchive archive;
+
+	// Header size and points of the section being decoded
+	private int headerSize;
+	private int nrofPoints;
+	private PointReader points;
+
+	// The output buffers of the tile being decoded. Vertices are written
+	// straight into these, there is no staging copy.
+	private ByteBuffer vertices;
+	private ByteBuffer colors;
+	private ByteBuffer indices;
+	private int indexSize;
+
+	// Vertex positions of the section being decoded are stored as shorts of
+	// (position - origin) / scale
+	private float originX;
+	private float originY;
+	private float scale;
+	private float invScale;
+
+	// bounding boxes of the points of the section being decoded and of the
+	// line vertices, which reach beyond the points by the line width
+	private final BoundingBox pointBounds = new BoundingBox();
+	private final BoundingBox vertexBounds = new BoundingBox();
+	private float maxExtrusion;
+
+	/**
+	 * @param archive
+	 *            the tile archive to read from, or null to read the separate
+	 *            .line and .poly files of each tile.
+	 */
+	GLMapLoader(BufferPool bufferPool, TileArchive archive) {
+		this.bufferPool = bufferPool;
+		this.archive = archive;
+	}
 
-	private float[] pointArray;
-	private float[] coords = new float[1];
-	private byte[] colors = new byte[1];
+	// Points of the line or polygon being decoded. Only one item is held at
+	// a time, Douglas-Peucker needs random access to its points.
+	private float[] pointX = new float[256];
+	private float[] pointY = new float[256];
+	private int[] segments = new int[64];
+
+	// For each point of the section, the tolerance below which
+	// Douglas-Peucker simplification keeps it. Set in the first pass over
+	// the section, so that the second pass only decodes the points again.
+	private float[] pointTolerance = new float[256];
+
+	// Points of the current line or ring that are kept at the level being
+	// built
+	private float[] keptX = new float[64];
+	private float[] keptY = new float[64];
+
+	// Per section, from scanSection(): the points each item keeps at each
+	// level, their sums, and the first point of the section
+	private int[] keptCounts = new int[LOD_TOLERANCE.length];
+	private final int[] levelPoints = new int[LOD_TOLERANCE.length];
+	private float firstX;
+	private float firstY;
+
+	/**
+	 * Decode the next n points of the section into pointX and pointY.
+	 */
+	private void readPoints(int n) {
+		if (pointX.length < n) {
+			pointX = new float[n];
+			pointY = new float[n];
+		}
 
-	private void addVertex(float[] floats, byte[] color) {
-		System.arraycopy(floats, 0, coords, coordPos, 5);
-		coordPos += VERTEX_LINE_FLOATS;
-		System.arraycopy(color, 0, colors, colorPos, 8);
-		colorPos += VERTEX_COLOR_BYTES;
+		for (int i = 0; i < n; i++) {
+			points.next();
+			pointX[i] = points.x;
+			pointY[i] = points.y;
+		}
 	}
 
-	private int unpackLinesToPolygons(int nrofLines) {
-		int i, j, k;
-		int n = 0;
-		int ind = 0;
+	/**
+	 * Douglas-Peucker on the n points in pointX and pointY: set the
+	 * tolerance below which each point is kept, from pointTolerance[first]
+	 * on. That is the distance of the point to the segment it splits, but no
+	 * more than the tolerance of the point that split off that segment. So
+	 * the points kept for a tolerance are exactly those Douglas-Peucker
+	 * keeps, and coarser levels keep a subset of the points of finer ones.
+	 */
+	private void simplify(int first, int n) {
+		int last = n - 1;
+
+		pointTolerance[first] = Float.MAX_VALUE;
+		pointTolerance[first + last] = Float.MAX_VALUE;
+
+		if (segments.length < 3 * n)
+			segments = new int[3 * n];
+
+		// stack of (start, end, tolerance of the splitting point)
+		int sp = 0;
+		segments[sp++] = 0;
+		segments[sp++] = last;
+		segments[sp++] = Float.floatToRawIntBits(Float.MAX_VALUE);
+
+		while (sp > 0) {
+			float limit = Float.intBitsToFloat(segments[--sp]);
+			int b = segments[--sp];
+			int a = segments[--sp];
+
+			if (b - a < 2)
+				continue;
+
+			float ax = pointX[a];
+			float ay = pointY[a];
+			float dx = pointX[b] - ax;
+			float dy = pointY[b] - ay;
+			float length = dx * dx + dy * dy;
+
+			int split = a + 1;
+			float max = -1;
+
+			for (int i = a + 1; i < b; i++) {
+				float px = pointX[i] - ax;
+				float py = pointY[i] - ay;
+
+				// squared distance to the segment a, b
+				float t = length > 0 ? (px * dx + py * dy) / length : 0;
+				t = Math.max(0, Math.min(1, t));
+				float ex = px - t * dx;
+				float ey = py - t * dy;
+				float d = ex * ex + ey * ey;
+
+				if (d > max) {
+					max = d;
+					split = i;
+				}
+			}
 
-		float a, x, y, nextX, nextY, prevX, prevY, ux, uy, vx, vy, wx, wy;
-		final float[] coord = new float[5];
-		byte[] color = new byte[8];
+			float tolerance = Math.min(FloatMath.sqrt(max), limit);
+			pointTolerance[first + split] = tolerance;
+
+			segments[sp++] = a;
+			segments[sp++] = split;
+			segments[sp++] = Float.floatToRawIntBits(tolerance);
+			segments[sp++] = split;
+			segments[sp++] = b;
+			segments[sp++] = Float.floatToRawIntBits(tolerance);
+		}
+	}
+
+	private static boolean isKept(float tolerance, int level) {
+		return level == 0 || tolerance > LOD_TOLERANCE[level];
+	}
+
+	private int countKeptPoints(int first, int n, int level) {
+		int kept = 0;
+		for (int i = first; i < first + n; i++)
+			if (isKept(pointTolerance[i], level))
+				kept++;
+
+		return kept;
+	}
+
+	/**
+	 * Copy the points of the n points in pointX and pointY that are kept at
+	 * level to keptX and keptY. Their tolerances start at first.
+	 *
+	 * @return the number of points kept
+	 */
+	private int keepPoints(int first, int n, int level) {
+		if (keptX.length < n) {
+			keptX = new float[n];
+			keptY = new float[n];
+		}
+
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if (isKept(pointTolerance[first + i], level)) {
+				keptX[kept] = pointX[i];
+				keptY[kept] = pointY[i];
+				kept++;
+			}
+		}
+		return kept;
+	}
 
-		for (i = 0; i < nrofLines; i++) {
+	/**
+	 * First pass over the nrofItems lines or polygons of the section:
+	 * simplify each, count the points it keeps at each level of detail and
+	 * collect the bounding box of all points. The section header has to be
+	 * read again before the second pass, which decodes the points once more
+	 * to write them out.
+	 */
+	private void scanSection(int nrofItems, int recordSize) {
+		int nrofLevels = LOD_TOLERANCE.length;
+		if (keptCounts.length < nrofItems * nrofLevels)
+			keptCounts = new int[nrofItems * nrofLevels];
+		if (pointTolerance.length < nrofPoints)
+			pointTolerance = new float[nrofPoints];
+
+		Arrays.fill(levelPoints, 0);
+		pointBounds.reset();
+		firstX = 0;
+		firstY = 0;
+		int first = 0;
+
+		for (int i = 0; i < nrofItems; i++) {
+			int size = fileBuffer.getInt(headerSize + i * recordSize);
+			readPoints(size);
+
+			if (size > 0) {
+				simplify(first, size);
+
+				if (first == 0) {
+					firstX = pointX[0];
+					firstY = pointY[0];
+				}
+				for (int j = 0; j < size; j++)
+					pointBounds.add(pointX[j], pointY[j]);
+			}
+
+			for (int l = 0; l < nrofLevels; l++) {
+				int kept = countKeptPoints(first, size, l);
+				keptCounts[i * nrofLevels + l] = kept;
+				levelPoints[l] += kept;
+			}
+			first += size;
+		}
+	}
+
+	/**
+	 * Decide which levels of detail get geometry of their own.
+	 *
+	 * @return for each level, the level whose geometry it uses
+	 */
+	private int[] selectLevels() {
+		int[] levels = new int[LOD_TOLERANCE.length];
+		int kept = levelPoints[0];
+
+		for (int l = 1; l < levels.length; l++) {
+			int n = levelPoints[l];
+			if (n < LOD_MIN_REDUCTION * kept) {
+				levels[l] = l;
+				kept = n;
+			} else {
+				levels[l] = levels[l - 1];
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Choose origin and scale of the section being decoded from the bounding
+	 * box of its points, widened by margin on each side. The origin is in
+	 * whole metres and the scale a power of two, small enough that all
+	 * positions fit into shorts. See mapgenerator.c set_quantization().
+	 */
+	private void setQuantization(float margin) {
+		float minX = pointBounds.minX;
+		float minY = pointBounds.minY;
+		float maxX = pointBounds.maxX;
+		float maxY = pointBounds.maxY;
+
+		originX = 0;
+		originY = 0;
+		scale = MIN_POSITION_SCALE;
+
+		if (nrofPoints > 0) {
+			originX = FloatMath.floor((minX + maxX) / 2 + 0.5f);
+			originY = FloatMath.floor((minY + maxY) / 2 + 0.5f);
+
+			float range = Math.max(Math.max(maxX - originX, originX - minX),
+			                       Math.max(maxY - originY, originY - minY)) + margin;
+
+			while (range > scale * Short.MAX_VALUE)
+				scale *= 2;
+		}
+		invScale = 1 / scale;
+	}
+
+	private short quantize(float position, float origin) {
+		float q = FloatMath.floor((position - origin) * invScale + 0.5f);
+
+		// only sharp miter joins can reach beyond the margin
+		q = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, q));
+
+		return (short) q;
+	}
+
+	/**
+	 * Add a vertex at coord[0], coord[1] extruded by coord[5], coord[6] with
+	 * height coord[2] and texture coordinates coord[3], coord[4].
+	 */
+	private void addVertex(float[] coord, byte[] color) {
+		float ex = coord[5];
+		float ey = coord[6];
+
+		vertexBounds.add(coord[0] + ex, coord[1] + ey);
+		if (EXTRUDE_LINES_IN_SHADER) {
+			vertices.putShort(quantize(coord[0], originX));
+			vertices.putShort(quantize(coord[1], originY));
+			vertices.putShort(quantize(ex, 0));
+			vertices.putShort(quantize(ey, 0));
+			// degenerate segments have no direction, their extrusion is NaN
+			float e = Math.max(Math.abs(ex), Math.abs(ey));
+			if (e > maxExtrusion)
+				maxExtrusion = e;
+		} else {
+			vertices.putShort(quantize(coord[0] + ex, originX));
+			vertices.putShort(quantize(coord[1] + ey, originY));
+		}
+		vertices.put((byte) FloatMath.floor(coord[2] * 10 + 0.5f));
+		vertices.put((byte) coord[3]);
+		vertices.put((byte) coord[4]);
+		vertices.put((byte) 0);
+		colors.put(color, 0, VERTEX_COLOR_BYTES);
+	}
+
+	/**
+	 * Add the triangles between consecutive (left, right) vertex pairs of a
+	 * line, wound the same way as the triangle strip through them.
+	 */
+	private void addLineIndices(int first, int nrofPairs) {
+		for (int k = 0; k < nrofPairs - 1; k++) {
+			int left = first + 2 * k;
+			int right = left + 1;
+
+			addIndex(right);
+			addIndex(left);
+			addIndex(left + 2);
+
+			addIndex(right);
+			addIndex(left + 2);
+			addIndex(right + 2);
+		}
+	}
+
+	private void addIndex(int index) {
+		if (indexSize == 2)
+			indices.putShort((short) index);
+		else
+			indices.putInt(index);
+	}
+
+	/**
+	 * Tessellate the lines at all built levels of detail in one pass over
+	 * the section. The vertices and indices of level l are written from
+	 * vertexCursor[l] and indexCursor[l] on, and the cursors advanced.
+	 */
+	private void unpackLinesToPolygons(int nrofLines, int[] levels, int[] vertexCursor,
+	      int[] indexCursor) {
+		fileBuffer.position(headerSize);
+		int first = 0;
+
+		for (int i = 0; i < nrofLines; i++) {
 			int length = fileBuffer.getInt();
 			float width = fileBuffer.getFloat();
 			float z = fileBuffer.getFloat(); // height
@@ -59,518 +430,1054 @@ class GLMapLoader {
 			boolean bridge = fileBuffer.getInt() != 0;
 			boolean tunnel = fileBuffer.getInt() != 0;
 
-			for (k = 0; k < 4; k++) {
-				color[k + 4] = (byte) (outlineColor >> (k * 8));
-				color[k] = (byte) (fillColor >> (k * 8));
+			for (int k = 0; k < 4; k++) {
+				lineColor[k + 4] = (byte) (outlineColor >> (k * 8));
+				lineColor[k] = (byte) (fillColor >> (k * 8));
 			}
 			if (bridge) {
 				// Add an outline to all bridges
-				color[0 + 4] = (byte) 144;
-				color[1 + 4] = (byte) 144;
-				color[2 + 4] = (byte) 144;
-				color[3 + 4] = (byte) 255;
+				lineColor[0 + 4] = (byte) 144;
+				lineColor[1 + 4] = (byte) 144;
+				lineColor[2 + 4] = (byte) 144;
+				lineColor[3 + 4] = (byte) 255;
 			}
 
-			x = pointArray[n];
-			y = pointArray[n + 1];
-			n += 2;
-			nextX = pointArray[n];
-			nextY = pointArray[n + 1];
-			n += 2;
+			readPoints(length);
 
-			// Calculate triangle corners for the given width
-			vx = nextX - x;
-			vy = nextY - y;
-			a = FloatMath.sqrt(vx * vx + vy * vy);
-			vx = vx / a;
-			vy = vy / a;
+			for (int l = 0; l < levels.length; l++) {
+				if (levels[l] != l)
+					continue;
 
-			ux = -vy;
-			uy = vx;
-
-			float shrink = 0.2f;
-
-			float uxw = ux * width;
-			float uyw = uy * width;
-			float sxw = vx * width * shrink;
-			float syw = vy * width * shrink;
-			float vxw = vx * width * (1 - shrink);
-			float vyw = vy * width * (1 - shrink);
-
-			coord[2] = z;
-
-			if (!bridge && !tunnel) {
-				// Add the first point twice to be able to draw with
-				// GL_TRIANGLE_STRIP
-				coord[0] = x + uxw - vxw;
-				coord[1] = y + uyw - vyw;
-				coord[3] = -1.0f;
-				coord[4] = 1.0f;
-				addVertex(coord, color);
-				addVertex(coord, color);
-
-				coord[0] = x - uxw - vxw;
-				coord[1] = y - uyw - vyw;
-				coord[3] = 1.0f;
-				coord[4] = 1.0f;
-				addVertex(coord, color);
-
-				// Start of line
-				coord[0] = x + uxw + sxw;
-				coord[1] = y + uyw + syw;
-				coord[3] = -1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				coord[0] = x - uxw + sxw;
-				coord[1] = y - uyw + syw;
-				coord[3] = 1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				ind += 5;
+				int n = keepPoints(first, length, l);
+				if (n < 2)
+					continue;
 
-			} else {
-				// Add the first point twice to be able to draw with
-				// GL_TRIANGLE_STRIP
-				coord[0] = x + uxw;
-				coord[1] = y + uyw;
-				coord[3] = -1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-				addVertex(coord, color);
-
-				coord[0] = x - uxw;
-				coord[1] = y - uyw;
-				coord[3] = 1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				ind += 3;
-			}
+				vertices.position(vertexCursor[l] * LINE_VERTEX_SIZE);
+				colors.position(vertexCursor[l] * VERTEX_COLOR_BYTES);
+				indices.position(indexCursor[l] * indexSize);
 
-			prevX = x;
-			prevY = y;
-			x = nextX;
-			y = nextY;
+				vertexCursor[l] = addLine(n, width, z, lineColor, bridge, tunnel, vertexCursor[l]);
+				indexCursor[l] = indices.position() / indexSize;
+			}
+			first += length;
+		}
+	}
 
-			for (j = 1; j < length - 1; j++) {
-
-				nextX = pointArray[n];
-				nextY = pointArray[n + 1];
-				n += 2;
-
-				// Unit vector pointing back to previous node
-				vx = prevX - x;
-				vy = prevY - y;
-				a = FloatMath.sqrt(vx * vx + vy * vy);
-				vx = vx / a;
-				vy = vy / a;
-
-				// Unit vector pointing forward to next node
-				wx = nextX - x;
-				wy = nextY - y;
-				a = FloatMath.sqrt(wx * wx + wy * wy);
-				wx = wx / a;
-				wy = wy / a;
-
-				// Sum of these two vectors points
-				ux = vx + wx;
-				uy = vy + wy;
-				a = -wy * ux + wx * uy;
-
-				if (a < 0.01 && a > -0.01) {
-					// Almost straight, use normal vector
-					ux = -wy;
-					uy = wx;
-				} else {
-					// Normalize u, and project normal vector onto this
-					ux = ux / a;
-					uy = uy / a;
-				}
+	/**
+	 * Number of vertices of a line with n >= 2 points kept: a pair per
+	 * point and, unless it is a bridge or a tunnel, another pair at each end
+	 * for the rounded line edges. Two triangles join consecutive pairs.
+	 */
+	private static int lineVertices(int n, boolean bridge, boolean tunnel) {
+		return bridge || tunnel ? 2 * n : 2 * n + 4;
+	}
 
-				uxw = ux * width;
-				uyw = uy * width;
+	private final float[] coord = new float[7];
+	private final byte[] lineColor = new byte[8];
+
+	/**
+	 * Tessellate the n points in keptX and keptY into the line starting at
+	 * vertex ind.
+	 *
+	 * @return the vertex after the last one written
+	 */
+	private int addLine(int n, float width, float z, byte[] color, boolean bridge, boolean tunnel,
+	      int ind) {
+		int j;
+		float a, x, y, nextX, nextY, prevX, prevY, ux, uy, vx, vy, wx, wy;
 
-				coord[0] = x + uxw;
-				coord[1] = y + uyw;
-				coord[3] = -1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
+		x = keptX[0];
+		y = keptY[0];
+		nextX = keptX[1];
+		nextY = keptY[1];
+
+		// Calculate triangle corners for the given width
+		vx = nextX - x;
+		vy = nextY - y;
+		a = FloatMath.sqrt(vx * vx + vy * vy);
+		vx = vx / a;
+		vy = vy / a;
+
+		ux = -vy;
+		uy = vx;
+
+		float shrink = 0.2f;
+
+		float uxw = ux * width;
+		float uyw = uy * width;
+		float sxw = vx * width * shrink;
+		float syw = vy * width * shrink;
+		float vxw = vx * width * (1 - shrink);
+		float vyw = vy * width * (1 - shrink);
+
+		coord[0] = x;
+		coord[1] = y;
+		coord[2] = z;
+		int first = ind;
+
+		if (!bridge && !tunnel) {
+			// For rounded line edges
+			coord[5] = uxw - vxw;
+			coord[6] = uyw - vyw;
+			coord[3] = -1.0f;
+			coord[4] = 1.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw - vxw;
+			coord[6] = -uyw - vyw;
+			coord[3] = 1.0f;
+			coord[4] = 1.0f;
+			addVertex(coord, color);
+
+			// Start of line
+			coord[5] = uxw + sxw;
+			coord[6] = uyw + syw;
+			coord[3] = -1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw + sxw;
+			coord[6] = -uyw + syw;
+			coord[3] = 1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			ind += 4;
+
+		} else {
+			coord[5] = uxw;
+			coord[6] = uyw;
+			coord[3] = -1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw;
+			coord[6] = -uyw;
+			coord[3] = 1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			ind += 2;
+		}
 
-				coord[0] = x - uxw;
-				coord[1] = y - uyw;
-				coord[3] = 1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
+		prevX = x;
+		prevY = y;
+		x = nextX;
+		y = nextY;
 
-				ind += 2;
+		for (j = 1; j < n - 1; j++) {
 
-				prevX = x;
-				prevY = y;
-				x = nextX;
-				y = nextY;
-			}
+			nextX = keptX[j + 1];
+			nextY = keptY[j + 1];
 
+			// Unit vector pointing back to previous node
 			vx = prevX - x;
 			vy = prevY - y;
-
 			a = FloatMath.sqrt(vx * vx + vy * vy);
 			vx = vx / a;
 			vy = vy / a;
 
-			ux = vy;
-			uy = -vx;
+			// Unit vector pointing forward to next node
+			wx = nextX - x;
+			wy = nextY - y;
+			a = FloatMath.sqrt(wx * wx + wy * wy);
+			wx = wx / a;
+			wy = wy / a;
+
+			// Sum of these two vectors points
+			ux = vx + wx;
+			uy = vy + wy;
+			a = -wy * ux + wx * uy;
+
+			if (a < 0.01 && a > -0.01) {
+				// Almost straight, use normal vector
+				ux = -wy;
+				uy = wx;
+			} else {
+				// Normalize u, and project normal vector onto this
+				ux = ux / a;
+				uy = uy / a;
+			}
 
 			uxw = ux * width;
 			uyw = uy * width;
 
-			if (!bridge && !tunnel) {
-				sxw = vx * width * shrink;
-				syw = vy * width * shrink;
-				vxw = vx * width * (1 - shrink);
-				vyw = vy * width * (1 - shrink);
-
-				coord[0] = x + uxw + sxw;
-				coord[1] = y + uyw + syw;
-				coord[3] = -1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				coord[0] = x - uxw + sxw;
-				coord[1] = y - uyw + syw;
-				coord[3] = 1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				// For rounded line edges
-				coord[0] = x + uxw - vxw;
-				coord[1] = y + uyw - vyw;
-				coord[3] = -1.0f;
-				coord[4] = -1.0f;
-				addVertex(coord, color);
-
-				// Add the last vertex twice to be able to draw with
-				// GL_TRIANGLE_STRIP
-				coord[0] = x - uxw - vxw;
-				coord[1] = y - uyw - vyw;
-				coord[3] = 1.0f;
-				coord[4] = -1.0f;
-				addVertex(coord, color);
-				addVertex(coord, color);
-
-				ind += 5;
+			coord[0] = x;
+			coord[1] = y;
+			coord[5] = uxw;
+			coord[6] = uyw;
+			coord[3] = -1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
 
-			} else {
-				coord[0] = x + uxw;
-				coord[1] = y + uyw;
-				coord[3] = -1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-
-				// Add the last vertex twice to be able to draw with
-				// GL_TRIANGLE_STRIP
-				coord[0] = x - uxw;
-				coord[1] = y - uyw;
-				coord[3] = 1.0f;
-				coord[4] = 0.0f;
-				addVertex(coord, color);
-				addVertex(coord, color);
-
-				ind += 3;
-			}
+			coord[5] = -uxw;
+			coord[6] = -uyw;
+			coord[3] = 1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			ind += 2;
+
+			prevX = x;
+			prevY = y;
+			x = nextX;
+			y = nextY;
+		}
+
+		vx = prevX - x;
+		vy = prevY - y;
+
+		a = FloatMath.sqrt(vx * vx + vy * vy);
+		vx = vx / a;
+		vy = vy / a;
+
+		ux = vy;
+		uy = -vx;
+
+		uxw = ux * width;
+		uyw = uy * width;
+
+		coord[0] = x;
+		coord[1] = y;
+
+		if (!bridge && !tunnel) {
+			sxw = vx * width * shrink;
+			syw = vy * width * shrink;
+			vxw = vx * width * (1 - shrink);
+			vyw = vy * width * (1 - shrink);
+
+			coord[5] = uxw + sxw;
+			coord[6] = uyw + syw;
+			coord[3] = -1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw + sxw;
+			coord[6] = -uyw + syw;
+			coord[3] = 1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			// For rounded line edges
+			coord[5] = uxw - vxw;
+			coord[6] = uyw - vyw;
+			coord[3] = -1.0f;
+			coord[4] = -1.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw - vxw;
+			coord[6] = -uyw - vyw;
+			coord[3] = 1.0f;
+			coord[4] = -1.0f;
+			addVertex(coord, color);
+
+			ind += 4;
+
+		} else {
+			coord[5] = uxw;
+			coord[6] = uyw;
+			coord[3] = -1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			coord[5] = -uxw;
+			coord[6] = -uyw;
+			coord[3] = 1.0f;
+			coord[4] = 0.0f;
+			addVertex(coord, color);
+
+			ind += 2;
 		}
 
+		addLineIndices(first, (ind - first) / 2);
+
 		return ind;
 	}
 
-	private int unpackPolygons(GLMapTile tile, int nrofPolygons) {
-		int size;
-		byte[] rgba = new byte[4];
+	// Scratch tables for grouping polygons by colour
+	private int[] polygonLayer = new int[1];
+	private int[] layerCursor = new int[1];
+	private int[] layerPolygon = new int[1];
+	private int[] colorKeys = new int[64];
+	private int[] colorLayers = new int[64];
+
+	/**
+	 * Find the layer for a packed RGBA colour in the open addressing table,
+	 * adding a new layer when the colour was not seen before.
+	 */
+	private int findLayer(ArrayList<PolygonLayer> layers, int color, int headerPos) {
+		int mask = colorKeys.length - 1;
+		int h = (color * 0x9E3779B9) >>> 16;
+
+		for (int i = h & mask;; i = (i + 1) & mask) {
+			int l = colorLayers[i];
+			if (l < 0)
+				break;
+			if (colorKeys[i] == color)
+				return l;
+		}
 
-		tile.polygonLayers = new ArrayList<PolygonLayer>();
+		// keep the table at most half full
+		if (2 * (layers.size() + 1) > colorKeys.length) {
+			int[] keys = colorKeys;
+			int[] values = colorLayers;
+			colorKeys = new int[keys.length * 2];
+			colorLayers = new int[keys.length * 2];
+			Arrays.fill(colorLayers, -1);
+			mask = colorKeys.length - 1;
+
+			for (int j = 0; j < keys.length; j++) {
+				if (values[j] < 0)
+					continue;
+				int i = ((keys[j] * 0x9E3779B9) >>> 16) & mask;
+				while (colorLayers[i] >= 0)
+					i = (i + 1) & mask;
+				colorKeys[i] = keys[j];
+				colorLayers[i] = values[j];
+			}
+		}
 
-		fileBuffer.position(HEADER_SIZE);
+		int i = h & mask;
+		while (colorLayers[i] >= 0)
+			i = (i + 1) & mask;
 
-		// Scan through the polygons and set up the needed layers
-		for (int i = 0; i < nrofPolygons; i++) {
-			boolean found = false;
+		int l = layers.size();
+		colorKeys[i] = color;
+		colorLayers[i] = l;
 
-			size = fileBuffer.getInt();
-			fileBuffer.get(rgba);
+		PolygonLayer layer = new PolygonLayer();
+		for (int k = 0; k < 4; k++)
+			layer.rgba[k] = fileBuffer.get(headerPos + 4 + k);
+		layers.add(layer);
 
-			int thisPolygonVertices = size + 2;
+		return l;
+	}
 
-			for (PolygonLayer layer : tile.polygonLayers) {
-				if (colorIsEqual(layer.rgba, rgba)) {
-					layer.nrofVertices += thisPolygonVertices;
-					layer.nrofPolygons++;
-					found = true;
-					break;
-				}
-			}
+	// Links between the remaining points of the ring being triangulated
+	private int[] ringNext = new int[64];
+	private int[] ringPrev = new int[64];
 
-			if (!found) {
-				PolygonLayer layer = new PolygonLayer();
-				tile.polygonLayers.add(layer);
+	/**
+	 * Number of vertices a polygon with size points takes in the vertex
+	 * buffer, as a triangle fan or as triangles.
+	 */
+	private static int polygonVertices(int size) {
+		if (TRIANGULATE_POLYGONS)
+			return size < 3 ? 0 : 3 * (size - 2);
 
-				layer.nrofVertices = thisPolygonVertices;
-				layer.nrofPolygons = 1;
-				for (int k = 0; k < 4; k++)
-					layer.rgba[k] = rgba[k];
-			}
+		return size + 2;
+	}
+
+	private static float cross(float ax, float ay, float bx, float by, float cx, float cy) {
+		return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+	}
 
-			tile.nrofPolygonVertices += thisPolygonVertices;
+	/**
+	 * @return true if no other remaining vertex of the ring lies inside or
+	 *         on the convex corner prev, i, next.
+	 */
+	private boolean isEar(int prev, int i, int next, float sign) {
+		float[] x = keptX;
+		float[] y = keptY;
+
+		if (sign * cross(x[prev], y[prev], x[i], y[i], x[next], y[next]) <= 0)
+			return false;
+
+		for (int r = ringNext[next]; r != prev; r = ringNext[r]) {
+			if (sign * cross(x[prev], y[prev], x[i], y[i], x[r], y[r]) >= 0
+			      && sign * cross(x[i], y[i], x[next], y[next], x[r], y[r]) >= 0
+			      && sign * cross(x[next], y[next], x[prev], y[prev], x[r], y[r]) >= 0)
+				return false;
 		}
+		return true;
+	}
 
-		int layers = tile.polygonLayers.size();
-		if (layers == 0)
-			return 0;
+	private int addRingVertex(int pos, int i) {
+		vertices.putShort(pos * POLY_VERTEX_SIZE, quantize(keptX[i], originX));
+		vertices.putShort(pos * POLY_VERTEX_SIZE + 2, quantize(keptY[i], originY));
+		return pos + 1;
+	}
 
-		// Set up start indices
-		PolygonLayer layer = tile.polygonLayers.get(0);
-		layer.startVertex = 0;
-		layer.polygonIndex = new int[layer.nrofPolygons * 2];
+	/**
+	 * Write the polygon ring of size points in keptX and keptY as triangles
+	 * by ear clipping, starting at vertex pos. Exactly polygonVertices(size)
+	 * vertices are written, rings with repeated points are padded with
+	 * degenerate triangles.
+	 */
+	private void triangulate(int size, int pos) {
+		if (ringNext.length < size) {
+			ringNext = new int[size];
+			ringPrev = new int[size];
+		}
 
-		for (int l = 1; l < layers; l++) {
+		float[] ringX = keptX;
+		float[] ringY = keptY;
+
+		// Drop repeated points, they would block every ear around them
+		int m = 0;
+		for (int i = 0; i < size; i++) {
+			if (m > 0 && ringX[i] == ringX[m - 1] && ringY[i] == ringY[m - 1])
+				continue;
+			ringX[m] = ringX[i];
+			ringY[m] = ringY[i];
+			m++;
+		}
+		while (m > 1 && ringX[m - 1] == ringX[0] && ringY[m - 1] == ringY[0])
+			m--;
+
+		int end = pos + polygonVertices(size);
+
+		// Orientation of the ring, relative to its first point to keep the
+		// precision of the float coordinates
+		double area = 0;
+		for (int i = 0, j = m - 1; i < m; j = i++)
+			area += (double) (ringX[j] - ringX[0]) * (ringY[i] - ringY[0])
+			      - (double) (ringX[i] - ringX[0]) * (ringY[j] - ringY[0]);
+		float sign = area < 0 ? -1 : 1;
+
+		for (int i = 0; i < m; i++) {
+			ringNext[i] = i + 1 < m ? i + 1 : 0;
+			ringPrev[i] = i > 0 ? i - 1 : m - 1;
+		}
 
-			tile.polygonLayers.get(l).startVertex =
-			   layer.startVertex + layer.nrofVertices;
+		int remaining = m;
+		int tries = 0;
 
-			layer = tile.polygonLayers.get(l);
+		for (int i = 0; remaining >= 3;) {
+			int prev = ringPrev[i];
+			int next = ringNext[i];
 
-			layer.polygonIndex = new int[layer.nrofPolygons * 2];
+			// Self-intersecting rings can run out of ears, then the corner
+			// is clipped anyway
+			if (remaining > 3 && tries < remaining && !isEar(prev, i, next, sign)) {
+				i = next;
+				tries++;
+				continue;
+			}
+
+			pos = addRingVertex(pos, prev);
+			pos = addRingVertex(pos, i);
+			pos = addRingVertex(pos, next);
+
+			ringNext[prev] = next;
+			ringPrev[next] = prev;
+			remaining--;
+			tries = 0;
+			i = prev;
 		}
 
-		// Load all the polygon vertices into the correct layer
-		float originX = pointArray[0];
-		float originY = pointArray[1];
+		while (pos < end)
+			pos = addRingVertex(pos, 0);
+	}
 
-		int tgtIdx = 0;
+	/**
+	 * Group the polygons by colour into layers and write them at all built
+	 * levels of detail in one pass over the section. The layers of each
+	 * level follow those of the level before, from vertex 0 on.
+	 *
+	 * @return the layers of each level of detail
+	 */
+	private ArrayList<ArrayList<PolygonLayer>> unpackPolygons(int nrofPolygons, int[] levels) {
+		int nrofLevels = levels.length;
+		if (polygonLayer.length < nrofPolygons)
+			polygonLayer = new int[nrofPolygons];
+		Arrays.fill(colorLayers, -1);
+
+		fileBuffer.position(headerSize);
+
+		// One pass over the header table: find the layer of each polygon,
+		// layers are keyed on the packed RGBA value
+		ArrayList<PolygonLayer> colorOrder = new ArrayList<PolygonLayer>();
 
-		for (int l = 0; l < layers; l++) {
-			layer = tile.polygonLayers.get(l);
-			int srcIdx = 0;
-			int p = 0;
+		for (int i = 0; i < nrofPolygons; i++) {
+			int headerPos = fileBuffer.position();
+			fileBuffer.getInt(); // size
+			int color = fileBuffer.getInt();
 
-			fileBuffer.position(HEADER_SIZE);
+			polygonLayer[i] = findLayer(colorOrder, color, headerPos);
+		}
+
+		int nrofLayers = colorOrder.size();
+		if (layerCursor.length < nrofLevels * nrofLayers) {
+			layerCursor = new int[nrofLevels * nrofLayers];
+			layerPolygon = new int[nrofLevels * nrofLayers];
+		}
+
+		// Count the vertices and polygons of each layer at each level and
+		// set up start indices
+		ArrayList<ArrayList<PolygonLayer>> polygonLevels = new ArrayList<ArrayList<PolygonLayer>>(
+		      nrofLevels);
+		int start = 0;
+
+		for (int l = 0; l < nrofLevels; l++) {
+			if (levels[l] != l) {
+				polygonLevels.add(polygonLevels.get(l - 1));
+				continue;
+			}
+
+			ArrayList<PolygonLayer> layers = colorOrder;
+			if (l > 0) {
+				layers = new ArrayList<PolygonLayer>(nrofLayers);
+				for (PolygonLayer c : colorOrder) {
+					PolygonLayer layer = new PolygonLayer();
+					System.arraycopy(c.rgba, 0, layer.rgba, 0, 4);
+					layers.add(layer);
+				}
+			}
 
 			for (int i = 0; i < nrofPolygons; i++) {
-				size = fileBuffer.getInt();
-				fileBuffer.get(rgba);
+				PolygonLayer layer = layers.get(polygonLayer[i]);
+				layer.nrofVertices += polygonVertices(keptCounts[i * nrofLevels + l]);
+				layer.nrofPolygons++;
+			}
+
+			for (int k = 0; k < nrofLayers; k++) {
+				PolygonLayer layer = layers.get(k);
+				layer.startVertex = start;
+				layer.polygonIndex = new int[layer.nrofPolygons * 2];
+				layerCursor[l * nrofLayers + k] = start;
+				layerPolygon[l * nrofLayers + k] = 0;
+				start += layer.nrofVertices;
+			}
+			polygonLevels.add(layers);
+		}
+
+		// One pass over the polygons, writing each to the next free
+		// position of its layer at each level
+		short fanX = quantize(firstX, originX);
+		short fanY = quantize(firstY, originY);
+		int first = 0;
 
-				if (colorIsEqual(layer.rgba, rgba)) {
+		for (int i = 0; i < nrofPolygons; i++) {
+			int polygonSize = fileBuffer.getInt(headerSize + i * POLYGON_DATA_SIZE);
+			readPoints(polygonSize);
+
+			for (int l = 0; l < nrofLevels; l++) {
+				if (levels[l] != l)
+					continue;
+
+				int size = keepPoints(first, polygonSize, l);
+				int c = l * nrofLayers + polygonLayer[i];
+				PolygonLayer layer = polygonLevels.get(l).get(polygonLayer[i]);
 
-					coords[coordPos++] = originX;
-					coords[coordPos++] = originY;
-					tgtIdx++;
+				for (int j = 0; j < size; j++)
+					layer.bounds.add(keptX[j], keptY[j]);
 
+				int tgtIdx = layerCursor[c];
+
+				if (TRIANGULATE_POLYGONS) {
+					int n = polygonVertices(size);
+					triangulate(size, tgtIdx);
+
+					int p = layerPolygon[c];
 					layer.polygonIndex[p++] = tgtIdx;
-					layer.polygonIndex[p++] = size + 1;
+					layer.polygonIndex[p++] = n;
+					layerPolygon[c] = p;
+
+					layerCursor[c] = tgtIdx + n;
+					continue;
+				}
+
+				int pos = tgtIdx * POLY_VERTEX_SIZE;
 
-					float startX = pointArray[srcIdx];
-					float startY = pointArray[srcIdx + 1];
+				vertices.putShort(pos, fanX);
+				vertices.putShort(pos + 2, fanY);
+				pos += POLY_VERTEX_SIZE;
+				tgtIdx++;
 
-					for (int j = 0; j < size * 2; j += 2) {
-						coords[coordPos++] = pointArray[srcIdx + j];
-						coords[coordPos++] = pointArray[srcIdx + j + 1];
-						tgtIdx++;
-					}
+				int p = layerPolygon[c];
+				layer.polygonIndex[p++] = tgtIdx;
+				layer.polygonIndex[p++] = size + 1;
+				layerPolygon[c] = p;
 
-					coords[coordPos++] = startX;
-					coords[coordPos++] = startY;
-					tgtIdx++;
+				for (int j = 0; j < size; j++) {
+					vertices.putShort(pos, quantize(keptX[j], originX));
+					vertices.putShort(pos + 2, quantize(keptY[j], originY));
+					pos += POLY_VERTEX_SIZE;
 				}
+				tgtIdx += size;
 
-				srcIdx += size * 2;
+				vertices.putShort(pos, quantize(keptX[0], originX));
+				vertices.putShort(pos + 2, quantize(keptY[0], originY));
+				tgtIdx++;
+
+				layerCursor[c] = tgtIdx;
 			}
+			first += polygonSize;
 		}
 
-		return tgtIdx;
+		return polygonLevels;
 	}
 
-	static boolean colorIsEqual(byte rgba1[], byte rgba2[]) {
-		int k;
 
-		for (k = 0; k < 4; k++) {
-			if (rgba1[k] != rgba2[k]) {
-				return false;
+	/**
+	 * Find the pyramid levels there are separate tile files of.
+	 *
+	 * @return one bit per level
+	 */
+	static int findLevels() {
+		String[] names = new File(tiledir).list();
+		if (names == null)
+			return 0;
+
+		// <x>_<y>.line at level 0, <x>_<y>_<level>.line above
+		int levels = 0;
+		for (String name : names) {
+			if (!name.endsWith(".line"))
+				continue;
+
+			String[] parts = name.substring(0, name.length() - 5).split("_");
+			try {
+				int level = parts.length == 3 ? Integer.parseInt(parts[2]) : 0;
+				if (parts.length <= 3 && level >= 0 && level < 32)
+					levels |= 1 << level;
+			} catch (NumberFormatException e) {
+				// not a tile
 			}
 		}
-
-		return true;
+		return levels;
 	}
 
-	private static RandomAccessFile inputFile;
-	private static FileChannel fileChannel;
+	/**
+	 * Map a single tile file. The file is closed again right away, the
+	 * mapping stays valid until it is garbage collected.
+	 */
+	private ByteBuffer mapFile(String fileName) {
+		RandomAccessFile inputFile = null;
 
-	private boolean openFile(String fileName) {
 		try {
 			File file = new File(fileName);
 
+			// there are no tiles for areas without map data
 			if (!file.exists()) {
-				Log.e(TAG, "file does not exist: " + fileName);
-				return false;
+				if (DEBUG)
+					Log.i(TAG, "file does not exist: " + fileName);
+				return null;
 			} else if (!file.isFile()) {
 				Log.e(TAG, "not a file: " + fileName);
-				return false;
+				return null;
 			} else if (!file.canRead()) {
 				Log.e(TAG, "cannot read file: " + fileName);
-				return false;
+				return null;
 			}
 			inputFile = new RandomAccessFile(file, "r");
 
-			fileChannel = inputFile.getChannel();
+			FileChannel fileChannel = inputFile.getChannel();
 
 			// mmap file
-			fileBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size())
+			return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size())
 			      .order(ByteOrder.nativeOrder());
 
 		} catch (IOException e) {
-			Log.e(TAG, "openFile: " + e);
-			return false;
+			Log.e(TAG, "mapFile: " + e);
+			return null;
+		} finally {
+			try {
+				if (inputFile != null)
+					inputFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
-		return true;
 	}
 
-	private boolean closeFile() {
-		try {
-			fileChannel.close();
-			inputFile.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Read the header of the current line or polygon section and set up the
+	 * point reader for it. Points are either absolute floats or, in
+	 * compressed sections, varint deltas of quantised tile-local
+	 * coordinates.
+	 *
+	 * @return the number of lines or polygons, or -1 if the section cannot
+	 *         be read.
+	 */
+	private int readSectionHeader(int recordSize) {
+		int nrofItems;
+
+		if (fileBuffer.getInt(0) == COMPRESSED_MAGIC) {
+			if (fileBuffer.getInt(4) != COMPRESSED_VERSION) {
+				Log.e(TAG, "unsupported compressed format version " + fileBuffer.getInt(4));
+				return -1;
+			}
+			nrofItems = fileBuffer.getInt(8);
+			nrofPoints = fileBuffer.getInt(12);
+			headerSize = COMPRESSED_HEADER_SIZE;
+
+			points = new PointReader.Deltas(fileBuffer, headerSize + nrofItems * recordSize,
+			                                fileBuffer.getInt(16), fileBuffer.getInt(20),
+			                                fileBuffer.getFloat(24));
+		} else {
+			nrofItems = fileBuffer.getInt(0);
+			nrofPoints = fileBuffer.getInt(4);
+			headerSize = HEADER_SIZE;
+
+			points = new PointReader.Floats(fileBuffer, headerSize + nrofItems * recordSize);
 		}
-		return true;
+
+		fileBuffer.position(headerSize);
+
+		return nrofItems;
 	}
 
-	public synchronized boolean loadMapTile(String tileName, GLMapTile tile) {
-		// Load map data from files
+	/**
+	 * Return the buffers of a previous load that were never uploaded.
+	 */
+	private void releaseBuffers(GLMapTile tile) {
+		bufferPool.release(tile.lineVerticesBuffer);
+		bufferPool.release(tile.colorVerticesBuffer);
+		bufferPool.release(tile.lineIndicesBuffer);
+		bufferPool.release(tile.polygonVerticesBuffer);
+		tile.lineVerticesBuffer = null;
+		tile.colorVerticesBuffer = null;
+		tile.lineIndicesBuffer = null;
+		tile.polygonVerticesBuffer = null;
+	}
 
-		// Read in line data
-		String fileName = tiledir + tileName + ".line";
-		if (DEBUG)
-			Log.i(TAG, "Reading map line data from file '" + fileName + "'.");
+	private static ByteBuffer slice(ByteBuffer buf, int length) {
+		ByteBuffer slice = buf.slice().order(ByteOrder.nativeOrder());
+		slice.limit(length);
+		buf.position(buf.position() + length);
+		return slice;
+	}
 
-		if (!openFile(fileName))
+	/**
+	 * Set up a tile from the pre-tessellated format written by 'mapgenerator
+	 * -t'. Only the polygon layer table is parsed, the bounding boxes are
+	 * stored in the header and the layer table. The vertex streams are
+	 * slices of the mapped file that are uploaded as they are.
+	 *
+	 * @return false if the data is not in the current format version or
+	 *         shorter than its header claims, the tile is left as it was.
+	 */
+	private boolean loadVertices(ByteBuffer buf, GLMapTile tile) {
+		if (buf.limit() < VERTEX_HEADER_SIZE || buf.getInt() != VERTEX_MAGIC)
 			return false;
 
-		int nrofLines = fileBuffer.getInt();
-		int nrofLinePoints = fileBuffer.getInt();
-		if (DEBUG)
-			Log.i(TAG, "Found: " + nrofLines + " lines, " + nrofLinePoints + " vertices.");
+		int version = buf.getInt();
+		if (version != VERTEX_FORMAT_VERSION) {
+			if (DEBUG)
+				Log.i(TAG, "Pre-tessellated format version " + version + " not supported.");
+			return false;
+		}
 
-		// For each line, we get at most twice the number of points, plus one
-		// extra node in the beginning and end
-		int nrofLineVertices = 2 * nrofLinePoints + 6 * nrofLines;
+		int nrofLineVertices = buf.getInt();
+		int nrofLineIndices = buf.getInt();
+		int nrofPolygonVertices = buf.getInt();
+		int nrofLayers = buf.getInt();
+		int lineIndexSize = nrofLineVertices > MAX_SHORT_INDEX_VERTICES ? 4 : 2;
+
+		if (nrofLineVertices < 0 || nrofLineIndices < 0 || nrofPolygonVertices < 0
+		      || nrofLayers < 0 || nrofLayers > buf.remaining() / VERTEX_LAYER_SIZE)
+			return corrupt();
+
+		// origins, scales and bounds, read once the section has been checked
+		int transform = buf.position();
+		buf.position(transform + 40);
+
+		ArrayList<PolygonLayer> layers = null;
+		if (nrofLayers > 0)
+			layers = new ArrayList<PolygonLayer>(nrofLayers);
+
+		for (int l = 0; l < nrofLayers; l++) {
+			if (buf.remaining() < VERTEX_LAYER_SIZE)
+				return corrupt();
+
+			PolygonLayer layer = new PolygonLayer();
+			buf.get(layer.rgba);
+			layer.startVertex = buf.getInt();
+			layer.nrofVertices = buf.getInt();
+			layer.nrofPolygons = buf.getInt();
+			readBounds(buf, buf.position(), layer.bounds);
+			buf.position(buf.position() + 16);
+			if (!inRange(layer.startVertex, layer.nrofVertices, nrofPolygonVertices)
+			      || layer.nrofPolygons < 0 || layer.nrofPolygons > buf.remaining() / 8)
+				return corrupt();
 
-		int size = nrofLineVertices * 4 * VERTEX_LINE_FLOATS;
+			layer.polygonIndex = new int[layer.nrofPolygons * 2];
+			buf.asIntBuffer().get(layer.polygonIndex);
+			buf.position(buf.position() + layer.polygonIndex.length * 4);
 
-		// putting each vertex on its own into ByteBuffer took too long...
-		if (coords.length < nrofLineVertices * VERTEX_LINE_FLOATS)
-			coords = new float[nrofLineVertices * VERTEX_LINE_FLOATS];
-		if (colors.length < nrofLineVertices * VERTEX_COLOR_BYTES)
-			colors = new byte[nrofLineVertices * VERTEX_COLOR_BYTES];
+			for (int p = 0; p < layer.nrofPolygons; p++)
+				if (!inRange(layer.polygonIndex[2 * p], layer.polygonIndex[2 * p + 1],
+				             nrofPolygonVertices))
+					return corrupt();
 
-		coordPos = 0;
-		colorPos = 0;
+			layers.add(layer);
+		}
 
-		if (DEBUG)
-			Log.i(TAG, "Parsing map line data.");
+		long streams = (long) nrofLineVertices * (TESSELLATED_LINE_VERTEX_SIZE + VERTEX_COLOR_BYTES)
+		      + (long) nrofLineIndices * lineIndexSize + (long) nrofPolygonVertices
+		      * POLY_VERTEX_SIZE;
+		if (streams > buf.remaining())
+			return corrupt();
+
+		releaseBuffers(tile);
+
+		tile.lineOriginX = buf.getFloat(transform);
+		tile.lineOriginY = buf.getFloat(transform + 4);
+		tile.lineScale = buf.getFloat(transform + 8);
+		tile.polygonOriginX = buf.getFloat(transform + 12);
+		tile.polygonOriginY = buf.getFloat(transform + 16);
+		tile.polygonScale = buf.getFloat(transform + 20);
+		readBounds(buf, transform + 24, tile.bounds);
+		tile.polygonTriangles = true;
+		tile.polygonLayers = layers;
+
+		tile.lineVerticesBuffer = slice(buf, nrofLineVertices * TESSELLATED_LINE_VERTEX_SIZE);
+		tile.colorVerticesBuffer = slice(buf, nrofLineVertices * VERTEX_COLOR_BYTES);
+		tile.lineIndicesBuffer = slice(buf, nrofLineIndices * lineIndexSize);
+		tile.polygonVerticesBuffer = slice(buf, nrofPolygonVertices * POLY_VERTEX_SIZE);
+
+		tile.nrofLineVertices = nrofLineVertices;
+		tile.nrofLineIndices = nrofLineIndices;
+		tile.lineIndexSize = lineIndexSize;
+		tile.lineVertexSize = TESSELLATED_LINE_VERTEX_SIZE;
+		tile.lineExtrusion = 0;
+
+		// only the full geometry
+		tile.lineLevelStart = new int[] { 0 };
+		tile.lineLevelCount = new int[] { nrofLineIndices };
+		tile.polygonLevels = null;
+		tile.nrofPolygonVertices = nrofPolygonVertices;
 
-		if (pointArray == null || pointArray.length < nrofLinePoints * 2)
-			pointArray = new float[nrofLinePoints * 2];
+		return true;
+	}
 
-		int offset = HEADER_SIZE + nrofLines * LINE_DATA_SIZE;
-		fileBuffer.position(offset);
-		fileBuffer.asFloatBuffer().get(pointArray, 0, nrofLinePoints * 2);
+	private static void readBounds(ByteBuffer buf, int pos, BoundingBox bounds) {
+		bounds.minX = buf.getFloat(pos);
+		bounds.minY = buf.getFloat(pos + 4);
+		bounds.maxX = buf.getFloat(pos + 8);
+		bounds.maxY = buf.getFloat(pos + 12);
+	}
 
-		// skip nrofLines/Points
-		fileBuffer.position(HEADER_SIZE);
+	private static boolean inRange(int first, int count, int size) {
+		return first >= 0 && count >= 0 && first <= size - count;
+	}
 
-		tile.nrofLineVertices = unpackLinesToPolygons(nrofLines);
+	private static boolean corrupt() {
+		Log.w(TAG, "Corrupt pre-tessellated section, using the line and polygon data.");
+		return false;
+	}
 
-		size = tile.nrofLineVertices * 4 * VERTEX_LINE_FLOATS;
+	/**
+	 * Load tile x/y of a pyramid level. Level 0 tiles are TILE_SIZE wide,
+	 * each level above doubles the size, see mapgenerator.c.
+	 */
+	public boolean loadMapTile(int x, int y, int level, GLMapTile tile) {
+		// Load map data from the archive, or from separate files if there
+		// is no archive
+		String fileName = tiledir + x + "_" + y;
+		if (level > 0)
+			fileName += "_" + level;
+
+		// Use pre-tessellated data if available
+		ByteBuffer tessellated = null;
+		if (archive != null)
+			tessellated = archive.getVertices(x, y, level);
+		else if (new File(fileName + ".vtx").isFile())
+			tessellated = mapFile(fileName + ".vtx");
+
+		if (tessellated != null && loadVertices(tessellated, tile)) {
+			if (DEBUG)
+				Log.i(TAG, "Loaded pre-tessellated tile " + x + "_" + y + " level " + level + ": "
+				      + tile.nrofLineVertices + " line, " + tile.nrofPolygonVertices
+				      + " polygon vertices");
+			return true;
+		}
+
+		// Read in line data
+		if (archive != null) {
+			fileBuffer = archive.getLines(x, y, level);
+			if (fileBuffer == null)
+				return false;
+		} else {
+			if (DEBUG)
+				Log.i(TAG, "Reading map line data from file '" + fileName + ".line'.");
+
+			fileBuffer = mapFile(fileName + ".line");
+			if (fileBuffer == null)
+				return false;
+		}
+
+		int nrofLines = readSectionHeader(LINE_DATA_SIZE);
+		if (nrofLines < 0)
+			return false;
+
+		if (DEBUG)
+			Log.i(TAG, "Found: " + nrofLines + " lines, " + nrofPoints + " vertices.");
+
+		releaseBuffers(tile);
+		tile.bounds.reset();
+
+		// Count the points of each level of detail, then decode the points
+		// a second time to tessellate them
+		scanSection(nrofLines, LINE_DATA_SIZE);
+		int[] levels = selectLevels();
+
+		// The vertices and indices of each level follow those of the level
+		// before
+		int[] vertexCursor = new int[levels.length];
+		int[] indexCursor = new int[levels.length];
+		int nrofLineVertices = 0;
+		int nrofLineIndices = 0;
+		for (int l = 0; l < levels.length; l++) {
+			if (levels[l] != l)
+				continue;
+
+			vertexCursor[l] = nrofLineVertices;
+			indexCursor[l] = nrofLineIndices;
+
+			for (int i = 0; i < nrofLines; i++) {
+				int n = keptCounts[i * levels.length + l];
+				if (n < 2)
+					continue;
+
+				int pos = headerSize + i * LINE_DATA_SIZE;
+				int nrofVertices = lineVertices(n, fileBuffer.getInt(pos + 20) != 0,
+				                                fileBuffer.getInt(pos + 24) != 0);
+				nrofLineVertices += nrofVertices;
+				nrofLineIndices += 3 * (nrofVertices - 2);
+			}
+		}
+		indexSize = nrofLineVertices > MAX_SHORT_INDEX_VERTICES ? 4 : 2;
 
-		tile.lineVerticesBuffer = ByteBuffer.allocateDirect(size)
-		      .order(ByteOrder.nativeOrder());
+		// Allocate the output buffers and let the tessellation write into
+		// them directly
+		int size = nrofLineVertices * LINE_VERTEX_SIZE;
+		tile.lineVerticesBuffer = bufferPool.get(size);
 
 		size = nrofLineVertices * VERTEX_COLOR_BYTES;
-		tile.colorVerticesBuffer = ByteBuffer.allocateDirect(size)
-		      .order(ByteOrder.nativeOrder());
+		tile.colorVerticesBuffer = bufferPool.get(size);
 
-		tile.lineVerticesBuffer.position(0);
-		tile.colorVerticesBuffer.position(0);
+		size = nrofLineIndices * indexSize;
+		tile.lineIndicesBuffer = bufferPool.get(size);
+
+		vertices = tile.lineVerticesBuffer;
+		colors = tile.colorVerticesBuffer;
+		indices = tile.lineIndicesBuffer;
+
+		// Leave room for the line width around the points, miter joins can
+		// reach further out than the width
+		float maxWidth = 0;
+		for (int i = 0; i < nrofLines; i++)
+			maxWidth = Math.max(maxWidth, fileBuffer.getFloat(headerSize + i * LINE_DATA_SIZE + 4));
 
-		FloatBuffer buf = tile.lineVerticesBuffer.asFloatBuffer();
-		buf.put(coords, 0, tile.nrofLineVertices * VERTEX_LINE_FLOATS);
+		setQuantization(4 * maxWidth);
+		vertexBounds.reset();
+		maxExtrusion = 0;
+		tile.lineOriginX = originX;
+		tile.lineOriginY = originY;
+		tile.lineScale = scale;
+
+		if (DEBUG)
+			Log.i(TAG, "Parsing map line data.");
 
-		tile.colorVerticesBuffer.put(colors, 0, tile.nrofLineVertices * VERTEX_COLOR_BYTES);
+		tile.lineLevelStart = new int[levels.length];
+		tile.lineLevelCount = new int[levels.length];
+		System.arraycopy(indexCursor, 0, tile.lineLevelStart, 0, levels.length);
+
+		readSectionHeader(LINE_DATA_SIZE);
+		unpackLinesToPolygons(nrofLines, levels, vertexCursor, indexCursor);
+
+		for (int l = 0; l < levels.length; l++) {
+			if (levels[l] != l) {
+				tile.lineLevelStart[l] = tile.lineLevelStart[l - 1];
+				tile.lineLevelCount[l] = tile.lineLevelCount[l - 1];
+				continue;
+			}
+			tile.lineLevelCount[l] = indexCursor[l] - tile.lineLevelStart[l];
+
+			if (DEBUG)
+				Log.i(TAG, "Line level " + l + ": " + tile.lineLevelCount[l] + " indices");
+		}
+		tile.nrofLineVertices = nrofLineVertices;
+		tile.nrofLineIndices = nrofLineIndices;
+		tile.lineIndexSize = indexSize;
+		tile.lineVertexSize = LINE_VERTEX_SIZE;
+		tile.lineExtrusion = maxExtrusion;
+		tile.bounds.add(vertexBounds, 0);
 
 		tile.lineVerticesBuffer.position(0);
 		tile.colorVerticesBuffer.position(0);
+		tile.lineIndicesBuffer.position(0);
+		vertices = null;
+		colors = null;
+		indices = null;
 
 		if (DEBUG)
-			Log.i(TAG, "Finished parsing. " + tile.nrofLineVertices);
-
-		closeFile();
+			Log.i(TAG, "Finished parsing. " + tile.nrofLineVertices + " vertices, "
+			      + tile.nrofLineIndices + " indices, scale " + scale + "m");
 
 		// Read in polygon data
-		fileName = tiledir + tileName + ".poly";
-		if (DEBUG)
-			Log.i(TAG, "Reading map polygon data from file '" + fileName + "'.");
+		if (archive != null) {
+			fileBuffer = archive.getPolygons(x, y, level);
+		} else {
+			if (DEBUG)
+				Log.i(TAG, "Reading map polygon data from file '" + fileName + ".poly'.");
+
+			fileBuffer = mapFile(fileName + ".poly");
+		}
+		if (fileBuffer == null)
+			return false;
 
-		if (!openFile(fileName))
+		int nrofPolygons = readSectionHeader(POLYGON_DATA_SIZE);
+		if (nrofPolygons < 0)
 			return false;
 
-		int nrofPolygons = fileBuffer.getInt();
-		int nrofPolygonPoints = fileBuffer.getInt();
 		if (nrofPolygons == 0) {
-			closeFile();
+			fileBuffer = null;
+			points = null;
 			tile.nrofPolygonVertices = 0;
+			tile.polygonLayers = null;
+			tile.polygonLevels = null;
 			return true;
 		}
 		if (DEBUG)
-			Log.i(TAG, "Found: " + nrofPolygons + " polygons, " + nrofPolygonPoints
-			      + " vertices.");
+			Log.i(TAG, "Found: " + nrofPolygons + " polygons, " + nrofPoints + " vertices.");
 
-		// first tile vertex is added to each polygon + 2*the start vertex
-		int nrofPolygonVertices = nrofPolygonPoints + 2 * nrofPolygons;
+		scanSection(nrofPolygons, POLYGON_DATA_SIZE);
+		levels = selectLevels();
 
-		// buffer for drawing polygon vertices
-		size = nrofPolygonVertices * POLY_VERTEX_SIZE;
+		// first tile vertex is added to each polygon + 2*the start vertex,
+		// or each polygon with n points becomes n - 2 triangles
+		int nrofPolygonVertices = 0;
+		for (int l = 0; l < levels.length; l++) {
+			if (levels[l] != l)
+				continue;
 
-		if (coords.length < nrofPolygonVertices * 2)
-			coords = new float[nrofPolygonVertices * 2];
-		coordPos = 0;
+			for (int i = 0; i < nrofPolygons; i++)
+				nrofPolygonVertices += polygonVertices(keptCounts[i * levels.length + l]);
+		}
 
-		// read point data
-		if (pointArray.length < nrofPolygonPoints * 2)
-			pointArray = new float[nrofPolygonPoints * 2];
+		// buffer for drawing polygon vertices
+		size = nrofPolygonVertices * POLY_VERTEX_SIZE;
+		tile.polygonVerticesBuffer = bufferPool.get(size);
 
-		offset = HEADER_SIZE + nrofPolygons * POLYGON_DATA_SIZE;
-		fileBuffer.position(offset);
-		fileBuffer.asFloatBuffer().get(pointArray, 0, nrofPolygonPoints * 2);
+		vertices = tile.polygonVerticesBuffer;
 
-		// skip nrofPolygons/Points
-		fileBuffer.position(HEADER_SIZE);
+		setQuantization(0);
+		tile.bounds.add(pointBounds, 0);
+		tile.polygonOriginX = originX;
+		tile.polygonOriginY = originY;
+		tile.polygonScale = scale;
+		tile.polygonTriangles = TRIANGULATE_POLYGONS;
 
 		if (DEBUG)
 			Log.i(TAG, "Parsing map polygon data.");
 
-		tile.nrofPolygonVertices = unpackPolygons(tile, nrofPolygons);
-
-		tile.polygonVerticesBuffer = ByteBuffer.allocateDirect(size)
-		      .order(ByteOrder.nativeOrder());
-
-		buf = tile.polygonVerticesBuffer.asFloatBuffer();
-		buf.put(coords, 0, tile.nrofPolygonVertices * 2);
+		readSectionHeader(POLYGON_DATA_SIZE);
+		tile.polygonLevels = unpackPolygons(nrofPolygons, levels);
+		tile.polygonLayers = tile.polygonLevels.get(0);
+		tile.nrofPolygonVertices = nrofPolygonVertices;
 
 		tile.polygonVerticesBuffer.position(0);
+		vertices = null;
+
 		if (DEBUG)
-			Log.i(TAG, "Finished parsing. " + tile.nrofPolygonVertices);
+			Log.i(TAG, "Finished parsing. " + tile.nrofPolygonVertices + " vertices, scale "
+			      + scale + "m");
 
-		closeFile();
+		fileBuffer = null;
+		points = null;
 
 		return true;
 	}
@@ -3,14 +3,15 @@ package com.android.glmap;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.os.AsyncTask;
 import android.util.Log;
 
 public class GLMapRenderer implements GLSurfaceView.Renderer {
@@ -26,58 +27,211 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 	private final int NROF_TILES_Y = 8;
 	private final int NROF_TILES = NROF_TILES_X * NROF_TILES_Y;
 
+	// levels of the tile pyramid written by mapgenerator, tiles of level p
+	// are TILE_SIZE << p wide
+	private final int PYRAMID_LEVELS = 5;
+
 	private final int POLYGON_VERTICES_DATA_POS_OFFSET = 0;
 	private final int LINE_VERTICES_DATA_POS_OFFSET = 0;
-	private final int LINE_VERTICES_DATA_TEX_OFFSET = 12;
+	private final int LINE_VERTICES_DATA_ZST_OFFSET = 4;
 	private final int LINE_VERTICES_DATA_COLOR1_OFFSET = 0;
 	private final int LINE_VERTICES_DATA_COLOR2_OFFSET = 4;
-	private final int POLY_VERTEX_SIZE = 8;
+
+	// line vertices on the centre line, see GLMapTile.lineVertexSize
+	private final int EXTRUDED_VERTICES_DATA_EXTRUDE_OFFSET = 4;
+	private final int EXTRUDED_VERTICES_DATA_ZST_OFFSET = 8;
+	private final int EXTRUDED_VERTEX_SIZE = 12;
+
+	// Lines keep their width in metres until a pixel covers more than this
+	// many metres, then they get wider with the square root of the scale
+	private final float LINE_WIDTH_METRES_PER_PIXEL = 8;
+	private final int POLY_VERTEX_SIZE = 4;
+
+	// largest error of simplified geometry on screen, in pixels
+	private final float MAX_PIXEL_ERROR = 0.5f;
+
+	// idle vertex buffers kept for reuse by the loaders
+	private final int BUFFER_POOL_SIZE = 4 * 1024 * 1024;
+
+	// decoded tiles kept after they left the window
+	private final int TILE_CACHE_SIZE = 8 * 1024 * 1024;
+
+	// vertex data uploaded per frame, tiles beyond are left for the next
+	private final int UPLOAD_BYTES_PER_FRAME = 512 * 1024;
+	private final int UPLOAD_MILLIS_PER_FRAME = 4;
+
+	// tiles prefetched at most for a fling
+	private final int MAX_PREFETCH_TILES = 48;
+
+	// buffer objects the tile data is sub-allocated from
+	private final int VERTEX_ARENA_SIZE = 4 * 1024 * 1024;
+	private final int INDEX_ARENA_SIZE = 2 * 1024 * 1024;
 
 	private GLMapView mapView;
+	private final GLBackend gl;
+	private final StateCache stateCache;
 	private GLMapTile[][] tiles;
 	private boolean initialized;
-	private GLMapLoader glMapLoader;
+	private BufferPool bufferPool;
+	private TileLoaderPool loaderPool;
+	private TileScheduler scheduler;
+	private UploadQueue uploadQueue;
+	private TileCache tileCache;
+	private VBOArena vertexArena;
+	private VBOArena indexArena;
 	private FloatBuffer fullscreenCoordsBuffer;
 
 	private int gLineProgram;
 	private int gLinevPositionHandle;
-	private int gLinetexPositionHandle;
+	private int gLinezstHandle;
+	private int gLineExtrudeHandle;
+	private int gLineExtrudeScaleHandle;
 	private int gLineColorHandle;
-	private int gLinecPositionHandle;
+	private int gLineOffsetHandle;
+	private int gLineScaleHandle;
 	private int gLineWidthHandle;
 	private int gLineHeightOffsetHandle;
 	private int gLineScaleXHandle;
 	private int gLineScaleYHandle;
 	private int gPolygonProgram;
 	private int gPolygonvPositionHandle;
-	private int gPolygoncPositionHandle;
+	private int gPolygonOffsetHandle;
+	private int gPolygonScaleHandle;
 	private int gPolygonScaleXHandle;
 	private int gPolygonScaleYHandle;
+	private int gPolygonColorHandle;
 	private int gPolygonFillProgram;
 	private int gPolygonFillvPositionHandle;
 	private int gPolygonFillColorHandle;
 
-	private float xPos = START_X;
-	private float yPos = START_Y;
-	private float zPos = (float) (1.0 / Math.pow(2, START_Z));
-	private int width, height;
+	// input and fling, applied to the camera at the start of each frame
+	private final CameraAnimator animator = new CameraAnimator();
+	// the camera of the current frame, moved on the GL thread only
+	private final AtomicReference<Camera> camera = new AtomicReference<Camera>(
+	      new Camera(START_X, START_Y, (float) (1.0 / Math.pow(2, START_Z))));
+	// the camera the tile window was last updated for, GL thread only
+	private Camera windowCamera;
+	// origin tile and pyramid level of the tile window, one bit per slot
+	// of the window that waits for its decode to finish, NROF_TILES <= 64
+	private int windowX, windowY;
+	private int windowLevel = -1;
+	private long windowDeferred;
+	// pyramid levels that were missing from the tiles and logged once
+	private int missingLevels;
+
+	// Window statistics: moves within the window, moves that only visited
+	// entering tiles and deferred slots, and full scans of all slots
+	private int nrofWindowSkips;
+	private int nrofWindowShifts;
+	private int nrofWindowScans;
+	private volatile int width, height;
+
+	// A fling published by prefetchMove(), taken by the GL thread. The
+	// epoch is that of the scheduler when the fling started.
+	private static class Fling {
+		final Camera to;
+		final int epoch;
+
+		Fling(Camera to, int epoch) {
+			this.to = to;
+			this.epoch = epoch;
+		}
+	}
+
+	private final AtomicReference<Fling> fling = new AtomicReference<Fling>();
+
+	// visible area of the current frame
+	private float viewMinX, viewMinY, viewMaxX, viewMaxY;
+
+	// Culling statistics of the last frame
+	private int nrofTilesDrawn;
+	private int nrofTilesCulled;
+	// visible tiles whose data is not uploaded yet, in the last frame and
+	// in all frames
+	private int nrofTilesMissing;
+	private int nrofTilesMissingTotal;
+	private int nrofLayersDrawn;
+	private int nrofLayersCulled;
+
+	// draw calls of the current frame, sorted by pass, state and buffer
+	private DrawCommand[] commands = new DrawCommand[256];
+	private int nrofCommands;
+	private final byte[] colors = new byte[256];
 
 	private long lastDraw = 0;
 	private boolean gles_shader = true;
+	private boolean uintIndices = false;
 
 	public GLMapRenderer(GLMapView mapview) {
+		this(mapview, new GLES20Backend());
+	}
+
+	/**
+	 * @param mapview
+	 *            the view to request frames from, may be null when rendering
+	 *            headless with a RecordingBackend
+	 * @param gl
+	 *            the GL implementation all calls go to
+	 */
+	GLMapRenderer(GLMapView mapview, GLBackend gl) {
 		this.mapView = mapview;
-		this.glMapLoader = new GLMapLoader();
+		// all calls go through the cache, which drops those that would not
+		// change the GL state
+		this.stateCache = new StateCache(gl);
+		this.gl = stateCache;
+		this.bufferPool = new BufferPool(BUFFER_POOL_SIZE);
+		this.loaderPool = new TileLoaderPool(bufferPool);
+		this.tileCache = new TileCache(bufferPool, TILE_CACHE_SIZE);
+		this.uploadQueue = new UploadQueue(TILE_SIZE, UPLOAD_BYTES_PER_FRAME,
+		                                   UPLOAD_MILLIS_PER_FRAME);
+		this.scheduler = new TileScheduler(loaderPool, TILE_SIZE, new TileScheduler.Listener() {
+			public void onTileLoaded(GLMapTile tile) {
+				requestRender();
+			}
+
+			public void onTilePrefetched(GLMapTile tile) {
+				tileCache.putPrefetched(tile);
+			}
+		});
+	}
+
+	private void requestRender() {
+		if (this.mapView != null)
+			this.mapView.requestRender();
+	}
+
+	/**
+	 * Set how much vertex data is uploaded per frame at most, on the GL
+	 * thread or before rendering starts.
+	 */
+	void setUploadBudget(int bytes, int millis) {
+		uploadQueue.setBudget(bytes, millis);
+	}
+
+	TileCache getTileCache() {
+		return tileCache;
+	}
+
+	/**
+	 * Drop cached tiles and idle buffers when memory runs low.
+	 */
+	void trimMemory() {
+		tileCache.trim(0);
+		bufferPool.setMaxBytes(0);
+		bufferPool.setMaxBytes(BUFFER_POOL_SIZE);
 	}
 
 	private void init() {
+		// a new context starts with default state
+		stateCache.invalidate();
+
 		// Set up the program for rendering lines
-		gLineProgram = Utils.createProgram(Shaders.gLineVertexShader,
+		gLineProgram = Utils.createProgram(gl, Shaders.gLineVertexShader,
 		                                   Shaders.gLineFragmentShader);
 		if (gLineProgram == 0) {
 			gles_shader = false;
 			Log.e(TAG, "Could not create program.");
-			gLineProgram = Utils.createProgram(Shaders.gLineVertexShaderSimple,
+			gLineProgram = Utils.createProgram(gl, Shaders.gLineVertexShaderSimple,
 			                                   Shaders.gLineFragmentShaderSimple);
 			if (gLineProgram == 0) {
 				Log.e(TAG, "Could not create program.");
@@ -85,44 +239,53 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 			}
 		}
 
-		gLinecPositionHandle = GLES20.glGetUniformLocation(gLineProgram, "u_center");
-		gLineScaleXHandle = GLES20.glGetUniformLocation(gLineProgram, "scaleX");
-		gLineScaleYHandle = GLES20.glGetUniformLocation(gLineProgram, "scaleY");
-		gLineHeightOffsetHandle = GLES20.glGetUniformLocation(gLineProgram, "height_offset");
-		gLineWidthHandle = GLES20.glGetUniformLocation(gLineProgram, "width");
-		gLinevPositionHandle = GLES20.glGetAttribLocation(gLineProgram, "a_position");
-		gLinetexPositionHandle = GLES20.glGetAttribLocation(gLineProgram, "a_st");
-		gLineColorHandle = GLES20.glGetAttribLocation(gLineProgram, "a_color");
-		Utils.checkGlError("glGetAttribLocation");
+		gLineOffsetHandle = gl.glGetUniformLocation(gLineProgram, "u_offset");
+		gLineScaleHandle = gl.glGetUniformLocation(gLineProgram, "u_scale");
+		gLineScaleXHandle = gl.glGetUniformLocation(gLineProgram, "scaleX");
+		gLineScaleYHandle = gl.glGetUniformLocation(gLineProgram, "scaleY");
+		gLineHeightOffsetHandle = gl.glGetUniformLocation(gLineProgram, "height_offset");
+		gLineWidthHandle = gl.glGetUniformLocation(gLineProgram, "width");
+		gLinevPositionHandle = gl.glGetAttribLocation(gLineProgram, "a_position");
+		gLinezstHandle = gl.glGetAttribLocation(gLineProgram, "a_zst");
+		gLineExtrudeHandle = gl.glGetAttribLocation(gLineProgram, "a_extrude");
+		gLineExtrudeScaleHandle = gl.glGetUniformLocation(gLineProgram, "u_width");
+		gLineColorHandle = gl.glGetAttribLocation(gLineProgram, "a_color");
+		Utils.checkGlError(gl, "glGetAttribLocation");
 
 		// Set up the program for rendering polygons
-		gPolygonProgram = Utils.createProgram(Shaders.gPolygonVertexShader,
+		gPolygonProgram = Utils.createProgram(gl, Shaders.gPolygonVertexShader,
 		                                      Shaders.gPolygonFragmentShader);
 		if (gPolygonProgram == 0) {
 			Log.e(TAG, "Could not create program.");
 			return;
 		}
-		gPolygoncPositionHandle = GLES20.glGetUniformLocation(gPolygonProgram, "u_center");
-		gPolygonScaleXHandle = GLES20.glGetUniformLocation(gPolygonProgram, "scaleX");
-		gPolygonScaleYHandle = GLES20.glGetUniformLocation(gPolygonProgram, "scaleY");
-		gPolygonvPositionHandle = GLES20.glGetAttribLocation(gPolygonProgram, "a_position");
-		Utils.checkGlError("glGetUniformLocation");
+		gPolygonOffsetHandle = gl.glGetUniformLocation(gPolygonProgram, "u_offset");
+		gPolygonScaleHandle = gl.glGetUniformLocation(gPolygonProgram, "u_scale");
+		gPolygonScaleXHandle = gl.glGetUniformLocation(gPolygonProgram, "scaleX");
+		gPolygonScaleYHandle = gl.glGetUniformLocation(gPolygonProgram, "scaleY");
+		gPolygonColorHandle = gl.glGetUniformLocation(gPolygonProgram, "u_color");
+		gPolygonvPositionHandle = gl.glGetAttribLocation(gPolygonProgram, "a_position");
+		Utils.checkGlError(gl, "glGetUniformLocation");
 
 		// Set up the program for filling polygons
-		gPolygonFillProgram = Utils.createProgram(Shaders.gPolygonFillVertexShader,
+		gPolygonFillProgram = Utils.createProgram(gl, Shaders.gPolygonFillVertexShader,
 		                                          Shaders.gPolygonFillFragmentShader);
 		if (gPolygonFillProgram == 0) {
 			Log.e(TAG, "Could not create program.");
 			return;
 		}
-		gPolygonFillvPositionHandle = GLES20.glGetAttribLocation(gPolygonFillProgram,
-		                                                         "a_position");
-		gPolygonFillColorHandle = GLES20.glGetUniformLocation(gPolygonFillProgram, "u_color");
-		Utils.checkGlError("glGetUniformLocation");
+		gPolygonFillvPositionHandle = gl.glGetAttribLocation(gPolygonFillProgram,
+		                                                     "a_position");
+		gPolygonFillColorHandle = gl.glGetUniformLocation(gPolygonFillProgram, "u_color");
+		Utils.checkGlError(gl, "glGetUniformLocation");
+
+		// Tiles with more than 64k line vertices need int indices
+		String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+		uintIndices = extensions != null && extensions.contains("GL_OES_element_index_uint");
 
 		// Set up vertex buffer objects
-		int[] vboIds = new int[3 * NROF_TILES];
-		GLES20.glGenBuffers(3 * NROF_TILES, vboIds, 0);
+		vertexArena = new VBOArena(gl, GLES20.GL_ARRAY_BUFFER, VERTEX_ARENA_SIZE);
+		indexArena = new VBOArena(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER, INDEX_ARENA_SIZE);
 
 		// Set up the tile handles
 		tiles = new GLMapTile[NROF_TILES_X][];
@@ -131,18 +294,14 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 			tiles[i] = new GLMapTile[NROF_TILES_Y];
 			for (int j = 0; j < NROF_TILES_Y; j++) {
 				tile = new GLMapTile();
-				int n = i + j * NROF_TILES_X;
-				tile.lineVBO = vboIds[3 * n];
-				tile.colorVBO = vboIds[3 * n + 1];
-				tile.polygonVBO = vboIds[3 * n + 2];
 				tile.nrofLineVertices = 0;
 				tile.nrofPolygonVertices = 0;
 				tile.x = -1;
 				tile.y = -1;
-				tile.newData = false;
 				tiles[i][j] = tile;
 			}
 		}
+		windowLevel = -1;
 
 		float[] coords = { -1.0f, 1.0f, 1.0f, 1.0f, -1.0f, -1.0f, 1.0f, -1.0f };
 
@@ -151,16 +310,16 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 		      .asFloatBuffer().put(coords);
 
 		// Set general settings
-		GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		gl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDepthFunc(GLES20.GL_LEQUAL);
+		gl.glEnable(GLES20.GL_DEPTH_TEST);
+		gl.glDepthFunc(GLES20.GL_LEQUAL);
 
-		GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-		GLES20.glDisable(GLES20.GL_STENCIL_TEST);
+		gl.glDisable(GLES20.GL_SCISSOR_TEST);
+		gl.glDisable(GLES20.GL_STENCIL_TEST);
 
-		GLES20.glCullFace(GLES20.GL_BACK);
-		GLES20.glFrontFace(GLES20.GL_CW);
+		gl.glCullFace(GLES20.GL_BACK);
+		gl.glFrontFace(GLES20.GL_CW);
 
 		Log.i(TAG, "Initialization complete.");
 		this.initialized = true;
@@ -170,173 +329,489 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 		if (debug)
 			lastDraw = System.currentTimeMillis();
 
+		stateCache.resetStatistics();
+
+		applyInput();
 		mapRenderFrame();
 
 		if (debug)
-			Log.i(TAG, "draw took: " + (System.currentTimeMillis() - lastDraw));
+			Log.i(TAG, "draw took: " + (System.currentTimeMillis() - lastDraw) + ", tiles "
+			      + nrofTilesDrawn + " drawn, " + nrofTilesCulled + " culled, layers "
+			      + nrofLayersDrawn + " drawn, " + nrofLayersCulled + " culled, "
+			      + stateCache.getSavedCount() + " GL calls saved, uploaded "
+			      + uploadQueue.getBytesLastFrame() + " bytes, "
+			      + uploadQueue.getQueueDepth() + " tiles waiting, window " + nrofWindowSkips
+			      + " kept, " + nrofWindowShifts + " shifted, " + nrofWindowScans + " scanned, "
+			      + nrofTilesMissing + " visible tiles missing, prefetch hit rate "
+			      + tileCache.getPrefetchHitRate() + ", " + animator.getEventCount()
+			      + " input events in " + animator.getUpdateCount() + " camera updates, "
+			      + animator.getRequestCount() + " render requests");
 	}
 
 	public void onSurfaceChanged(GL10 glUnused, int w, int h) {
 		this.width = w;
 		this.height = h;
 
-		GLES20.glViewport(0, 0, w, h);
-		Utils.checkGlError("GLES20.glViewport");
+		gl.glViewport(0, 0, w, h);
+		Utils.checkGlError(gl, "GLES20.glViewport");
 
-		mapMove(this.xPos, this.yPos, this.zPos, true);
+		// the window depends on the screen size, fill it before the first
+		// frame
+		applyInput();
+		Camera c = camera.get();
+		mapMove(c.x, c.y, c.z, true);
+		windowCamera = c;
 	}
 
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
 		init();
 	}
 
+	/**
+	 * Move the view by x/y pixels. The move is applied with the next frame,
+	 * together with all input until then, see CameraAnimator.
+	 */
 	public void move(float x, float y) {
-		this.xPos = this.xPos - x / ((this.zPos / 2) * this.width);
-		this.yPos = this.yPos - y / ((this.zPos / 2) * this.height);
-
-		mapMove(this.xPos, this.yPos, this.zPos, false);
+		if (animator.move(x, y))
+			requestRender();
 	}
 
 	public void zoom(float z) {
-		this.zPos = this.zPos * z;
+		if (animator.zoom(z))
+			requestRender();
+	}
+
+	/**
+	 * Fling the view by x/y pixels over the given time, slowing down. The
+	 * fling is animated frame by frame, the tiles on its way are prefetched.
+	 */
+	public void fling(float x, float y, int millis) {
+		animator.fling(x, y, millis);
+		prefetchMove(x, y);
+	}
+
+	/**
+	 * Stop a running fling and its prefetching.
+	 */
+	public void stopFling() {
+		if (animator.stopFling())
+			cancelPrefetch();
+	}
+
+	// Apply the input since the last frame, and keep frames coming while a
+	// fling runs. The screen size converts pixels, input waits for it.
+	private void applyInput() {
+		if (this.width == 0 || this.height == 0)
+			return;
+
+		Camera c = camera.get();
+		Camera moved = animator.apply(c, this.width, this.height, System.nanoTime());
+		if (moved != c)
+			camera.set(moved);
+
+		if (animator.isAnimating())
+			requestRender();
+	}
+
+	/**
+	 * Find the finest pyramid level whose window of tiles still covers the
+	 * screen at zoom z. If the tiles have no such level, the nearest finer
+	 * one they have is used, down to level 0.
+	 */
+	private int pyramidLevel(float z) {
+		if (this.height == 0)
+			return 0;
+
+		// the screen reaches 1 / z metres from the centre vertically and
+		// further horizontally on wide screens
+		float extent = Math.max(1, (float) this.width / this.height) / z;
+
+		// the window reaches at least one tile less than half its size
+		// from the centre
+		int level = 0;
+		while (level < PYRAMID_LEVELS - 1
+		      && (TILE_SIZE << level) * (NROF_TILES_X / 2 - 1) < extent)
+			level++;
+
+		// tiles from before the pyramid only have level 0
+		int levels = loaderPool.getLevels();
+		while (level > 0 && (levels & (1 << level)) == 0) {
+			if ((missingLevels & (1 << level)) == 0) {
+				Log.w(TAG, "no tiles of pyramid level " + level + ", using a finer level");
+				missingLevels |= 1 << level;
+			}
+			level--;
+		}
+
+		return level;
+	}
 
-		mapMove(this.xPos, this.yPos, this.zPos, false);
+	/**
+	 * Move a slot that leaves the window to EVICTING. Its decoded data goes
+	 * to the tile cache for when the view returns, the tiles in the window
+	 * keep theirs out of the cache budget.
+	 *
+	 * @return false while the slot is being decoded.
+	 */
+	private boolean evict(GLMapTile tile) {
+		int state = tile.getState();
+		switch (state) {
+			case GLMapTile.QUEUED:
+				// drop the queued load, fails when the decode just started
+				return scheduler.cancel(tile);
+			case GLMapTile.DECODING:
+				return false;
+			case GLMapTile.READY_FOR_UPLOAD:
+			case GLMapTile.RESIDENT:
+				tileCache.put(tile);
+				return tile.transition(state, GLMapTile.EVICTING);
+			default:
+				return tile.transition(tile.getState(), GLMapTile.EVICTING);
+		}
 	}
 
-	synchronized int mapMove(float x, float y, float z, boolean sync) {
+	/**
+	 * Put tile tx/ty of a pyramid level into its slot, unless it is there
+	 * already.
+	 *
+	 * @return false if the slot is still being decoded.
+	 */
+	private boolean updateSlot(int tx, int ty, int level, boolean sync) {
+		GLMapTile tile = tiles[tx % NROF_TILES_X][ty % NROF_TILES_Y];
+
+		if ((tile.x == tx) && (tile.y == ty) && (tile.level == level))
+			return true;
+
+		if (!evict(tile))
+			return false;
+
+		tile.assign(tx, ty, level);
+
+		if (tileCache.get(tx, ty, level, tile)) {
+			tile.transition(GLMapTile.EMPTY, GLMapTile.READY_FOR_UPLOAD);
+			return true;
+		}
+
+		if (sync) {
+			if (loaderPool.loadMapTile(tx, ty, level, tile))
+				tile.transition(GLMapTile.EMPTY, GLMapTile.READY_FOR_UPLOAD);
+		} else {
+			scheduler.schedule(tile, tx, ty, level);
+		}
+		return true;
+	}
+
+	/**
+	 * Update the tile window for the view at x/y/z, on the GL thread. The
+	 * window only changes when the camera crosses a tile boundary, then the
+	 * tiles entering it take over the slots of those that left.
+	 *
+	 * @return the slots that could not be reassigned yet, as they are still
+	 *         being decoded, one bit per slot.
+	 */
+	long mapMove(float x, float y, float z, boolean sync) {
 		if (!this.initialized)
 			return 0;
 
-		int xx = (int) ((x - 0.5 * TILE_SIZE * NROF_TILES_X) / TILE_SIZE);
-		int yy = (int) ((y - 0.5 * TILE_SIZE * NROF_TILES_Y) / TILE_SIZE);
+		int level = pyramidLevel(z);
+		int size = TILE_SIZE << level;
 
-		// Check if any new tiles need to be loaded
-		for (int i = 0; i < NROF_TILES_X; i++) {
-			for (int j = 0; j < NROF_TILES_Y; j++) {
-				int tx = xx + i;
-				int ty = yy + j;
+		int xx = (int) ((x - 0.5 * size * NROF_TILES_X) / size);
+		int yy = (int) ((y - 0.5 * size * NROF_TILES_Y) / size);
 
-				int s = tx % NROF_TILES_X;
-				int t = ty % NROF_TILES_Y;
+		scheduler.setCenter(x, y);
 
-				if (tiles[s][t].loading)
-					continue;
+		if (xx == windowX && yy == windowY && level == windowLevel && windowDeferred == 0) {
+			nrofWindowSkips++;
+			return 0;
+		}
 
-				if ((tiles[s][t].x == tx) && (tiles[s][t].y == ty))
-					continue;
+		// all slots are checked after a level change or a jump beyond the
+		// window, otherwise those of entering tiles and deferred slots
+		boolean scan = level != windowLevel || Math.abs(xx - windowX) >= NROF_TILES_X
+		      || Math.abs(yy - windowY) >= NROF_TILES_Y;
+		long deferred = 0;
 
-				tiles[s][t].x = tx;
-				tiles[s][t].y = ty;
+		for (int tx = xx; tx < xx + NROF_TILES_X; tx++) {
+			boolean column = scan || tx < windowX || tx >= windowX + NROF_TILES_X;
 
-				String tilename = tx + "_" + ty;
+			for (int ty = yy; ty < yy + NROF_TILES_Y; ty++) {
+				long slot = 1L << ((tx % NROF_TILES_X) * NROF_TILES_Y + ty % NROF_TILES_Y);
 
-				if (sync) {
-					if (glMapLoader.loadMapTile(tilename, tiles[s][t]))
-						tiles[s][t].newData = true;
-				} else {
-					loadTile(tilename, tiles[s][t], this);
-				}
+				if ((column || ty < windowY || ty >= windowY + NROF_TILES_Y
+				      || (windowDeferred & slot) != 0)
+				      && !updateSlot(tx, ty, level, sync))
+					deferred |= slot;
 			}
 		}
 
-		this.mapView.requestRender();
+		if (scan)
+			nrofWindowScans++;
+		else
+			nrofWindowShifts++;
+
+		windowX = xx;
+		windowY = yy;
+		windowLevel = level;
+		windowDeferred = deferred;
 
-		return 0;
+		return deferred;
 	}
 
-	private void loadTile(final String name, final GLMapTile tile, final GLMapRenderer renderer) {
-		if (tile.loading)
-			tile.task.cancel(true);
+	/**
+	 * Decode the tiles along a move by x/y pixels ahead of time, when a
+	 * fling is going to move the view there, see move().
+	 */
+	public void prefetchMove(float x, float y) {
+		Camera c = camera.get();
+		Camera to = c.moveBy(-x / ((c.z / 2) * this.width), -y / ((c.z / 2) * this.height));
 
-		tile.loading = true;
-		tile.newData = false;
+		fling.set(new Fling(to, scheduler.getPrefetchEpoch()));
+		requestRender();
+	}
 
-		tile.task = new AsyncTask<Void, Void, Integer>() {
-			@Override
-			protected void onPreExecute() {
-			}
+	/**
+	 * Stop prefetching for a fling that was interrupted.
+	 */
+	public void cancelPrefetch() {
+		fling.set(null);
+		scheduler.cancelPrefetches();
+	}
 
-			@Override
-			protected Integer doInBackground(Void... args0) {
-				if (glMapLoader.loadMapTile(name, tile)) {
-					tile.newData = true;
-					tile.loading = false;
-					renderer.mapView.requestRender();
+	/**
+	 * Prefetch the tiles the view passes on its way from one camera to
+	 * another, sampled once per tile, and those around where it stops.
+	 */
+	private void prefetch(Camera from, Camera to, int epoch) {
+		int level = pyramidLevel(from.z);
+		int size = TILE_SIZE << level;
+
+		float extentY = 1 / from.z;
+		float extentX = extentY * this.width / this.height;
+
+		float dx = to.x - from.x;
+		float dy = to.y - from.y;
+		int steps = (int) (Math.sqrt(dx * dx + dy * dy) / size) + 1;
+		int count = 0;
+
+		for (int s = 1; s <= steps && count < MAX_PREFETCH_TILES; s++) {
+			float cx = from.x + dx * s / steps;
+			float cy = from.y + dy * s / steps;
+			int margin = (s == steps ? 1 : 0);
+
+			int x0 = (int) Math.floor((cx - extentX) / size) - margin;
+			int x1 = (int) Math.floor((cx + extentX) / size) + margin;
+			int y0 = (int) Math.floor((cy - extentY) / size) - margin;
+			int y1 = (int) Math.floor((cy + extentY) / size) + margin;
+
+			for (int tx = x0; tx <= x1; tx++) {
+				for (int ty = y0; ty <= y1 && count < MAX_PREFETCH_TILES; ty++) {
+					// tiles of the window are loaded already
+					if (level == windowLevel && tx >= windowX && tx < windowX + NROF_TILES_X
+					      && ty >= windowY && ty < windowY + NROF_TILES_Y)
+						continue;
+
+					if (tileCache.contains(tx, ty, level))
+						continue;
+
+					if (scheduler.prefetch(tx, ty, level, epoch))
+						count++;
 				}
-				tile.loading = false;
-				return null;
 			}
-		};
-
-		try {
-			tile.task.execute();
-		} catch (RejectedExecutionException e) {
-			tile.task.cancel(true);
 		}
+
+		if (debug)
+			Log.i(TAG, "prefetching " + count + " tiles in " + steps + " steps");
+	}
+
+	/**
+	 * Check if the area of a tile is visible, whether its data is there or
+	 * not.
+	 */
+	private boolean isAreaVisible(GLMapTile tile) {
+		int size = TILE_SIZE << tile.level;
+		return tile.x * size < viewMaxX && (tile.x + 1) * size > viewMinX
+		      && tile.y * size < viewMaxY && (tile.y + 1) * size > viewMinY;
 	}
 
-	private synchronized void mapRenderFrame() {
-		float x = this.xPos;
-		float y = this.yPos;
-		float z = zPos;
+	/**
+	 * Find the coarsest level of detail whose error stays below
+	 * MAX_PIXEL_ERROR at zoom z.
+	 */
+	private int levelOfDetail(float z) {
+		// the view spans 2 / z metres over the height of the screen
+		float metresPerPixel = 2 / (z * this.height);
+		int level = 0;
 
-		// Check if any new tiles need to be loaded into graphics memory
-		for (int i = 0; i < NROF_TILES_X; i++) {
-			for (int j = 0; j < NROF_TILES_Y; j++) {
-				if (!tiles[i][j].newData)
-					continue;
+		for (int l = 1; l < GLMapLoader.LOD_TOLERANCE.length; l++)
+			if (GLMapLoader.LOD_TOLERANCE[l] <= MAX_PIXEL_ERROR * metresPerPixel)
+				level = l;
 
-				if (tiles[i][j].nrofLineVertices > 0) {
-					// Upload line data to graphics core vertex buffer object
-					GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tiles[i][j].lineVBO);
-					GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
-					                    tiles[i][j].nrofLineVertices * 20,
-					                    tiles[i][j].lineVerticesBuffer,
-					                    GLES20.GL_DYNAMIC_DRAW);
-					Utils.checkGlError("glBufferData1 " + +tiles[i][j].nrofLineVertices + " ");
-					tiles[i][j].lineVerticesBuffer = null;
-
-					GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tiles[i][j].colorVBO);
-					GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
-					                    tiles[i][j].nrofLineVertices * 8,
-					                    tiles[i][j].colorVerticesBuffer,
-					                    GLES20.GL_DYNAMIC_DRAW);
-					tiles[i][j].colorVerticesBuffer = null;
-				}
-				// Upload polygon data to graphics core vertex buffer object
-				if (tiles[i][j].nrofPolygonVertices > 0) {
-					GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tiles[i][j].polygonVBO);
-					GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
-					                    tiles[i][j].nrofPolygonVertices * POLY_VERTEX_SIZE,
-					                    tiles[i][j].polygonVerticesBuffer,
-					                    GLES20.GL_DYNAMIC_DRAW);
-					Utils.checkGlError("glBufferData2 " + +tiles[i][j].nrofPolygonVertices + " ");
-					tiles[i][j].polygonVerticesBuffer = null;
+		return level;
+	}
 
-				}
-				tiles[i][j].newData = false;
-			}
+	/**
+	 * Set the visible area for zoom z around x/y, see pyramidLevel().
+	 */
+	private void setView(float x, float y, float z) {
+		float extentY = 1 / z;
+		float extentX = extentY * this.width / this.height;
+
+		viewMinX = x - extentX;
+		viewMinY = y - extentY;
+		viewMaxX = x + extentX;
+		viewMaxY = y + extentY;
+	}
+
+	private boolean isVisible(BoundingBox bounds) {
+		return bounds.intersects(viewMinX, viewMinY, viewMaxX, viewMaxY);
+	}
+
+	private boolean isVisible(BoundingBox bounds, float margin) {
+		return bounds.intersects(viewMinX - margin, viewMinY - margin, viewMaxX + margin,
+		                         viewMaxY + margin);
+	}
+
+	/**
+	 * The factor line widths are scaled with at zoom z, lines that are
+	 * extruded on the CPU keep their width.
+	 */
+	private float lineWidthScale(float z) {
+		float metresPerPixel = 2 / (z * this.height);
+		return Math.max(1, (float) Math.sqrt(metresPerPixel / LINE_WIDTH_METRES_PER_PIXEL));
+	}
+
+	private ArrayList<PolygonLayer> polygonLayers(GLMapTile tile, int level) {
+		if (tile.polygonLevels == null)
+			return tile.polygonLayers;
+
+		return tile.polygonLevels.get(Math.min(level, tile.polygonLevels.size() - 1));
+	}
+
+	private PolygonLayer findPolygonLayer(GLMapTile tile, byte color, int level) {
+		if (tile.getState() != GLMapTile.RESIDENT || tile.polygonLayers == null)
+			return null;
+
+		for (PolygonLayer l : polygonLayers(tile, level))
+			if (l.rgba[0] == color)
+				return l;
+
+		return null;
+	}
+
+	private void drawPolygonLayer(GLMapTile tile, PolygonLayer layer, int mode, float x, float y) {
+		// The offset of the tile origin to the center is computed here, in
+		// full float precision of the coordinates
+		gl.glUniform2f(gPolygonOffsetHandle, tile.polygonOriginX - x,
+		               tile.polygonOriginY - y);
+		gl.glUniform1f(gPolygonScaleHandle, tile.polygonScale);
+
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.polygonVBO.buffer);
+
+		gl.glVertexAttribPointer(gPolygonvPositionHandle, 2, GLES20.GL_SHORT, false, 0,
+		                         tile.polygonVBO.offset + POLYGON_VERTICES_DATA_POS_OFFSET);
+
+		gl.glEnableVertexAttribArray(gPolygonvPositionHandle);
+
+		gl.glDrawArrays(mode, layer.startVertex, layer.nrofVertices);
+	}
+
+	/**
+	 * Upload the data of a tile to its vertex buffer objects.
+	 *
+	 * @return the number of bytes uploaded.
+	 */
+	private int uploadTile(GLMapTile tile) {
+		int lineBytes = tile.nrofLineVertices * tile.lineVertexSize;
+		int colorBytes = tile.nrofLineVertices * 8;
+		int indexBytes = tile.nrofLineIndices * tile.lineIndexSize;
+		int polygonBytes = tile.nrofPolygonVertices * POLY_VERTEX_SIZE;
+
+		// Copy line data to the arenas, the ranges of a tile without lines
+		// are only freed
+		vertexArena.upload(tile.lineVBO, tile.lineVerticesBuffer, lineBytes);
+		Utils.checkGlError(gl, "glBufferSubData1 " + +tile.nrofLineVertices + " ");
+		vertexArena.upload(tile.colorVBO, tile.colorVerticesBuffer, colorBytes);
+		indexArena.upload(tile.indexVBO, tile.lineIndicesBuffer, indexBytes);
+
+		// Copy polygon data to the vertex arena
+		vertexArena.upload(tile.polygonVBO, tile.polygonVerticesBuffer, polygonBytes);
+		Utils.checkGlError(gl, "glBufferSubData2 " + +tile.nrofPolygonVertices + " ");
+
+		tile.transition(GLMapTile.READY_FOR_UPLOAD, GLMapTile.RESIDENT);
+
+		return lineBytes + colorBytes + indexBytes + polygonBytes;
+	}
+
+	private void mapRenderFrame() {
+		Camera cam = camera.get();
+		float x = cam.x;
+		float y = cam.y;
+		float z = cam.z;
+
+		// update the tile window when the camera moved since the last frame
+		// or slots waited for a decode, tiles taken from the cache are
+		// uploaded in this frame already
+		if (cam != windowCamera || windowDeferred != 0) {
+			mapMove(x, y, z, false);
+			windowCamera = cam;
 		}
 
+		// prefetch behind the window loads, for the fling that just started
+		Fling f = fling.getAndSet(null);
+		if (f != null)
+			prefetch(cam, f.to, f.epoch);
+
+		int level = levelOfDetail(z);
+		float widthScale = lineWidthScale(z);
+
+		setView(x, y, z);
+		nrofTilesDrawn = 0;
+		nrofTilesCulled = 0;
+		nrofTilesMissing = 0;
+		nrofLayersDrawn = 0;
+		nrofLayersCulled = 0;
+
+		// Upload the nearest new tiles into graphics memory, within the
+		// budget of this frame
+		GLMapTile upload;
+		uploadQueue.begin(tiles, x, y);
+		while ((upload = uploadQueue.next()) != null)
+			uploadQueue.uploaded(uploadTile(upload));
+
+		if (uploadQueue.end())
+			requestRender();
+
 		// Clear the buffers
-		GLES20.glClearColor(244 / 255f, 244 / 255f, 240 / 255f, 1.0f);
-		GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+		gl.glClearColor(244 / 255f, 244 / 255f, 240 / 255f, 1.0f);
+		gl.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
 		int cnt = 0;
-		byte[] colors = new byte[20];
 
-		// draw all tiles polygons of one layer into one stencil buffer
+		nrofCommands = 0;
+
+		// Collect the colors of all polygon layers, the layers of one color
+		// are drawn together, into one stencil buffer for triangle fans
 		// avoiding stencil buffer clears.
 		for (int i = 0; i < NROF_TILES_X; i++) {
 			for (int j = 0; j < NROF_TILES_Y; j++) {
 				GLMapTile tile = tiles[i][j];
-				if (tile.loading || tile.newData)
+				if (tile.getState() != GLMapTile.RESIDENT) {
+					if (tile.getState() != GLMapTile.EMPTY && isAreaVisible(tile))
+						nrofTilesMissing++;
 					continue;
+				}
+
+				if (!isVisible(tile.bounds)) {
+					nrofTilesCulled++;
+					continue;
+				}
+				nrofTilesDrawn++;
 
 				if (tile.polygonLayers == null)
 					continue;
 
-				for (PolygonLayer layer : tile.polygonLayers) {
+				for (PolygonLayer layer : polygonLayers(tile, level)) {
 					boolean found = false;
 					byte color = layer.rgba[0];
 					for (int c = 0; c < cnt; c++)
@@ -349,159 +824,265 @@ public class GLMapRenderer implements GLSurfaceView.Renderer {
 			}
 		}
 
-		// Draw polygons into stencil buffer to find covered areas
-		// This uses the method described here:
-		// http://www.glprogramming.com/red/chapter14.html#name13
-		GLES20.glEnable(GLES20.GL_STENCIL_TEST);
+		nrofTilesMissingTotal += nrofTilesMissing;
 
+		// Draw the polygon layers of one color after the other, so that
+		// overlapping polygons of different colors are painted in the same
+		// order by both methods. Within a color triangulated layers come
+		// before triangle fans.
 		for (int c = 0; c < cnt; c++) {
-			GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-			GLES20.glDisable(GLES20.GL_CULL_FACE);
-			GLES20.glDisable(GLES20.GL_BLEND);
-			GLES20.glClear(GLES20.GL_STENCIL_BUFFER_BIT);
-
-			GLES20.glStencilMask(0x01);
-			GLES20.glStencilOp(GLES20.GL_KEEP, GLES20.GL_KEEP, GLES20.GL_INVERT);
-			GLES20.glStencilFunc(GLES20.GL_ALWAYS, 0, ~0);
-
-			GLES20.glColorMask(false, false, false, false);
-			GLES20.glDepthMask(false);
-
-			GLES20.glUseProgram(gPolygonProgram);
-			GLES20.glUniform4f(gPolygoncPositionHandle, x, y, 0.0f, 0.0f);
-			GLES20.glUniform1f(gPolygonScaleXHandle, z * (float) (this.height)
-			      / (float) (this.width));
-			GLES20.glUniform1f(gPolygonScaleYHandle, z);
-
-			PolygonLayer drawn = null;
-
 			for (int i = 0; i < NROF_TILES_X; i++) {
 				for (int j = 0; j < NROF_TILES_Y; j++) {
 					GLMapTile tile = tiles[i][j];
-					if (tile.loading || tile.newData)
+					PolygonLayer layer = findPolygonLayer(tile, colors[c], level);
+					if (layer == null)
 						continue;
 
-					if (tile.polygonLayers == null)
+					if (!isVisible(layer.bounds)) {
+						nrofLayersCulled++;
 						continue;
+					}
+					nrofLayersDrawn++;
 
-					PolygonLayer layer = null;
+					int state = 2 * c + (tile.polygonTriangles ? 0 : 1);
+					DrawCommand cmd = addCommand(DrawCommand.PASS_POLYGONS, state, tile,
+					                             tile.polygonVBO);
+					cmd.layer = layer;
+				}
+			}
+		}
 
-					for (PolygonLayer l : tile.polygonLayers) {
+		for (int i = 0; i < NROF_TILES_X; i++) {
+			for (int j = 0; j < NROF_TILES_Y; j++) {
+				GLMapTile tile = tiles[i][j];
+				if (tile.getState() != GLMapTile.RESIDENT || tile.nrofLineIndices == 0)
+					continue;
 
-						if (l.rgba[0] == colors[c]) {
-							layer = l;
-							break;
-						}
-					}
+				// the bounds are those of lines at their unscaled width
+				if (!isVisible(tile.bounds, (widthScale - 1) * tile.lineExtrusion))
+					continue;
 
-					if (layer == null)
+				int indexType = GLES20.GL_UNSIGNED_SHORT;
+				if (tile.lineIndexSize == 4) {
+					if (!uintIndices)
 						continue;
+					indexType = GLES20.GL_UNSIGNED_INT;
+				}
 
-					GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.polygonVBO);
+				int l = Math.min(level, tile.lineLevelStart.length - 1);
 
-					GLES20.glVertexAttribPointer(gPolygonvPositionHandle, 2, GLES20.GL_FLOAT,
-					                             false, 0, POLYGON_VERTICES_DATA_POS_OFFSET);
+				if (gles_shader)
+					addLineCommand(DrawCommand.LINE_OUTLINE, tile, l, indexType);
 
-					GLES20.glEnableVertexAttribArray(gPolygonvPositionHandle);
+				addLineCommand(DrawCommand.LINE_FILL, tile, l, indexType);
+			}
+		}
 
-					GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN,
-					                    layer.startVertex,
-					                    layer.nrofVertices);
+		Arrays.sort(commands, 0, nrofCommands);
 
-					GLES20.glDisableVertexAttribArray(gPolygonvPositionHandle);
+		drawPolygons(x, y, z);
+		drawLines(x, y, z, widthScale);
+	}
 
-					drawn = layer;
-				}
-			}
+	private DrawCommand addCommand(int pass, int state, GLMapTile tile, VBOArena.Range range) {
+		if (nrofCommands == commands.length) {
+			DrawCommand[] grown = new DrawCommand[2 * commands.length];
+			System.arraycopy(commands, 0, grown, 0, nrofCommands);
+			commands = grown;
+		}
+		if (commands[nrofCommands] == null)
+			commands[nrofCommands] = new DrawCommand();
+
+		DrawCommand cmd = commands[nrofCommands++];
+		cmd.set(pass, state, tile, range.buffer, range.offset);
+		return cmd;
+	}
+
+	private void addLineCommand(int style, GLMapTile tile, int level, int indexType) {
+		DrawCommand cmd = addCommand(DrawCommand.PASS_LINES, style, tile, tile.lineVBO);
+		cmd.count = tile.lineLevelCount[level];
+		cmd.offset = tile.lineLevelStart[level] * tile.lineIndexSize;
+		cmd.indexType = indexType;
+	}
+
+	private void setPolygonColor(int handle, PolygonLayer layer) {
+		gl.glUniform4f(handle, 1 + layer.rgba[0] / 255.0f, 1 + layer.rgba[1] / 255.0f,
+		               1 + layer.rgba[2] / 255.0f, 1);
+	}
+
+	/**
+	 * Fill the areas marked in the stencil buffer by the triangle fans of
+	 * one color.
+	 */
+	private void fillStencil(PolygonLayer layer) {
+		gl.glColorMask(true, true, true, true);
+		gl.glDepthMask(true);
+
+		// Draw with the color to fill them
+		gl.glUseProgram(gPolygonFillProgram);
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		setPolygonColor(gPolygonFillColorHandle, layer);
+
+		fullscreenCoordsBuffer.position(0);
+		gl.glVertexAttribPointer(gPolygonFillvPositionHandle,
+		                         2, GLES20.GL_FLOAT, false, 0,
+		                         fullscreenCoordsBuffer);
+
+		gl.glEnableVertexAttribArray(gPolygonFillvPositionHandle);
+
+		gl.glStencilFunc(GLES20.GL_EQUAL, 1, 1);
+		gl.glStencilOp(GLES20.GL_ZERO, GLES20.GL_ZERO,
+		               GLES20.GL_ZERO);
+
+		gl.glEnable(GLES20.GL_DEPTH_TEST);
 
-			if (drawn != null) {
-				GLES20.glColorMask(true, true, true, true);
-				GLES20.glDepthMask(true);
+		gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-				// Draw with the color to fill them
-				GLES20.glUseProgram(gPolygonFillProgram);
-				GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-				GLES20.glUniform4f(gPolygonFillColorHandle,
-				                   1 + drawn.rgba[0] / 255.0f,
-				                   1 + drawn.rgba[1] / 255.0f,
-				                   1 + drawn.rgba[2] / 255.0f, 1);
+		gl.glDisable(GLES20.GL_STENCIL_TEST);
+	}
 
-				fullscreenCoordsBuffer.position(0);
-				GLES20.glVertexAttribPointer(gPolygonFillvPositionHandle,
-				                             2, GLES20.GL_FLOAT, false, 0,
-				                             fullscreenCoordsBuffer);
+	private void drawPolygons(float x, float y, float z) {
+		int state = -1;
+		PolygonLayer drawn = null;
 
-				GLES20.glEnableVertexAttribArray(gPolygonFillvPositionHandle);
+		gl.glDisable(GLES20.GL_CULL_FACE);
+		gl.glDisable(GLES20.GL_BLEND);
 
-				GLES20.glStencilFunc(GLES20.GL_EQUAL, 1, 1);
-				GLES20.glStencilOp(GLES20.GL_ZERO, GLES20.GL_ZERO,
-				                   GLES20.GL_ZERO);
+		gl.glUseProgram(gPolygonProgram);
+		gl.glUniform1f(gPolygonScaleXHandle, z * (float) (this.height) / (float) (this.width));
+		gl.glUniform1f(gPolygonScaleYHandle, z);
 
-				GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-				GLES20.glEnable(GLES20.GL_CULL_FACE);
-				GLES20.glEnable(GLES20.GL_BLEND);
+		for (int n = 0; n < nrofCommands; n++) {
+			DrawCommand cmd = commands[n];
+			if (cmd.pass != DrawCommand.PASS_POLYGONS)
+				break;
 
-				GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+			boolean fans = (cmd.state & 1) != 0;
 
-				GLES20.glDisableVertexAttribArray(gPolygonFillvPositionHandle);
+			if (cmd.state != state) {
+				if (drawn != null) {
+					fillStencil(drawn);
+					gl.glUseProgram(gPolygonProgram);
+					drawn = null;
+				}
+				state = cmd.state;
+
+				if (fans) {
+					// Draw triangle fans into stencil buffer to find covered
+					// areas. This uses the method described here:
+					// http://www.glprogramming.com/red/chapter14.html#name13
+					gl.glEnable(GLES20.GL_STENCIL_TEST);
+					gl.glDisable(GLES20.GL_DEPTH_TEST);
+					gl.glClear(GLES20.GL_STENCIL_BUFFER_BIT);
+
+					gl.glStencilMask(0x01);
+					gl.glStencilOp(GLES20.GL_KEEP, GLES20.GL_KEEP, GLES20.GL_INVERT);
+					gl.glStencilFunc(GLES20.GL_ALWAYS, 0, ~0);
+
+					gl.glColorMask(false, false, false, false);
+					gl.glDepthMask(false);
+				} else {
+					// Triangulated layers are drawn directly with their color
+					setPolygonColor(gPolygonColorHandle, cmd.layer);
+				}
 			}
+
+			drawPolygonLayer(cmd.tile, cmd.layer, fans ? GLES20.GL_TRIANGLE_FAN
+			      : GLES20.GL_TRIANGLES, x, y);
+
+			if (fans)
+				drawn = cmd.layer;
 		}
 
-		GLES20.glDisable(GLES20.GL_STENCIL_TEST);
-		GLES20.glEnable(GLES20.GL_BLEND);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
+		if (drawn != null)
+			fillStencil(drawn);
 
-		// Draw lines
-		GLES20.glUseProgram(gLineProgram);
-		GLES20.glUniform4f(gLinecPositionHandle, x, y, 0.0f, 0.0f);
-		GLES20.glUniform1f(gLineScaleXHandle, z * (float) (this.height) / (float) (this.width));
-		GLES20.glUniform1f(gLineScaleYHandle, z);
+		gl.glDisableVertexAttribArray(gPolygonvPositionHandle);
+		gl.glDisableVertexAttribArray(gPolygonFillvPositionHandle);
 
-		for (int i = 0; i < NROF_TILES_X; i++) {
-			for (int j = 0; j < NROF_TILES_Y; j++) {
-				GLMapTile tile = tiles[i][j];
-				if (tile.loading || tile.newData)
-					continue;
+		gl.glEnable(GLES20.GL_BLEND);
+		gl.glEnable(GLES20.GL_DEPTH_TEST);
+		gl.glEnable(GLES20.GL_CULL_FACE);
+	}
 
-				GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.lineVBO);
-				GLES20.glEnableVertexAttribArray(gLinevPositionHandle);
-				GLES20.glEnableVertexAttribArray(gLinetexPositionHandle);
+	private void drawLines(float x, float y, float z, float widthScale) {
+		GLMapTile bound = null;
 
-				GLES20.glVertexAttribPointer(gLinevPositionHandle, 3, GLES20.GL_FLOAT, false,
-				                             20, LINE_VERTICES_DATA_POS_OFFSET);
+		gl.glUseProgram(gLineProgram);
+		gl.glUniform1f(gLineScaleXHandle, z * (float) (this.height) / (float) (this.width));
+		gl.glUniform1f(gLineScaleYHandle, z);
+		gl.glUniform1f(gLineExtrudeScaleHandle, widthScale);
 
-				GLES20.glVertexAttribPointer(gLinetexPositionHandle, 2, GLES20.GL_FLOAT, false,
-				                             20, LINE_VERTICES_DATA_TEX_OFFSET);
+		gl.glEnableVertexAttribArray(gLinevPositionHandle);
+		gl.glEnableVertexAttribArray(gLinezstHandle);
+		gl.glEnableVertexAttribArray(gLineColorHandle);
 
-				GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.colorVBO);
-				GLES20.glEnableVertexAttribArray(gLineColorHandle);
+		for (int n = 0; n < nrofCommands; n++) {
+			DrawCommand cmd = commands[n];
+			if (cmd.pass != DrawCommand.PASS_LINES)
+				continue;
 
-				if (gles_shader) {
-					// Draw outlines
-					GLES20.glVertexAttribPointer(gLineColorHandle, 4, GLES20.GL_UNSIGNED_BYTE,
-					                             true, 8, LINE_VERTICES_DATA_COLOR2_OFFSET);
+			GLMapTile tile = cmd.tile;
 
-					GLES20.glUniform1f(gLineWidthHandle, 1.0f);
-					GLES20.glUniform1f(gLineHeightOffsetHandle, 0.1f);
+			if (tile != bound) {
+				bound = tile;
 
-					GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, tile.nrofLineVertices);
+				gl.glUniform2f(gLineOffsetHandle, tile.lineOriginX - x, tile.lineOriginY - y);
+				gl.glUniform1f(gLineScaleHandle, tile.lineScale);
+
+				gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.lineVBO.buffer);
+
+				int stride = tile.lineVertexSize;
+				int zstOffset = LINE_VERTICES_DATA_ZST_OFFSET;
+
+				if (stride == EXTRUDED_VERTEX_SIZE) {
+					zstOffset = EXTRUDED_VERTICES_DATA_ZST_OFFSET;
+					gl.glEnableVertexAttribArray(gLineExtrudeHandle);
+					gl.glVertexAttribPointer(gLineExtrudeHandle, 2, GLES20.GL_SHORT, false,
+					                         stride, tile.lineVBO.offset
+					                               + EXTRUDED_VERTICES_DATA_EXTRUDE_OFFSET);
+				} else {
+					// the vertices are extruded already
+					gl.glDisableVertexAttribArray(gLineExtrudeHandle);
+					gl.glVertexAttrib2f(gLineExtrudeHandle, 0, 0);
 				}
 
+				gl.glVertexAttribPointer(gLinevPositionHandle, 2, GLES20.GL_SHORT, false,
+				                         stride,
+				                         tile.lineVBO.offset + LINE_VERTICES_DATA_POS_OFFSET);
+
+				gl.glVertexAttribPointer(gLinezstHandle, 3, GLES20.GL_BYTE, false,
+				                         stride, tile.lineVBO.offset + zstOffset);
+
+				gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tile.colorVBO.buffer);
+				gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, tile.indexVBO.buffer);
+			}
+
+			if (cmd.state == DrawCommand.LINE_OUTLINE) {
+				// Draw outlines
+				gl.glVertexAttribPointer(gLineColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true, 8,
+				                         tile.colorVBO.offset + LINE_VERTICES_DATA_COLOR2_OFFSET);
+
+				gl.glUniform1f(gLineWidthHandle, 1.0f);
+				gl.glUniform1f(gLineHeightOffsetHandle, 0.1f);
+			} else {
 				// Draw fill
-				GLES20.glVertexAttribPointer(gLineColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true,
-				                             8, LINE_VERTICES_DATA_COLOR1_OFFSET);
+				gl.glVertexAttribPointer(gLineColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true, 8,
+				                         tile.colorVBO.offset + LINE_VERTICES_DATA_COLOR1_OFFSET);
 				if (gles_shader)
-					GLES20.glUniform1f(gLineWidthHandle, 0.7f);
+					gl.glUniform1f(gLineWidthHandle, 0.7f);
 
-				GLES20.glUniform1f(gLineHeightOffsetHandle, 1.0f);
-
-				GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, tile.nrofLineVertices);
+				gl.glUniform1f(gLineHeightOffsetHandle, 1.0f);
 			}
+
+			gl.glDrawElements(GLES20.GL_TRIANGLES, cmd.count, cmd.indexType,
+			                  tile.indexVBO.offset + cmd.offset);
 		}
 
-		GLES20.glDisableVertexAttribArray(gLinetexPositionHandle);
-		GLES20.glDisableVertexAttribArray(gLinevPositionHandle);
-		GLES20.glDisableVertexAttribArray(gLineColorHandle);
+		gl.glDisableVertexAttribArray(gLinezstHandle);
+		gl.glDisableVertexAttribArray(gLinevPositionHandle);
+		gl.glDisableVertexAttribArray(gLineColorHandle);
+		gl.glDisableVertexAttribArray(gLineExtrudeHandle);
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 	}
 }
@@ -2,30 +2,119 @@ package com.android.glmap;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-
-import android.os.AsyncTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GLMapTile {
 
 	int x;
 	int y;
+	// pyramid level, the tile is TILE_SIZE << level wide
+	int level;
 
-	int lineVBO;
-	int colorVBO;
-	int polygonVBO;
+	// uploaded data, ranges in the vertex and index arenas
+	final VBOArena.Range lineVBO = new VBOArena.Range();
+	final VBOArena.Range colorVBO = new VBOArena.Range();
+	final VBOArena.Range indexVBO = new VBOArena.Range();
+	final VBOArena.Range polygonVBO = new VBOArena.Range();
 
 	int nrofLineVertices;
 	int nrofPolygonVertices;
 
+	// Lines are drawn as GL_TRIANGLES, with unsigned short or int indices
+	int nrofLineIndices;
+	int lineIndexSize;
+
+	// Line vertices of 8 bytes are extruded to the line width, those of 12
+	// bytes are on the centre line with their extrusion, at most
+	// lineExtrusion metres, for the vertex shader
+	int lineVertexSize;
+	float lineExtrusion;
+
+	// Vertex positions are shorts relative to an origin, in units of scale
+	// metres. Lines and polygons are quantised separately.
+	float lineOriginX;
+	float lineOriginY;
+	float lineScale;
+	float polygonOriginX;
+	float polygonOriginY;
+	float polygonScale;
+
+	// Polygon layers are either triangles or triangle fans that are
+	// filled through the stencil buffer
 	ArrayList<PolygonLayer> polygonLayers;
+	boolean polygonTriangles;
+
+	// Levels of detail, see GLMapLoader.LOD_TOLERANCE. Each level has its
+	// own range of line indices and its own polygon layers, level 0 is the
+	// full geometry. Tiles may have fewer levels, polygonLevels is null
+	// when only polygonLayers exists.
+	int[] lineLevelStart;
+	int[] lineLevelCount;
+	ArrayList<ArrayList<PolygonLayer>> polygonLevels;
+
+	// Area covered by the lines, including their width, and polygons
+	final BoundingBox bounds = new BoundingBox();
 
 	ByteBuffer colorVerticesBuffer;
 	ByteBuffer lineVerticesBuffer;
+	ByteBuffer lineIndicesBuffer;
 	ByteBuffer polygonVerticesBuffer;
 
-	boolean newData;
-	boolean loading;
+	// Life cycle of a slot:
+	// EMPTY -> QUEUED -> DECODING -> READY_FOR_UPLOAD -> RESIDENT, and
+	// EVICTING when the GL thread assigns the slot another tile, which
+	// starts a new generation at EMPTY. A slot cannot be evicted while it is
+	// DECODING, the loader fills its buffers.
+	static final int EMPTY = 0;
+	static final int QUEUED = 1;
+	static final int DECODING = 2;
+	static final int READY_FOR_UPLOAD = 3;
+	static final int RESIDENT = 4;
+	static final int EVICTING = 5;
+
+	private static final int STATE_BITS = 3;
+	private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+	// generation and state in one word, so that a transition for an older
+	// generation fails. Writes to the tile before a transition are visible
+	// to the thread that sees the new state.
+	private final AtomicInteger state = new AtomicInteger(EMPTY);
+
+	int getState() {
+		return state.get() & STATE_MASK;
+	}
+
+	int getGeneration() {
+		return state.get() >>> STATE_BITS;
+	}
+
+	/**
+	 * Change the state of the given generation from one to another.
+	 *
+	 * @return false if the tile is in another state or generation.
+	 */
+	boolean transition(int generation, int from, int to) {
+		return state.compareAndSet((generation << STATE_BITS) | from,
+		                           (generation << STATE_BITS) | to);
+	}
+
+	/**
+	 * Change the state of the current generation from one to another.
+	 */
+	boolean transition(int from, int to) {
+		int s = state.get();
+		return (s & STATE_MASK) == from && state.compareAndSet(s, (s & ~STATE_MASK) | to);
+	}
 
-	public AsyncTask<Void, Void, Integer> task;
+	/**
+	 * Assign an EVICTING slot tile x/y of a pyramid level, as a new EMPTY
+	 * generation.
+	 */
+	void assign(int x, int y, int level) {
+		this.x = x;
+		this.y = y;
+		this.level = level;
 
+		state.set((getGeneration() + 1) << STATE_BITS | EMPTY);
+	}
 }
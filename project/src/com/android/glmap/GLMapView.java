@@ -18,7 +18,6 @@ package com.android.glmap;
 
 import android.content.Context;
 import android.opengl.GLSurfaceView;
-import android.os.CountDownTimer;
 import android.util.FloatMath;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
@@ -53,6 +52,13 @@ public class GLMapView extends GLSurfaceView {
 		this.gestureDetector = new GestureDetector(new MapGestureDetector(this));
 	}
 
+	/**
+	 * Release memory that can be recovered, called when the system runs low.
+	 */
+	public void onLowMemory() {
+		mRenderer.trimMemory();
+	}
+
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		int action = event.getAction();
@@ -88,8 +94,6 @@ public class GLMapView extends GLSurfaceView {
 
 	private class MapGestureDetector extends SimpleOnGestureListener {
 		private GLMapView mapView;
-		private float xScroll;
-		private float yScroll;
 		public Scroller scroller;
 
 		public MapGestureDetector(GLMapView mapView) {
@@ -99,7 +103,7 @@ public class GLMapView extends GLSurfaceView {
 
 		@Override
 		public boolean onDown(MotionEvent e) {
-			this.scroller.forceFinished(true);
+			this.mapView.mRenderer.stopFling();
 			return true;
 		}
 
@@ -109,50 +113,20 @@ public class GLMapView extends GLSurfaceView {
 			return true;
 		}
 
-		public boolean scroll() {
-			if (this.scroller.isFinished())
-				return false;
-
-			this.scroller.computeScrollOffset();
-			float curX = this.scroller.getCurrX();
-			float curY = this.scroller.getCurrY();
-			float x = curX - this.xScroll;
-			float y = curY - this.yScroll;
-
-			if (Math.abs(x) >= 1 || Math.abs(y) >= 1) {
-				this.mapView.mRenderer.move(x, -y);
-
-				this.xScroll = curX;
-				this.yScroll = curY;
-			}
-
-			return true;
-		}
-
 		@Override
 		public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
 
 			int w = this.mapView.getWidth();
 			int h = this.mapView.getHeight();
 
-			this.xScroll = 0;
-			this.yScroll = 0;
-
+			// the scroller computes the extent and duration, the renderer
+			// animates the fling with its frames
 			this.scroller.fling(0, 0, Math.round(velocityX) / 2, Math.round(velocityY) / 2,
 			                    -10 * w, 10 * w, -10 * h, 10 * h);
 
-			new CountDownTimer(2000, 20) {
-				@Override
-				public void onTick(long tick) {
-					if (!scroll())
-						this.cancel();
-				}
-
-				@Override
-				public void onFinish() {
-
-				}
-			}.start();
+			this.mapView.mRenderer.fling(this.scroller.getFinalX(), -this.scroller.getFinalY(),
+			                             this.scroller.getDuration());
+			this.scroller.forceFinished(true);
 
 			return true;
 		}
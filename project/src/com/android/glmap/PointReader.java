@@ -0,0 +1,88 @@
+package com.android.glmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Sequential access to the point table of a .line or .poly section. The
+ * loader pulls the points of one line or polygon at a time, so the table is
+ * decoded on the fly and never expanded for the whole section. A section is
+ * read twice, each time with a new reader.
+ */
+abstract class PointReader {
+	// the current point
+	float x;
+	float y;
+
+	/**
+	 * Advance to the next point.
+	 */
+	abstract void next();
+
+	/**
+	 * Points stored as pairs of absolute float coordinates.
+	 */
+	static class Floats extends PointReader {
+		private final FloatBuffer points;
+
+		Floats(ByteBuffer buf, int offset) {
+			ByteBuffer b = buf.duplicate();
+			b.position(offset);
+			this.points = b.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		@Override
+		void next() {
+			x = points.get();
+			y = points.get();
+		}
+	}
+
+	/**
+	 * Points quantised to multiples of 'quantum' metres relative to a tile
+	 * origin. Each coordinate is stored as the zig-zag varint encoded
+	 * difference to the previous point.
+	 */
+	static class Deltas extends PointReader {
+		private final ByteBuffer stream;
+		private final double originX;
+		private final double originY;
+		private final double quantum;
+
+		private int qx;
+		private int qy;
+
+		Deltas(ByteBuffer buf, int offset, int originX, int originY, float quantum) {
+			ByteBuffer b = buf.duplicate();
+			b.position(offset);
+			this.stream = b.slice();
+			this.originX = originX;
+			this.originY = originY;
+			this.quantum = quantum;
+		}
+
+		private int readDelta() {
+			int value = 0;
+			int shift = 0;
+			int b;
+
+			do {
+				b = stream.get();
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			// zig-zag decode
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		@Override
+		void next() {
+			qx += readDelta();
+			qy += readDelta();
+			x = (float) (originX + qx * quantum);
+			y = (float) (originY + qy * quantum);
+		}
+	}
+}
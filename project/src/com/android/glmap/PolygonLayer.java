@@ -6,4 +6,5 @@ public class PolygonLayer {
 	byte[] rgba = new byte[4];
 	int nrofPolygons;
 	int[] polygonIndex;
+	final BoundingBox bounds = new BoundingBox();
 }
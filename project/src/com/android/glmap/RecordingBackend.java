@@ -0,0 +1,399 @@
+package com.android.glmap;
+
+import java.nio.Buffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * GLBackend without a device. Every call is counted, buffer uploads with
+ * their size, and optionally logged. Buffers, shaders and programs get
+ * fresh names, shaders always compile and programs always link, so the
+ * renderer runs unchanged. Used to measure draw calls, state changes and
+ * upload volume of frames on a JVM, without any Android classes: calls are
+ * logged to standard output, see project/tests RenderBenchmark.
+ */
+class RecordingBackend implements GLBackend {
+	// the values of GLES20
+	private static final int GL_NO_ERROR = 0;
+	private static final int GL_EXTENSIONS = 0x1F03;
+
+	// kinds of calls
+	private static final int OTHER = 0;
+	private static final int STATE = 1;
+	private static final int DRAW = 2;
+	private static final int UPLOAD = 3;
+
+	private final boolean log;
+	private final String extensions;
+
+	private int nextName;
+	private final HashMap<String, Integer> locations = new HashMap<String, Integer>();
+
+	// Statistics since the last reset()
+	private final TreeMap<String, Integer> calls = new TreeMap<String, Integer>();
+	private int nrofCalls;
+	private int nrofStateChanges;
+	private int nrofDrawCalls;
+	private long drawnVertices;
+	private long uploadBytes;
+
+	/**
+	 * @param log
+	 *            log every call
+	 * @param extensions
+	 *            the extension string the renderer sees
+	 */
+	RecordingBackend(boolean log, String extensions) {
+		this.log = log;
+		this.extensions = extensions;
+	}
+
+	private void count(String name, int kind) {
+		Integer n = calls.get(name);
+		calls.put(name, n == null ? 1 : n + 1);
+		nrofCalls++;
+
+		if (kind == STATE)
+			nrofStateChanges++;
+		else if (kind == DRAW)
+			nrofDrawCalls++;
+	}
+
+	private void log(String name, Object... args) {
+		StringBuilder sb = new StringBuilder(name).append('(');
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(args[i]);
+		}
+		System.out.println(sb.append(')'));
+	}
+
+	// the same location for the same name, in any program
+	private int location(String name) {
+		Integer location = locations.get(name);
+		if (location == null) {
+			location = locations.size();
+			locations.put(name, location);
+		}
+		return location;
+	}
+
+	void reset() {
+		calls.clear();
+		nrofCalls = 0;
+		nrofStateChanges = 0;
+		nrofDrawCalls = 0;
+		drawnVertices = 0;
+		uploadBytes = 0;
+	}
+
+	int getCallCount() {
+		return nrofCalls;
+	}
+
+	int getStateChangeCount() {
+		return nrofStateChanges;
+	}
+
+	int getDrawCallCount() {
+		return nrofDrawCalls;
+	}
+
+	long getDrawnVertexCount() {
+		return drawnVertices;
+	}
+
+	long getUploadBytes() {
+		return uploadBytes;
+	}
+
+	/**
+	 * @return the number of calls of each GL function, by name
+	 */
+	Map<String, Integer> getCalls() {
+		return calls;
+	}
+
+	@Override
+	public String toString() {
+		return nrofCalls + " calls, " + nrofStateChanges + " state changes, " + nrofDrawCalls
+		      + " draw calls, " + drawnVertices + " vertices, " + uploadBytes
+		      + " bytes uploaded";
+	}
+
+	public void glAttachShader(int program, int shader) {
+		count("glAttachShader", OTHER);
+		if (log)
+			log("glAttachShader", program, shader);
+	}
+
+	public void glBindBuffer(int target, int buffer) {
+		count("glBindBuffer", STATE);
+		if (log)
+			log("glBindBuffer", target, buffer);
+	}
+
+	public void glBlendFunc(int sfactor, int dfactor) {
+		count("glBlendFunc", STATE);
+		if (log)
+			log("glBlendFunc", sfactor, dfactor);
+	}
+
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		count("glBufferData", UPLOAD);
+		// without data the buffer is only allocated
+		if (data != null)
+			uploadBytes += size;
+		if (log)
+			log("glBufferData", target, size + " bytes", usage);
+	}
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		count("glBufferSubData", UPLOAD);
+		uploadBytes += size;
+		if (log)
+			log("glBufferSubData", target, offset, size + " bytes");
+	}
+
+	public void glClear(int mask) {
+		count("glClear", OTHER);
+		if (log)
+			log("glClear", mask);
+	}
+
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		count("glClearColor", OTHER);
+		if (log)
+			log("glClearColor", red, green, blue, alpha);
+	}
+
+	public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		count("glColorMask", STATE);
+		if (log)
+			log("glColorMask", red, green, blue, alpha);
+	}
+
+	public void glCompileShader(int shader) {
+		count("glCompileShader", OTHER);
+		if (log)
+			log("glCompileShader", shader);
+	}
+
+	public int glCreateProgram() {
+		count("glCreateProgram", OTHER);
+		return ++nextName;
+	}
+
+	public int glCreateShader(int type) {
+		count("glCreateShader", OTHER);
+		return ++nextName;
+	}
+
+	public void glCullFace(int mode) {
+		count("glCullFace", STATE);
+		if (log)
+			log("glCullFace", mode);
+	}
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		count("glDeleteBuffers", OTHER);
+		if (log)
+			log("glDeleteBuffers", n);
+	}
+
+	public void glDeleteProgram(int program) {
+		count("glDeleteProgram", OTHER);
+		if (log)
+			log("glDeleteProgram", program);
+	}
+
+	public void glDeleteShader(int shader) {
+		count("glDeleteShader", OTHER);
+		if (log)
+			log("glDeleteShader", shader);
+	}
+
+	public void glDepthFunc(int func) {
+		count("glDepthFunc", STATE);
+		if (log)
+			log("glDepthFunc", func);
+	}
+
+	public void glDepthMask(boolean flag) {
+		count("glDepthMask", STATE);
+		if (log)
+			log("glDepthMask", flag);
+	}
+
+	public void glDisable(int cap) {
+		count("glDisable", STATE);
+		if (log)
+			log("glDisable", cap);
+	}
+
+	public void glDisableVertexAttribArray(int index) {
+		count("glDisableVertexAttribArray", STATE);
+		if (log)
+			log("glDisableVertexAttribArray", index);
+	}
+
+	public void glDrawArrays(int mode, int first, int count) {
+		count("glDrawArrays", DRAW);
+		drawnVertices += count;
+		if (log)
+			log("glDrawArrays", mode, first, count);
+	}
+
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		count("glDrawElements", DRAW);
+		drawnVertices += count;
+		if (log)
+			log("glDrawElements", mode, count, type, offset);
+	}
+
+	public void glEnable(int cap) {
+		count("glEnable", STATE);
+		if (log)
+			log("glEnable", cap);
+	}
+
+	public void glEnableVertexAttribArray(int index) {
+		count("glEnableVertexAttribArray", STATE);
+		if (log)
+			log("glEnableVertexAttribArray", index);
+	}
+
+	public void glFrontFace(int mode) {
+		count("glFrontFace", STATE);
+		if (log)
+			log("glFrontFace", mode);
+	}
+
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		count("glGenBuffers", OTHER);
+		for (int i = 0; i < n; i++)
+			buffers[offset + i] = ++nextName;
+	}
+
+	public int glGetAttribLocation(int program, String name) {
+		count("glGetAttribLocation", OTHER);
+		return location(name);
+	}
+
+	public int glGetError() {
+		count("glGetError", OTHER);
+		return GL_NO_ERROR;
+	}
+
+	public String glGetProgramInfoLog(int program) {
+		count("glGetProgramInfoLog", OTHER);
+		return "";
+	}
+
+	public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		count("glGetProgramiv", OTHER);
+		// programs always link
+		params[offset] = 1;
+	}
+
+	public String glGetShaderInfoLog(int shader) {
+		count("glGetShaderInfoLog", OTHER);
+		return "";
+	}
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		count("glGetShaderiv", OTHER);
+		// shaders always compile
+		params[offset] = 1;
+	}
+
+	public String glGetString(int name) {
+		count("glGetString", OTHER);
+		return name == GL_EXTENSIONS ? extensions : "";
+	}
+
+	public int glGetUniformLocation(int program, String name) {
+		count("glGetUniformLocation", OTHER);
+		return location(name);
+	}
+
+	public void glLinkProgram(int program) {
+		count("glLinkProgram", OTHER);
+		if (log)
+			log("glLinkProgram", program);
+	}
+
+	public void glShaderSource(int shader, String string) {
+		count("glShaderSource", OTHER);
+	}
+
+	public void glStencilFunc(int func, int ref, int mask) {
+		count("glStencilFunc", STATE);
+		if (log)
+			log("glStencilFunc", func, ref, mask);
+	}
+
+	public void glStencilMask(int mask) {
+		count("glStencilMask", STATE);
+		if (log)
+			log("glStencilMask", mask);
+	}
+
+	public void glStencilOp(int fail, int zfail, int zpass) {
+		count("glStencilOp", STATE);
+		if (log)
+			log("glStencilOp", fail, zfail, zpass);
+	}
+
+	public void glUniform1f(int location, float x) {
+		count("glUniform1f", STATE);
+		if (log)
+			log("glUniform1f", location, x);
+	}
+
+	public void glUniform2f(int location, float x, float y) {
+		count("glUniform2f", STATE);
+		if (log)
+			log("glUniform2f", location, x, y);
+	}
+
+	public void glUniform4f(int location, float x, float y, float z, float w) {
+		count("glUniform4f", STATE);
+		if (log)
+			log("glUniform4f", location, x, y, z, w);
+	}
+
+	public void glUseProgram(int program) {
+		count("glUseProgram", STATE);
+		if (log)
+			log("glUseProgram", program);
+	}
+
+	public void glVertexAttrib2f(int index, float x, float y) {
+		count("glVertexAttrib2f", STATE);
+		if (log)
+			log("glVertexAttrib2f", index, x, y);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      int offset) {
+		count("glVertexAttribPointer", STATE);
+		if (log)
+			log("glVertexAttribPointer", index, size, type, normalized, stride, offset);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      Buffer ptr) {
+		count("glVertexAttribPointer", STATE);
+		if (log)
+			log("glVertexAttribPointer", index, size, type, normalized, stride, "client array");
+	}
+
+	public void glViewport(int x, int y, int width, int height) {
+		count("glViewport", OTHER);
+		if (log)
+			log("glViewport", x, y, width, height);
+	}
+}
@@ -2,23 +2,29 @@ package com.android.glmap;
 
 public class Shaders {
 
+	// Lines are extruded from a_position by a_extrude, scaled with the
+	// line width u_width
 	final static String gLineVertexShader =
-	   "uniform vec4 u_center;\n" +
+	   "uniform vec2 u_offset;\n" +
+	      "uniform float u_scale;\n" +
+	      "uniform float u_width;\n" +
 	      "uniform float scaleX;\n" +
 	      "uniform float scaleY;\n" +
 	      "uniform float height_offset;\n" +
-	      "attribute vec4 a_position;\n" +
-	      "attribute vec2 a_st;\n" +
+	      "attribute vec2 a_position;\n" +
+	      "attribute vec2 a_extrude;\n" +
+	      "attribute vec3 a_zst;\n" +
 	      "attribute vec4 a_color;\n" +
 	      "varying vec2 v_st;\n" +
 	      "varying vec4 v_color;\n" +
 	      "uniform float width;\n" +
 	      "void main() {\n" +
-	      "  vec4 a = a_position; \n" +
-	      "  a.x = scaleX*(a.x - u_center.x);\n" +
-	      "  a.y = scaleY*(a.y - u_center.y);\n" +
-	      "  a.z = -(a.z + height_offset)/10.0 - 0.5;\n" +
-	      "  v_st = a_st;\n" + // * (width * 1.5);\n" +
+	      "  vec2 p = a_position + a_extrude * u_width;\n" +
+	      "  vec4 a = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+	      "  a.x = scaleX*(p.x*u_scale + u_offset.x);\n" +
+	      "  a.y = scaleY*(p.y*u_scale + u_offset.y);\n" +
+	      "  a.z = -(a_zst.x/10.0 + height_offset)/10.0 - 0.5;\n" +
+	      "  v_st = a_zst.yz;\n" + // * (width * 1.5);\n" +
 	      "  v_color = a_color;\n" +
 	      "  gl_Position = a;\n" +
 	      "}\n";
@@ -42,18 +48,23 @@ public class Shaders {
 	      "}\n";
 
 	final static String gLineVertexShaderSimple =
-	   "uniform vec4 u_center;\n" +
+	   "uniform vec2 u_offset;\n" +
+	      "uniform float u_scale;\n" +
+	      "uniform float u_width;\n" +
 	      "uniform float scaleX;\n" +
 	      "uniform float scaleY;\n" +
 	      "uniform float height_offset;\n" +
-	      "attribute vec4 a_position;\n" +
+	      "attribute vec2 a_position;\n" +
+	      "attribute vec2 a_extrude;\n" +
+	      "attribute vec3 a_zst;\n" +
 	      "attribute vec4 a_color;\n" +
 	      "varying vec4 v_color;\n" +
 	      "void main() {\n" +
-	      "  vec4 a = a_position; \n" +
-	      "  a.x = scaleX*(a.x - u_center.x);\n" +
-	      "  a.y = scaleY*(a.y - u_center.y);\n" +
-	      "  a.z = -(a.z + height_offset)/10.0 + 0.5;\n" +
+	      "  vec2 p = a_position + a_extrude * u_width;\n" +
+	      "  vec4 a = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+	      "  a.x = scaleX*(p.x*u_scale + u_offset.x);\n" +
+	      "  a.y = scaleY*(p.y*u_scale + u_offset.y);\n" +
+	      "  a.z = -(a_zst.x/10.0 + height_offset)/10.0 + 0.5;\n" +
 	      "  v_color = a_color;\n" +
 	      "  gl_Position = a;\n" +
 	      "}\n";
@@ -66,15 +77,16 @@ public class Shaders {
 	      "}\n";
 
 	final static String gPolygonVertexShader =
-	   "uniform vec4 u_center;\n" +
+	   "uniform vec2 u_offset;\n" +
+	      "uniform float u_scale;\n" +
 	      "uniform float scaleX;\n" +
 	      "uniform float scaleY;\n" +
-	      "attribute vec4 a_position;\n" +
+	      "attribute vec2 a_position;\n" +
 	      "void main() {\n" +
-	      "  vec4 a = a_position; \n" +
-	      "  a.x = scaleX*(a.x - u_center.x);\n" +
-	      "  a.y = scaleY*(a.y - u_center.y);\n" +
-	      "  a.z = 1.0;\n" +
+	      "  vec4 a = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+	      "  a.x = scaleX*(a_position.x*u_scale + u_offset.x);\n" +
+	      "  a.y = scaleY*(a_position.y*u_scale + u_offset.y);\n" +
+	      "  a.z = 0.0;\n" +
 	      "  gl_Position = a;\n" +
 	      "}\n";
 
@@ -0,0 +1,488 @@
+package com.android.glmap;
+
+import java.nio.Buffer;
+import java.util.HashMap;
+
+import android.opengl.GLES20;
+
+/**
+ * GLBackend that remembers the GL state it has set and drops calls that
+ * would not change it: program, buffer bindings, enabled capabilities and
+ * vertex attribute arrays, attribute pointers, uniforms and the blend,
+ * depth, stencil and mask settings. Everything else is passed on. The
+ * cache has to be invalidated when the GL context is recreated.
+ */
+class StateCache implements GLBackend {
+	private static final int MAX_ATTRIBS = 16;
+
+	// capabilities the renderer switches, see capIndex()
+	private static final int NROF_CAPS = 5;
+
+	private final GLBackend gl;
+
+	private boolean valid;
+
+	private int program;
+	private int arrayBuffer;
+	private int elementArrayBuffer;
+	private final boolean[] caps = new boolean[NROF_CAPS];
+	private final boolean[] attribEnabled = new boolean[MAX_ATTRIBS];
+
+	// per attribute: buffer, size, type, normalized, stride, offset; buffer
+	// -1 for unknown or client arrays
+	private final int[] attribPointer = new int[6 * MAX_ATTRIBS];
+
+	// constant values of disabled attribute arrays, two floats each
+	private final float[] attribValue = new float[2 * MAX_ATTRIBS];
+
+	// per program, four floats for each uniform location
+	private final HashMap<Integer, float[]> uniforms = new HashMap<Integer, float[]>();
+	private float[] programUniforms;
+
+	private int blendSrc, blendDst;
+	private int depthFunc;
+	private boolean depthMask;
+	private boolean colorMaskR, colorMaskG, colorMaskB, colorMaskA;
+	private int stencilFunc, stencilRef, stencilFuncMask;
+	private int stencilFail, stencilZFail, stencilZPass;
+	private int stencilMask;
+	private int cullFace;
+	private int frontFace;
+
+	// Statistics since the last resetStatistics()
+	private int nrofSaved;
+
+	StateCache(GLBackend gl) {
+		this.gl = gl;
+	}
+
+	/**
+	 * Forget all state. Call this on a new context, the cache then assumes
+	 * GL defaults for capabilities and masks.
+	 */
+	void invalidate() {
+		valid = false;
+		uniforms.clear();
+		programUniforms = null;
+	}
+
+	private boolean check() {
+		if (valid)
+			return true;
+
+		// the defaults of a new context, or values that never match
+		program = -1;
+		arrayBuffer = -1;
+		elementArrayBuffer = -1;
+		for (int i = 0; i < NROF_CAPS; i++)
+			caps[i] = false;
+		for (int i = 0; i < MAX_ATTRIBS; i++) {
+			attribEnabled[i] = false;
+			attribPointer[6 * i] = -1;
+			attribValue[2 * i] = Float.NaN;
+		}
+		blendSrc = blendDst = -1;
+		depthFunc = -1;
+		stencilFunc = stencilFail = stencilZFail = stencilZPass = -1;
+		stencilMask = ~0;
+		depthMask = true;
+		colorMaskR = colorMaskG = colorMaskB = colorMaskA = true;
+		cullFace = frontFace = -1;
+
+		valid = true;
+		return false;
+	}
+
+	private boolean saved() {
+		nrofSaved++;
+		return true;
+	}
+
+	int getSavedCount() {
+		return nrofSaved;
+	}
+
+	void resetStatistics() {
+		nrofSaved = 0;
+	}
+
+	private static int capIndex(int cap) {
+		switch (cap) {
+			case GLES20.GL_BLEND:
+				return 0;
+			case GLES20.GL_CULL_FACE:
+				return 1;
+			case GLES20.GL_DEPTH_TEST:
+				return 2;
+			case GLES20.GL_STENCIL_TEST:
+				return 3;
+			case GLES20.GL_SCISSOR_TEST:
+				return 4;
+		}
+		return -1;
+	}
+
+	private void setCap(int cap, boolean enable) {
+		boolean known = check();
+		int i = capIndex(cap);
+
+		if (i >= 0 && known && caps[i] == enable && saved())
+			return;
+
+		if (i >= 0)
+			caps[i] = enable;
+
+		if (enable)
+			gl.glEnable(cap);
+		else
+			gl.glDisable(cap);
+	}
+
+	private void setAttribArray(int index, boolean enable) {
+		boolean known = check();
+
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			if (known && attribEnabled[index] == enable && saved())
+				return;
+			attribEnabled[index] = enable;
+		}
+
+		if (enable)
+			gl.glEnableVertexAttribArray(index);
+		else
+			gl.glDisableVertexAttribArray(index);
+	}
+
+	// @return true when the uniform already has this value
+	private boolean setUniform(int location, float x, float y, float z, float w) {
+		if (!check() || location < 0 || programUniforms == null)
+			return false;
+
+		int i = 4 * location;
+		if (i + 4 > programUniforms.length) {
+			float[] grown = new float[Math.max(i + 4, 2 * programUniforms.length)];
+			System.arraycopy(programUniforms, 0, grown, 0, programUniforms.length);
+			for (int k = programUniforms.length; k < grown.length; k++)
+				grown[k] = Float.NaN;
+			programUniforms = grown;
+			uniforms.put(program, grown);
+		}
+
+		if (programUniforms[i] == x && programUniforms[i + 1] == y && programUniforms[i + 2] == z
+		      && programUniforms[i + 3] == w)
+			return saved();
+
+		programUniforms[i] = x;
+		programUniforms[i + 1] = y;
+		programUniforms[i + 2] = z;
+		programUniforms[i + 3] = w;
+		return false;
+	}
+
+	public void glUseProgram(int program) {
+		if (check() && this.program == program && saved())
+			return;
+
+		this.program = program;
+		programUniforms = uniforms.get(program);
+		if (programUniforms == null) {
+			// NaN never compares equal, so the first value is always set
+			programUniforms = new float[4 * 16];
+			java.util.Arrays.fill(programUniforms, Float.NaN);
+			uniforms.put(program, programUniforms);
+		}
+		gl.glUseProgram(program);
+	}
+
+	public void glBindBuffer(int target, int buffer) {
+		boolean known = check();
+
+		if (target == GLES20.GL_ARRAY_BUFFER) {
+			if (known && arrayBuffer == buffer && saved())
+				return;
+			arrayBuffer = buffer;
+		} else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+			if (known && elementArrayBuffer == buffer && saved())
+				return;
+			elementArrayBuffer = buffer;
+		}
+		gl.glBindBuffer(target, buffer);
+	}
+
+	public void glEnable(int cap) {
+		setCap(cap, true);
+	}
+
+	public void glDisable(int cap) {
+		setCap(cap, false);
+	}
+
+	public void glEnableVertexAttribArray(int index) {
+		setAttribArray(index, true);
+	}
+
+	public void glDisableVertexAttribArray(int index) {
+		setAttribArray(index, false);
+	}
+
+	public void glVertexAttrib2f(int index, float x, float y) {
+		boolean known = check();
+
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			int i = 2 * index;
+			if (known && attribValue[i] == x && attribValue[i + 1] == y && saved())
+				return;
+
+			attribValue[i] = x;
+			attribValue[i + 1] = y;
+		}
+		gl.glVertexAttrib2f(index, x, y);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      int offset) {
+		boolean known = check();
+
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			int i = 6 * index;
+			int n = normalized ? 1 : 0;
+
+			if (known && attribPointer[i] == arrayBuffer && attribPointer[i + 1] == size
+			      && attribPointer[i + 2] == type && attribPointer[i + 3] == n
+			      && attribPointer[i + 4] == stride && attribPointer[i + 5] == offset && saved())
+				return;
+
+			attribPointer[i] = arrayBuffer;
+			attribPointer[i + 1] = size;
+			attribPointer[i + 2] = type;
+			attribPointer[i + 3] = n;
+			attribPointer[i + 4] = stride;
+			attribPointer[i + 5] = offset;
+		}
+		gl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+	      Buffer ptr) {
+		check();
+
+		// the client array may have changed, never skip
+		if (index >= 0 && index < MAX_ATTRIBS)
+			attribPointer[6 * index] = -1;
+
+		gl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+	}
+
+	public void glUniform1f(int location, float x) {
+		if (!setUniform(location, x, 0, 0, 0))
+			gl.glUniform1f(location, x);
+	}
+
+	public void glUniform2f(int location, float x, float y) {
+		if (!setUniform(location, x, y, 0, 0))
+			gl.glUniform2f(location, x, y);
+	}
+
+	public void glUniform4f(int location, float x, float y, float z, float w) {
+		if (!setUniform(location, x, y, z, w))
+			gl.glUniform4f(location, x, y, z, w);
+	}
+
+	public void glBlendFunc(int sfactor, int dfactor) {
+		if (check() && blendSrc == sfactor && blendDst == dfactor && saved())
+			return;
+
+		blendSrc = sfactor;
+		blendDst = dfactor;
+		gl.glBlendFunc(sfactor, dfactor);
+	}
+
+	public void glDepthFunc(int func) {
+		if (check() && depthFunc == func && saved())
+			return;
+
+		depthFunc = func;
+		gl.glDepthFunc(func);
+	}
+
+	public void glDepthMask(boolean flag) {
+		if (check() && depthMask == flag && saved())
+			return;
+
+		depthMask = flag;
+		gl.glDepthMask(flag);
+	}
+
+	public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		if (check() && colorMaskR == red && colorMaskG == green && colorMaskB == blue
+		      && colorMaskA == alpha && saved())
+			return;
+
+		colorMaskR = red;
+		colorMaskG = green;
+		colorMaskB = blue;
+		colorMaskA = alpha;
+		gl.glColorMask(red, green, blue, alpha);
+	}
+
+	public void glStencilFunc(int func, int ref, int mask) {
+		if (check() && stencilFunc == func && stencilRef == ref && stencilFuncMask == mask
+		      && saved())
+			return;
+
+		stencilFunc = func;
+		stencilRef = ref;
+		stencilFuncMask = mask;
+		gl.glStencilFunc(func, ref, mask);
+	}
+
+	public void glStencilOp(int fail, int zfail, int zpass) {
+		if (check() && stencilFail == fail && stencilZFail == zfail && stencilZPass == zpass
+		      && saved())
+			return;
+
+		stencilFail = fail;
+		stencilZFail = zfail;
+		stencilZPass = zpass;
+		gl.glStencilOp(fail, zfail, zpass);
+	}
+
+	public void glStencilMask(int mask) {
+		if (check() && stencilMask == mask && saved())
+			return;
+
+		stencilMask = mask;
+		gl.glStencilMask(mask);
+	}
+
+	public void glCullFace(int mode) {
+		if (check() && cullFace == mode && saved())
+			return;
+
+		cullFace = mode;
+		gl.glCullFace(mode);
+	}
+
+	public void glFrontFace(int mode) {
+		if (check() && frontFace == mode && saved())
+			return;
+
+		frontFace = mode;
+		gl.glFrontFace(mode);
+	}
+
+	// Calls that are always passed on
+
+	public void glAttachShader(int program, int shader) {
+		gl.glAttachShader(program, shader);
+	}
+
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		gl.glBufferData(target, size, data, usage);
+	}
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		gl.glBufferSubData(target, offset, size, data);
+	}
+
+	public void glClear(int mask) {
+		gl.glClear(mask);
+	}
+
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		gl.glClearColor(red, green, blue, alpha);
+	}
+
+	public void glCompileShader(int shader) {
+		gl.glCompileShader(shader);
+	}
+
+	public int glCreateProgram() {
+		return gl.glCreateProgram();
+	}
+
+	public int glCreateShader(int type) {
+		return gl.glCreateShader(type);
+	}
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		// deleted buffers are unbound, their names may be reused
+		for (int k = offset; k < offset + n; k++) {
+			if (arrayBuffer == buffers[k])
+				arrayBuffer = 0;
+			if (elementArrayBuffer == buffers[k])
+				elementArrayBuffer = 0;
+			for (int i = 0; i < MAX_ATTRIBS; i++)
+				if (attribPointer[6 * i] == buffers[k])
+					attribPointer[6 * i] = -1;
+		}
+		gl.glDeleteBuffers(n, buffers, offset);
+	}
+
+	public void glDeleteProgram(int program) {
+		uniforms.remove(program);
+		if (this.program == program)
+			this.program = -1;
+		gl.glDeleteProgram(program);
+	}
+
+	public void glDeleteShader(int shader) {
+		gl.glDeleteShader(shader);
+	}
+
+	public void glDrawArrays(int mode, int first, int count) {
+		gl.glDrawArrays(mode, first, count);
+	}
+
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		gl.glDrawElements(mode, count, type, offset);
+	}
+
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		gl.glGenBuffers(n, buffers, offset);
+	}
+
+	public int glGetAttribLocation(int program, String name) {
+		return gl.glGetAttribLocation(program, name);
+	}
+
+	public int glGetError() {
+		return gl.glGetError();
+	}
+
+	public String glGetProgramInfoLog(int program) {
+		return gl.glGetProgramInfoLog(program);
+	}
+
+	public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		gl.glGetProgramiv(program, pname, params, offset);
+	}
+
+	public String glGetShaderInfoLog(int shader) {
+		return gl.glGetShaderInfoLog(shader);
+	}
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		gl.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	public String glGetString(int name) {
+		return gl.glGetString(name);
+	}
+
+	public int glGetUniformLocation(int program, String name) {
+		return gl.glGetUniformLocation(program, name);
+	}
+
+	public void glLinkProgram(int program) {
+		gl.glLinkProgram(program);
+	}
+
+	public void glShaderSource(int shader, String string) {
+		gl.glShaderSource(shader, string);
+	}
+
+	public void glViewport(int x, int y, int width, int height) {
+		gl.glViewport(x, y, width, height);
+	}
+}
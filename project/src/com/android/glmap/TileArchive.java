@@ -0,0 +1,190 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * All tiles packed into one memory-mapped file, as written by mapgenerator.
+ * The file starts with magic, version and number of tiles, followed by an
+ * index of (x, y, line offset, line length, polygon offset, polygon length)
+ * entries sorted by x, then y. Version 2 adds the offset and length of the
+ * pre-tessellated vertex section to each entry. Version 3 holds all levels
+ * of the tile pyramid, its entries start with the level and are sorted by
+ * level, x, then y. The sections have the same layout as the separate
+ * .line, .poly and .vtx files.
+ *
+ * The archive is mapped once and shared by all loader threads, every
+ * lookup returns an independent view into the mapping.
+ */
+class TileArchive {
+	private static final String TAG = "TileArchive";
+
+	static final int MAGIC = 0x414d4c47; // "GLMA"
+	static final int VERSION = 3;
+
+	private static final int HEADER_SIZE = 12;
+
+	private final ByteBuffer mapping;
+	private final int nrofTiles;
+	private final int entrySize;
+	// size of the level field in front of x and y, 0 without levels
+	private final int levelSize;
+
+	private TileArchive(ByteBuffer mapping, int nrofTiles, int entrySize, int levelSize) {
+		this.mapping = mapping;
+		this.nrofTiles = nrofTiles;
+		this.entrySize = entrySize;
+		this.levelSize = levelSize;
+	}
+
+	/**
+	 * Map an archive file.
+	 *
+	 * @return the archive or null when the file does not exist or is not a
+	 *         valid archive.
+	 */
+	static TileArchive open(String fileName) {
+		File file = new File(fileName);
+		if (!file.isFile() || !file.canRead())
+			return null;
+
+		RandomAccessFile inputFile = null;
+		ByteBuffer mapping;
+
+		try {
+			inputFile = new RandomAccessFile(file, "r");
+			FileChannel fileChannel = inputFile.getChannel();
+
+			mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size())
+			      .order(ByteOrder.nativeOrder());
+		} catch (IOException e) {
+			Log.e(TAG, "open: " + e);
+			return null;
+		} finally {
+			try {
+				if (inputFile != null)
+					inputFile.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close: " + e);
+			}
+		}
+
+		if (mapping.limit() < HEADER_SIZE || mapping.getInt(0) != MAGIC) {
+			Log.e(TAG, "not a tile archive: " + fileName);
+			return null;
+		}
+
+		int version = mapping.getInt(4);
+		if (version < 1 || version > VERSION) {
+			Log.e(TAG, "unsupported archive version " + version + ": " + fileName);
+			return null;
+		}
+		int levelSize = version < 3 ? 0 : 4;
+		int entrySize = (version == 1 ? 24 : 32) + levelSize;
+
+		int nrofTiles = mapping.getInt(8);
+		if (nrofTiles < 0 || HEADER_SIZE + nrofTiles * entrySize > mapping.limit()) {
+			Log.e(TAG, "corrupt archive index: " + fileName);
+			return null;
+		}
+
+		Log.i(TAG, "Opened " + fileName + " with " + nrofTiles + " tiles.");
+
+		return new TileArchive(mapping, nrofTiles, entrySize, levelSize);
+	}
+
+	private int find(int x, int y, int level) {
+		// older archives only have level 0
+		if (levelSize == 0 && level != 0)
+			return -1;
+
+		int low = 0;
+		int high = nrofTiles - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int pos = HEADER_SIZE + mid * entrySize;
+			int ml = levelSize == 0 ? 0 : mapping.getInt(pos);
+			int mx = mapping.getInt(pos + levelSize);
+			int my = mapping.getInt(pos + levelSize + 4);
+
+			if (ml < level || (ml == level && (mx < x || (mx == x && my < y))))
+				low = mid + 1;
+			else if (ml > level || mx > x || my > y)
+				high = mid - 1;
+			else
+				return pos + levelSize;
+		}
+		return -1;
+	}
+
+	private ByteBuffer section(int x, int y, int level, int field) {
+		if (levelSize + field >= entrySize)
+			return null;
+
+		int pos = find(x, y, level);
+		if (pos < 0)
+			return null;
+
+		int offset = mapping.getInt(pos + field);
+		int length = mapping.getInt(pos + field + 4);
+		if (length == 0)
+			return null;
+
+		ByteBuffer buf = mapping.duplicate();
+		buf.position(offset);
+		buf.limit(offset + length);
+
+		return buf.slice().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return the line section of tile x/y of a pyramid level or null if the
+	 *         archive does not contain the tile.
+	 */
+	ByteBuffer getLines(int x, int y, int level) {
+		return section(x, y, level, 8);
+	}
+
+	/**
+	 * @return the polygon section of tile x/y of a pyramid level or null if
+	 *         the archive does not contain the tile.
+	 */
+	ByteBuffer getPolygons(int x, int y, int level) {
+		return section(x, y, level, 16);
+	}
+
+	/**
+	 * @return the pre-tessellated vertex section of tile x/y of a pyramid
+	 *         level or null if the archive has none for the tile.
+	 */
+	ByteBuffer getVertices(int x, int y, int level) {
+		return section(x, y, level, 24);
+	}
+
+	int getTileCount() {
+		return nrofTiles;
+	}
+
+	/**
+	 * @return the pyramid levels the archive has tiles of, one bit per level
+	 */
+	int getLevels() {
+		if (levelSize == 0)
+			return nrofTiles > 0 ? 1 : 0;
+
+		int levels = 0;
+		for (int i = 0; i < nrofTiles; i++) {
+			int level = mapping.getInt(HEADER_SIZE + i * entrySize);
+			if (level >= 0 && level < 32)
+				levels |= 1 << level;
+		}
+		return levels;
+	}
+}
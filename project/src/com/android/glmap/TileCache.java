@@ -0,0 +1,236 @@
+package com.android.glmap;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Decoded tiles that left the tile window, kept to avoid reading and
+ * tessellating them again when the view returns. Entries are keyed by tile
+ * position and pyramid level and evicted least recently used first once
+ * their buffers exceed maxBytes. The data moves between the cache and the
+ * tile slots: put() takes the buffers of a slot, get() hands them back.
+ * Tiles decoded ahead of the camera are added with putPrefetched().
+ */
+class TileCache {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "TileCache";
+
+	// accounted for each entry besides its buffers
+	private static final int ENTRY_SIZE = 256;
+
+	private final BufferPool bufferPool;
+	private int maxBytes;
+	private int bytes;
+
+	// in access order, the eldest entry comes first
+	private final LinkedHashMap<Long, GLMapTile> entries = new LinkedHashMap<Long, GLMapTile>(
+	      64, 0.75f, true);
+
+	// keys of prefetched entries that were not used yet
+	private final HashSet<Long> prefetched = new HashSet<Long>();
+
+	// Statistics
+	private int hits;
+	private int misses;
+	private int evictions;
+	private int nrofPrefetched;
+	private int prefetchHits;
+
+	TileCache(BufferPool bufferPool, int maxBytes) {
+		this.bufferPool = bufferPool;
+		this.maxBytes = maxBytes;
+	}
+
+	// tile numbers stay far below 2^24, the level goes into the top byte
+	private static long key(int x, int y, int level) {
+		return ((long) level << 56) | ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	// Slices of mapped pre-tessellated tiles are read-only and take no
+	// memory of their own, the pages belong to the tile file. Pool buffers
+	// hold their whole size class.
+	private static int size(ByteBuffer buf) {
+		return buf == null || buf.isReadOnly() ? 0 : buf.capacity();
+	}
+
+	private static int size(GLMapTile tile) {
+		return ENTRY_SIZE + size(tile.lineVerticesBuffer) + size(tile.colorVerticesBuffer)
+		      + size(tile.lineIndicesBuffer) + size(tile.polygonVerticesBuffer);
+	}
+
+	// move the decoded data of a tile, the buffers are not copied
+	private static void move(GLMapTile from, GLMapTile to) {
+		to.nrofLineVertices = from.nrofLineVertices;
+		to.nrofPolygonVertices = from.nrofPolygonVertices;
+		to.nrofLineIndices = from.nrofLineIndices;
+		to.lineIndexSize = from.lineIndexSize;
+		to.lineVertexSize = from.lineVertexSize;
+		to.lineExtrusion = from.lineExtrusion;
+		to.lineOriginX = from.lineOriginX;
+		to.lineOriginY = from.lineOriginY;
+		to.lineScale = from.lineScale;
+		to.polygonOriginX = from.polygonOriginX;
+		to.polygonOriginY = from.polygonOriginY;
+		to.polygonScale = from.polygonScale;
+		to.polygonLayers = from.polygonLayers;
+		to.polygonTriangles = from.polygonTriangles;
+		to.lineLevelStart = from.lineLevelStart;
+		to.lineLevelCount = from.lineLevelCount;
+		to.polygonLevels = from.polygonLevels;
+		to.bounds.reset();
+		to.bounds.add(from.bounds, 0);
+
+		to.lineVerticesBuffer = from.lineVerticesBuffer;
+		to.colorVerticesBuffer = from.colorVerticesBuffer;
+		to.lineIndicesBuffer = from.lineIndicesBuffer;
+		to.polygonVerticesBuffer = from.polygonVerticesBuffer;
+		from.lineVerticesBuffer = null;
+		from.colorVerticesBuffer = null;
+		from.lineIndicesBuffer = null;
+		from.polygonVerticesBuffer = null;
+	}
+
+	private void releaseBuffers(GLMapTile tile) {
+		bufferPool.release(tile.lineVerticesBuffer);
+		bufferPool.release(tile.colorVerticesBuffer);
+		bufferPool.release(tile.lineIndicesBuffer);
+		bufferPool.release(tile.polygonVerticesBuffer);
+	}
+
+	private void release(GLMapTile entry) {
+		bytes -= size(entry);
+		releaseBuffers(entry);
+	}
+
+	/**
+	 * Take over the decoded data of a tile, its buffers are set to null.
+	 */
+	synchronized void put(GLMapTile tile) {
+		long k = key(tile.x, tile.y, tile.level);
+		prefetched.remove(k);
+
+		GLMapTile entry = entries.remove(k);
+		if (entry != null)
+			release(entry);
+		else
+			entry = new GLMapTile();
+
+		move(tile, entry);
+		entry.x = tile.x;
+		entry.y = tile.y;
+		entry.level = tile.level;
+
+		entries.put(k, entry);
+		bytes += size(entry);
+
+		trim(maxBytes);
+	}
+
+	/**
+	 * Take over the data of a tile that was decoded before it entered the
+	 * tile window.
+	 */
+	synchronized void putPrefetched(GLMapTile tile) {
+		put(tile);
+		prefetched.add(key(tile.x, tile.y, tile.level));
+		nrofPrefetched++;
+	}
+
+	/**
+	 * @return true if tile x/y of a pyramid level is cached.
+	 */
+	synchronized boolean contains(int x, int y, int level) {
+		return entries.containsKey(key(x, y, level));
+	}
+
+	/**
+	 * Move the data of tile x/y of a pyramid level into the given tile.
+	 *
+	 * @return false if the tile is not cached.
+	 */
+	synchronized boolean get(int x, int y, int level, GLMapTile tile) {
+		long k = key(x, y, level);
+		GLMapTile entry = entries.remove(k);
+		if (entry == null) {
+			misses++;
+			return false;
+		}
+		hits++;
+		if (prefetched.remove(k))
+			prefetchHits++;
+
+		bytes -= size(entry);
+		releaseBuffers(tile);
+		move(entry, tile);
+
+		if (DEBUG)
+			Log.i(TAG, "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions
+			      + ", cached: " + entries.size() + " tiles, " + bytes + " bytes");
+
+		return true;
+	}
+
+	/**
+	 * Evict entries until at most maxBytes are used.
+	 */
+	synchronized void trim(int maxBytes) {
+		for (Iterator<Map.Entry<Long, GLMapTile>> it = entries.entrySet().iterator(); it
+		      .hasNext() && bytes > maxBytes;) {
+			Map.Entry<Long, GLMapTile> e = it.next();
+			release(e.getValue());
+			prefetched.remove(e.getKey());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	synchronized void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+		trim(maxBytes);
+	}
+
+	synchronized int getHits() {
+		return hits;
+	}
+
+	synchronized int getMisses() {
+		return misses;
+	}
+
+	synchronized float getHitRate() {
+		return hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+	}
+
+	/**
+	 * The share of prefetched tiles that were taken into the tile window.
+	 */
+	synchronized float getPrefetchHitRate() {
+		return nrofPrefetched == 0 ? 0 : (float) prefetchHits / nrofPrefetched;
+	}
+
+	synchronized int getPrefetched() {
+		return nrofPrefetched;
+	}
+
+	synchronized int getPrefetchHits() {
+		return prefetchHits;
+	}
+
+	synchronized int getEvictions() {
+		return evictions;
+	}
+
+	synchronized int getBytes() {
+		return bytes;
+	}
+
+	synchronized int getCount() {
+		return entries.size();
+	}
+}
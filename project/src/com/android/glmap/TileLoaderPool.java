@@ -0,0 +1,159 @@
+package com.android.glmap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Fixed pool of tile decoding threads. Each thread owns its own GLMapLoader,
+ * so several tiles can be decoded at the same time.
+ */
+class TileLoaderPool {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "TileLoaderPool";
+
+	private final ExecutorService executor;
+	private final int nrofWorkers;
+	private final BufferPool bufferPool;
+
+	private TileArchive archive;
+	private boolean archiveChecked;
+	private int levels;
+	private boolean levelsChecked;
+
+	private final ThreadLocal<GLMapLoader> loaders = new ThreadLocal<GLMapLoader>() {
+		@Override
+		protected GLMapLoader initialValue() {
+			return new GLMapLoader(bufferPool, getArchive());
+		}
+	};
+
+	// Throughput statistics
+	private final AtomicInteger tilesLoaded = new AtomicInteger();
+	private final AtomicInteger tilesFailed = new AtomicInteger();
+	private final AtomicLong decodeTime = new AtomicLong();
+	private final long startTime = System.nanoTime();
+
+	TileLoaderPool(BufferPool bufferPool) {
+		this(bufferPool, Runtime.getRuntime().availableProcessors());
+	}
+
+	TileLoaderPool(BufferPool bufferPool, int workers) {
+		this.bufferPool = bufferPool;
+		this.nrofWorkers = Math.max(1, workers);
+
+		this.executor = Executors.newFixedThreadPool(this.nrofWorkers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TileLoader-" + count.incrementAndGet());
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (DEBUG)
+			Log.i(TAG, "Started " + this.nrofWorkers + " tile loader threads.");
+	}
+
+	int getWorkerCount() {
+		return this.nrofWorkers;
+	}
+
+	Future<?> submit(Runnable task) {
+		return this.executor.submit(task);
+	}
+
+	/**
+	 * The tile archive is mapped once, on first use, and shared by all
+	 * loaders. Without an archive the loaders read the separate tile files.
+	 */
+	private synchronized TileArchive getArchive() {
+		if (!archiveChecked) {
+			archive = TileArchive.open(GLMapLoader.archiveFile);
+			archiveChecked = true;
+		}
+		return archive;
+	}
+
+	/**
+	 * @return the pyramid levels of the tile archive or, without one, of the
+	 *         separate tile files, one bit per level
+	 */
+	synchronized int getLevels() {
+		if (!levelsChecked) {
+			TileArchive archive = getArchive();
+			levels = archive != null ? archive.getLevels() : GLMapLoader.findLevels();
+			levelsChecked = true;
+		}
+		return levels;
+	}
+
+	/**
+	 * Decode a tile with the loader owned by the calling thread.
+	 *
+	 * @return false if the tile has no data or its data is corrupt.
+	 */
+	boolean loadMapTile(int x, int y, int level, GLMapTile tile) {
+		long start = System.nanoTime();
+
+		boolean loaded = false;
+		try {
+			loaded = loaders.get().loadMapTile(x, y, level, tile);
+		} catch (RuntimeException e) {
+			// truncated or corrupt sections, the map shows a gap there
+			tilesFailed.incrementAndGet();
+			Log.e(TAG, "cannot load tile " + x + "_" + y + " level " + level + ": " + e);
+		}
+
+		decodeTime.addAndGet(System.nanoTime() - start);
+		int n = tilesLoaded.incrementAndGet();
+
+		if (DEBUG && n % 16 == 0)
+			Log.i(TAG, "tiles: " + n + ", " + getTilesPerSecond() + " tiles/s with "
+			      + this.nrofWorkers + " workers, " + getAverageDecodeTime() / 1000
+			      + "us per tile");
+
+		return loaded;
+	}
+
+	/**
+	 * Tiles decoded per second of wall-clock time since the pool was started.
+	 */
+	float getTilesPerSecond() {
+		long elapsed = System.nanoTime() - startTime;
+		if (elapsed <= 0)
+			return 0;
+
+		return tilesLoaded.get() * 1e9f / elapsed;
+	}
+
+	/**
+	 * Number of tiles whose decode failed with an exception.
+	 */
+	int getFailedCount() {
+		return tilesFailed.get();
+	}
+
+	/**
+	 * Average decode time of a single tile in nanoseconds.
+	 */
+	long getAverageDecodeTime() {
+		int n = tilesLoaded.get();
+		if (n == 0)
+			return 0;
+
+		return decodeTime.get() / n;
+	}
+
+	void shutdown() {
+		this.executor.shutdownNow();
+	}
+}
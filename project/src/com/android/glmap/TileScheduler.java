@@ -0,0 +1,285 @@
+package com.android.glmap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * Queue of pending tile loads. Requests are handed to the loader threads in
+ * order of their distance from the current camera centre, so the visible
+ * tiles are decoded first. Requests for slots that got assigned another
+ * tile before the decode started are dropped, as are results for an older
+ * generation of a slot, duplicate requests are merged. Tiles can be
+ * prefetched ahead of the camera, those are decoded only when no tile of the
+ * window waits.
+ */
+class TileScheduler {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "TileScheduler";
+
+	interface Listener {
+		void onTileLoaded(GLMapTile tile);
+
+		// the data of a prefetched tile, to be taken over by the listener
+		void onTilePrefetched(GLMapTile tile);
+	}
+
+	private static class Request {
+		// the slot to decode into, null for prefetches
+		GLMapTile tile;
+		// generation of the slot the request was made for
+		int generation;
+		int x;
+		int y;
+		int level;
+	}
+
+	private final TileLoaderPool loaderPool;
+	private final Listener listener;
+	private final int tileSize;
+
+	// pending requests by tile position
+	private final HashMap<Long, Request> pending = new HashMap<Long, Request>();
+
+	// pending prefetches in the order they were made, prefetches made for an
+	// older epoch are dropped
+	private final LinkedHashMap<Long, Request> prefetches = new LinkedHashMap<Long, Request>();
+	private int prefetchEpoch;
+
+	// prefetched tiles are decoded into one tile per loader thread
+	private final ThreadLocal<GLMapTile> prefetchTiles = new ThreadLocal<GLMapTile>() {
+		@Override
+		protected GLMapTile initialValue() {
+			return new GLMapTile();
+		}
+	};
+
+	private float centerX;
+	private float centerY;
+
+	// Statistics
+	private int nrofScheduled;
+	private int nrofMerged;
+	private int nrofDropped;
+	private int nrofLoaded;
+	private int nrofPrefetches;
+	private int nrofPrefetchesCancelled;
+
+	private final Runnable worker = new Runnable() {
+		public void run() {
+			Request request = next();
+			if (request != null)
+				load(request);
+		}
+	};
+
+	TileScheduler(TileLoaderPool loaderPool, int tileSize, Listener listener) {
+		this.loaderPool = loaderPool;
+		this.tileSize = tileSize;
+		this.listener = listener;
+	}
+
+	// tile numbers stay far below 2^24, the level goes into the top byte
+	private static long key(int x, int y, int level) {
+		return ((long) level << 56) | ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Set the camera centre used for prioritising the pending requests.
+	 */
+	synchronized void setCenter(float x, float y) {
+		this.centerX = x;
+		this.centerY = y;
+	}
+
+	/**
+	 * Queue loading tile x/y of a pyramid level into the given EMPTY slot.
+	 */
+	synchronized void schedule(GLMapTile tile, int x, int y, int level) {
+		long k = key(x, y, level);
+		Request request = pending.get(k);
+		int generation = tile.getGeneration();
+
+		prefetches.remove(k);
+
+		if (!tile.transition(generation, GLMapTile.EMPTY, GLMapTile.QUEUED))
+			return;
+
+		if (request != null) {
+			// Merge with the pending request. A tile always goes into the
+			// same slot, the request is that of an earlier generation of it.
+			request.generation = generation;
+			nrofMerged++;
+			return;
+		}
+
+		request = new Request();
+		request.tile = tile;
+		request.generation = generation;
+		request.x = x;
+		request.y = y;
+		request.level = level;
+		pending.put(k, request);
+		nrofScheduled++;
+
+		loaderPool.submit(worker);
+	}
+
+	/**
+	 * Queue decoding tile x/y of a pyramid level before it enters the tile
+	 * window, at a lower priority than the loads for the window.
+	 *
+	 * @param epoch
+	 *            the epoch the prefetch was planned in, see getPrefetchEpoch()
+	 * @return false if the prefetch was cancelled or is already pending.
+	 */
+	synchronized boolean prefetch(int x, int y, int level, int epoch) {
+		long k = key(x, y, level);
+
+		if (epoch != prefetchEpoch || pending.containsKey(k) || prefetches.containsKey(k))
+			return false;
+
+		Request request = new Request();
+		request.x = x;
+		request.y = y;
+		request.level = level;
+		prefetches.put(k, request);
+		nrofPrefetches++;
+
+		loaderPool.submit(worker);
+		return true;
+	}
+
+	synchronized int getPrefetchEpoch() {
+		return prefetchEpoch;
+	}
+
+	/**
+	 * Drop the pending prefetches, and those planned before for later.
+	 */
+	synchronized void cancelPrefetches() {
+		prefetchEpoch++;
+		nrofPrefetchesCancelled += prefetches.size();
+		prefetches.clear();
+	}
+
+	/**
+	 * Drop the pending request of a QUEUED slot that is about to be reused,
+	 * the slot moves on to EVICTING.
+	 *
+	 * @return false when the slot is not queued, i.e. its decode started.
+	 */
+	synchronized boolean cancel(GLMapTile tile) {
+		if (!tile.transition(GLMapTile.QUEUED, GLMapTile.EVICTING))
+			return false;
+
+		long k = key(tile.x, tile.y, tile.level);
+		Request request = pending.get(k);
+		if (request != null && request.tile == tile) {
+			pending.remove(k);
+			nrofDropped++;
+		}
+		return true;
+	}
+
+	private synchronized Request next() {
+		Request nearest = null;
+		float min = Float.MAX_VALUE;
+
+		for (Iterator<Request> it = pending.values().iterator(); it.hasNext();) {
+			Request request = it.next();
+
+			// slot was assigned another tile before decoding started
+			if (request.tile.getGeneration() != request.generation
+			      || request.tile.getState() != GLMapTile.QUEUED) {
+				it.remove();
+				nrofDropped++;
+				continue;
+			}
+
+			int size = tileSize << request.level;
+			float dx = (request.x + 0.5f) * size - centerX;
+			float dy = (request.y + 0.5f) * size - centerY;
+			float d = dx * dx + dy * dy;
+
+			if (d < min) {
+				min = d;
+				nearest = request;
+			}
+		}
+
+		if (nearest != null) {
+			pending.remove(key(nearest.x, nearest.y, nearest.level));
+			nearest.tile.transition(nearest.generation, GLMapTile.QUEUED, GLMapTile.DECODING);
+		} else if (!prefetches.isEmpty()) {
+			Iterator<Request> it = prefetches.values().iterator();
+			nearest = it.next();
+			it.remove();
+		}
+
+		return nearest;
+	}
+
+	private void load(Request request) {
+		GLMapTile tile = request.tile;
+
+		if (tile == null) {
+			tile = prefetchTiles.get();
+			tile.x = request.x;
+			tile.y = request.y;
+			tile.level = request.level;
+
+			if (loaderPool.loadMapTile(request.x, request.y, request.level, tile))
+				listener.onTilePrefetched(tile);
+			return;
+		}
+
+		boolean loaded = false;
+		boolean stale;
+		try {
+			loaded = loaderPool.loadMapTile(request.x, request.y, request.level, tile);
+		} finally {
+			// publish the data, unless the slot moved on to another
+			// generation. The slot leaves DECODING whatever happened, it
+			// could never be evicted otherwise.
+			stale = !tile.transition(request.generation, GLMapTile.DECODING,
+			                         loaded ? GLMapTile.READY_FOR_UPLOAD : GLMapTile.EMPTY);
+		}
+
+		synchronized (this) {
+			if (stale)
+				nrofDropped++;
+			nrofLoaded++;
+			if (DEBUG)
+				Log.i(TAG, "scheduled: " + nrofScheduled + ", loaded: " + nrofLoaded
+				      + ", merged: " + nrofMerged + ", dropped: " + nrofDropped
+				      + ", pending: " + pending.size() + ", prefetches: " + nrofPrefetches
+				      + ", cancelled: " + nrofPrefetchesCancelled);
+		}
+
+		listener.onTileLoaded(tile);
+	}
+
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	synchronized int getPrefetchCount() {
+		return nrofPrefetches;
+	}
+
+	synchronized int getPrefetchCancelledCount() {
+		return nrofPrefetchesCancelled;
+	}
+
+	synchronized int getDroppedCount() {
+		return nrofDropped;
+	}
+
+	synchronized int getMergedCount() {
+		return nrofMerged;
+	}
+}
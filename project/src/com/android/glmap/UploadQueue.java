@@ -0,0 +1,149 @@
+package com.android.glmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.util.Log;
+
+/**
+ * Tiles waiting for their vertex data to be uploaded to the GPU. Each frame
+ * the renderer uploads tiles nearest to the camera centre first until the
+ * byte or time budget of the frame is used up, the remaining tiles are
+ * carried over to the next frame. At least one tile is uploaded per frame,
+ * so the budget may be exceeded by one tile.
+ */
+class UploadQueue {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "UploadQueue";
+
+	private final int tileSize;
+	private int maxBytes;
+	private long maxNanos;
+
+	// sorted by decreasing distance, the nearest tile is taken from the end
+	private final ArrayList<GLMapTile> queue = new ArrayList<GLMapTile>();
+
+	private float centerX;
+	private float centerY;
+
+	private final Comparator<GLMapTile> byDistance = new Comparator<GLMapTile>() {
+		public int compare(GLMapTile a, GLMapTile b) {
+			return Float.compare(distance(b), distance(a));
+		}
+	};
+
+	// the current frame
+	private long frameStart;
+	private int frameBytes;
+	private int frameTiles;
+
+	// Statistics of the last frame
+	private int lastBytes;
+	private int lastTiles;
+	private int lastDepth;
+
+	/**
+	 * @param tileSize
+	 *            width of level 0 tiles in metres
+	 * @param maxBytes
+	 *            bytes to upload per frame
+	 * @param maxMillis
+	 *            time to spend on uploads per frame
+	 */
+	UploadQueue(int tileSize, int maxBytes, int maxMillis) {
+		this.tileSize = tileSize;
+		setBudget(maxBytes, maxMillis);
+	}
+
+	void setBudget(int maxBytes, int maxMillis) {
+		this.maxBytes = maxBytes;
+		this.maxNanos = maxMillis * 1000000L;
+	}
+
+	private float distance(GLMapTile tile) {
+		int size = tileSize << tile.level;
+		float dx = (tile.x + 0.5f) * size - centerX;
+		float dy = (tile.y + 0.5f) * size - centerY;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Start a frame, queue all tiles with new data by their distance from
+	 * x/y.
+	 */
+	void begin(GLMapTile[][] tiles, float x, float y) {
+		centerX = x;
+		centerY = y;
+
+		queue.clear();
+		for (int i = 0; i < tiles.length; i++)
+			for (int j = 0; j < tiles[i].length; j++)
+				if (tiles[i][j].getState() == GLMapTile.READY_FOR_UPLOAD)
+					queue.add(tiles[i][j]);
+
+		if (queue.size() > 1)
+			Collections.sort(queue, byDistance);
+
+		frameStart = System.nanoTime();
+		frameBytes = 0;
+		frameTiles = 0;
+	}
+
+	/**
+	 * @return the next tile to upload, or null when the queue is empty or
+	 *         the budget of this frame is used up.
+	 */
+	GLMapTile next() {
+		if (queue.isEmpty())
+			return null;
+
+		if (frameTiles > 0
+		      && (frameBytes >= maxBytes || System.nanoTime() - frameStart >= maxNanos))
+			return null;
+
+		return queue.remove(queue.size() - 1);
+	}
+
+	/**
+	 * Account for a tile returned by next() that was uploaded.
+	 */
+	void uploaded(int bytes) {
+		frameBytes += bytes;
+		frameTiles++;
+	}
+
+	/**
+	 * End the frame.
+	 *
+	 * @return true when tiles are left for the next frame.
+	 */
+	boolean end() {
+		lastBytes = frameBytes;
+		lastTiles = frameTiles;
+		lastDepth = queue.size();
+
+		if (DEBUG && frameTiles > 0)
+			Log.i(TAG, "uploaded " + frameTiles + " tiles, " + frameBytes + " bytes in "
+			      + (System.nanoTime() - frameStart) / 1000 + "us, " + lastDepth + " left");
+
+		queue.clear();
+		return lastDepth > 0;
+	}
+
+	/**
+	 * @return the number of tiles left waiting after the last frame.
+	 */
+	int getQueueDepth() {
+		return lastDepth;
+	}
+
+	int getBytesLastFrame() {
+		return lastBytes;
+	}
+
+	int getTilesLastFrame() {
+		return lastTiles;
+	}
+}
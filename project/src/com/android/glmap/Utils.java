@@ -6,55 +6,55 @@ import android.util.Log;
 class Utils {
 	static final String TAG = "GLMap";
 	
-	 public static void checkGlError(String op) {
+	 public static void checkGlError(GLBackend gl, String op) {
    	int error;
-   	while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+   	while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) {
    		Log.e(TAG, op + ": glError " + error);
    		// throw new RuntimeException(op + ": glError " + error);
    	}
    }
 
-	public static int createProgram(String vertexSource, String fragmentSource) {
-   	int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+	public static int createProgram(GLBackend gl, String vertexSource, String fragmentSource) {
+   	int vertexShader = loadShader(gl, GLES20.GL_VERTEX_SHADER, vertexSource);
    	if (vertexShader == 0) {
    		return 0;
    	}
    
-   	int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+   	int pixelShader = loadShader(gl, GLES20.GL_FRAGMENT_SHADER, fragmentSource);
    	if (pixelShader == 0) {
    		return 0;
    	}
    
-   	int program = GLES20.glCreateProgram();
+   	int program = gl.glCreateProgram();
    	if (program != 0) {
-   		GLES20.glAttachShader(program, vertexShader);
-   		checkGlError("glAttachShader");
-   		GLES20.glAttachShader(program, pixelShader);
-   		checkGlError("glAttachShader");
-   		GLES20.glLinkProgram(program);
+   		gl.glAttachShader(program, vertexShader);
+   		checkGlError(gl, "glAttachShader");
+   		gl.glAttachShader(program, pixelShader);
+   		checkGlError(gl, "glAttachShader");
+   		gl.glLinkProgram(program);
    		int[] linkStatus = new int[1];
-   		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+   		gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
    		if (linkStatus[0] == 0) {
    			Log.e(TAG, "Could not link program: ");
-   			Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-   			GLES20.glDeleteProgram(program);
+   			Log.e(TAG, gl.glGetProgramInfoLog(program));
+   			gl.glDeleteProgram(program);
    			program = 0;
    		}
    	}
    	return program;
    }
 
-	public static int loadShader(int shaderType, String source) {
-   	int shader = GLES20.glCreateShader(shaderType);
+	public static int loadShader(GLBackend gl, int shaderType, String source) {
+   	int shader = gl.glCreateShader(shaderType);
    	if (shader != 0) {
-   		GLES20.glShaderSource(shader, source);
-   		GLES20.glCompileShader(shader);
+   		gl.glShaderSource(shader, source);
+   		gl.glCompileShader(shader);
    		int[] compiled = new int[1];
-   		GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+   		gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
    		if (compiled[0] == 0) {
    			Log.e(TAG, "Could not compile shader " + shaderType + ":");
-   			Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-   			GLES20.glDeleteShader(shader);
+   			Log.e(TAG, gl.glGetShaderInfoLog(shader));
+   			gl.glDeleteShader(shader);
    			shader = 0;
    		}
    	}
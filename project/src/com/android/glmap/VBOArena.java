@@ -0,0 +1,163 @@
+package com.android.glmap;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Tile data sub-allocated from a few large buffer objects of one target.
+ * Each arena is allocated once with glBufferData and filled with
+ * glBufferSubData, so reloading a tile does not reallocate driver memory.
+ * Another arena is added when no arena has room, arenas other than the
+ * first are deleted again once they are empty.
+ */
+class VBOArena {
+	private final boolean DEBUG = false;
+
+	private static final String TAG = "VBOArena";
+
+	// offsets of vertex attributes and indices must be aligned
+	private static final int ALIGNMENT = 4;
+
+	/**
+	 * A range of bytes in one of the buffer objects, size is 0 when nothing
+	 * is allocated.
+	 */
+	static class Range {
+		int buffer;
+		int offset;
+		int size;
+	}
+
+	private final GLBackend gl;
+	private final int target;
+	private final int arenaSize;
+
+	private final ArrayList<Integer> buffers = new ArrayList<Integer>();
+	private final ArrayList<ArenaAllocator> allocators = new ArrayList<ArenaAllocator>();
+
+	private final int[] name = new int[1];
+
+	/**
+	 * @param target
+	 *            GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+	 * @param arenaSize
+	 *            bytes per arena, larger arenas are created for data that
+	 *            does not fit
+	 */
+	VBOArena(GLBackend gl, int target, int arenaSize) {
+		this.gl = gl;
+		this.target = target;
+		this.arenaSize = arenaSize;
+	}
+
+	private int addArena(int size) {
+		size = Math.max(arenaSize, (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1));
+
+		gl.glGenBuffers(1, name, 0);
+		gl.glBindBuffer(target, name[0]);
+		gl.glBufferData(target, size, null, GLES20.GL_DYNAMIC_DRAW);
+
+		buffers.add(name[0]);
+		allocators.add(new ArenaAllocator(size, ALIGNMENT));
+
+		if (DEBUG)
+			Log.i(TAG, "new arena of " + size + " bytes, " + this);
+
+		return buffers.size() - 1;
+	}
+
+	/**
+	 * Copy size bytes from data into a new range, the previous range is
+	 * freed. The buffer of the range stays bound.
+	 */
+	void upload(Range range, Buffer data, int size) {
+		free(range);
+		if (size == 0)
+			return;
+
+		int offset = -1;
+		int a;
+		for (a = 0; a < allocators.size(); a++)
+			if ((offset = allocators.get(a).allocate(size)) >= 0)
+				break;
+
+		if (offset < 0) {
+			a = addArena(size);
+			offset = allocators.get(a).allocate(size);
+		}
+
+		range.buffer = buffers.get(a);
+		range.offset = offset;
+		range.size = size;
+
+		gl.glBindBuffer(target, range.buffer);
+		gl.glBufferSubData(target, offset, size, data);
+	}
+
+	/**
+	 * Give a range back to its arena.
+	 */
+	void free(Range range) {
+		if (range.size == 0)
+			return;
+
+		int a = buffers.indexOf(range.buffer);
+		if (a >= 0) {
+			ArenaAllocator allocator = allocators.get(a);
+			allocator.free(range.offset, range.size);
+
+			if (a > 0 && allocator.getAllocationCount() == 0) {
+				name[0] = buffers.remove(a);
+				allocators.remove(a);
+				gl.glDeleteBuffers(1, name, 0);
+			}
+		}
+		range.buffer = 0;
+		range.offset = 0;
+		range.size = 0;
+	}
+
+	int getArenaCount() {
+		return buffers.size();
+	}
+
+	int getCapacity() {
+		int bytes = 0;
+		for (ArenaAllocator allocator : allocators)
+			bytes += allocator.getCapacity();
+		return bytes;
+	}
+
+	int getUsedBytes() {
+		int bytes = 0;
+		for (ArenaAllocator allocator : allocators)
+			bytes += allocator.getUsedBytes();
+		return bytes;
+	}
+
+	/**
+	 * @return the share of free bytes that are not part of the largest free
+	 *         range of their arena, see ArenaAllocator.getFragmentation().
+	 */
+	float getFragmentation() {
+		int freeBytes = 0;
+		int largest = 0;
+		for (ArenaAllocator allocator : allocators) {
+			freeBytes += allocator.getFreeBytes();
+			largest += allocator.getLargestFreeRange();
+		}
+		if (freeBytes == 0)
+			return 0;
+
+		return 1 - (float) largest / freeBytes;
+	}
+
+	@Override
+	public String toString() {
+		return getArenaCount() + " arenas, " + getUsedBytes() + " of " + getCapacity()
+		      + " bytes used, fragmentation " + getFragmentation();
+	}
+}
@@ -0,0 +1,42 @@
+#!/bin/sh
+#
+# Run the tests and benchmarks in src/ on a plain JVM. The app sources,
+# except for the activity, are compiled against the stand-ins in stubs/ for
+# the Android classes they use. The sample tiles of map.tar.bz2 are
+# unpacked once into $OUT/tiles.
+#
+#   ./run.sh                  run all *Test classes
+#   ./run.sh <class> [args]   run a single test or benchmark
+#
+
+set -e
+
+cd "$(dirname "$0")"
+OUT=${OUT:-${TMPDIR:-/tmp}/glmap-tests}
+TILES=$OUT/tiles/
+
+if [ ! -d "$TILES" ]; then
+	mkdir -p "$OUT/tiles.tmp"
+	tar -xjf ../../map.tar.bz2 -C "$OUT/tiles.tmp"
+	mv "$OUT/tiles.tmp" "$TILES"
+fi
+
+rm -rf "$OUT/classes"
+mkdir -p "$OUT/classes"
+javac -nowarn -d "$OUT/classes" $(find stubs src -name '*.java') \
+	$(ls ../src/com/android/glmap/*.java | grep -v GLMapActivity)
+
+run() {
+	class=$1
+	shift
+	java -ea -cp "$OUT/classes" -Dglmap.tiles="$TILES" com.android.glmap.$class "$@"
+}
+
+if [ $# -gt 0 ]; then
+	run "$@"
+	exit
+fi
+
+for test in src/com/android/glmap/*Test.java; do
+	run $(basename $test .java)
+done
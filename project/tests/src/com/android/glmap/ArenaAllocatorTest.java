@@ -0,0 +1,185 @@
+package com.android.glmap;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * ArenaAllocator: first-fit allocation, freeing, merging of free
+ * neighbours, fragmentation and a full arena, then random allocations and
+ * frees checked against a map of the used bytes.
+ */
+public class ArenaAllocatorTest {
+	public static void main(String[] args) {
+		allocate();
+		free();
+		coalesce();
+		fragmentation();
+		full();
+		random();
+		System.out.println("ArenaAllocatorTest passed");
+	}
+
+	private static void expect(String what, long actual, long expected) {
+		if (actual != expected)
+			throw new AssertionError(what + ": " + actual + ", expected " + expected);
+	}
+
+	private static void allocate() {
+		// the capacity is rounded down to the alignment
+		ArenaAllocator arena = new ArenaAllocator(1001, 8);
+		expect("capacity", arena.getCapacity(), 1000);
+
+		// sizes are rounded up, empty ranges take one unit
+		expect("first", arena.allocate(10), 0);
+		expect("second", arena.allocate(1), 16);
+		expect("third", arena.allocate(0), 24);
+		expect("used", arena.getUsedBytes(), 32);
+		expect("allocations", arena.getAllocationCount(), 3);
+		expect("free", arena.getFreeBytes(), 968);
+		expect("free ranges", arena.getFreeRangeCount(), 1);
+	}
+
+	private static void free() {
+		ArenaAllocator arena = new ArenaAllocator(1000, 4);
+		int a = arena.allocate(100);
+		int b = arena.allocate(100);
+		arena.allocate(100);
+
+		arena.free(b, 100);
+		expect("used", arena.getUsedBytes(), 200);
+		expect("allocations", arena.getAllocationCount(), 2);
+		expect("free ranges", arena.getFreeRangeCount(), 2);
+
+		// first fit takes the hole again, smaller ranges leave the rest
+		expect("reuse", arena.allocate(60), b);
+		expect("rest", arena.allocate(40), b + 60);
+		expect("after", arena.allocate(40), 300);
+
+		arena.free(a, 100);
+		expect("hole", arena.allocate(100), a);
+	}
+
+	private static void coalesce() {
+		ArenaAllocator arena = new ArenaAllocator(400, 4);
+		int a = arena.allocate(100);
+		int b = arena.allocate(100);
+		int c = arena.allocate(100);
+		int d = arena.allocate(100);
+		expect("free ranges when full", arena.getFreeRangeCount(), 0);
+
+		// no neighbours free
+		arena.free(b, 100);
+		arena.free(d, 100);
+		expect("free ranges", arena.getFreeRangeCount(), 2);
+
+		// merges with the free range after it
+		arena.free(a, 100);
+		expect("merged with next", arena.getFreeRangeCount(), 2);
+		expect("largest", arena.getLargestFreeRange(), 200);
+
+		// merges with the free ranges on both sides
+		arena.free(c, 100);
+		expect("merged with both", arena.getFreeRangeCount(), 1);
+		expect("largest", arena.getLargestFreeRange(), 400);
+		expect("whole arena", arena.allocate(400), 0);
+	}
+
+	private static void fragmentation() {
+		ArenaAllocator arena = new ArenaAllocator(1000, 4);
+		if (arena.getFragmentation() != 0)
+			throw new AssertionError("empty arena fragmented");
+
+		int[] offsets = new int[10];
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = arena.allocate(100);
+
+		// every other range free: 500 bytes in 5 pieces
+		for (int i = 0; i < offsets.length; i += 2)
+			arena.free(offsets[i], 100);
+
+		expect("free", arena.getFreeBytes(), 500);
+		expect("largest", arena.getLargestFreeRange(), 100);
+		if (Math.abs(arena.getFragmentation() - 0.8f) > 1e-6f)
+			throw new AssertionError("fragmentation " + arena.getFragmentation());
+
+		// enough free bytes, but not in one piece
+		expect("too fragmented", arena.allocate(200), -1);
+
+		for (int i = 1; i < offsets.length; i += 2)
+			arena.free(offsets[i], 100);
+		if (arena.getFragmentation() != 0)
+			throw new AssertionError("fragmentation " + arena.getFragmentation());
+	}
+
+	private static void full() {
+		ArenaAllocator arena = new ArenaAllocator(256, 4);
+		expect("larger than the arena", arena.allocate(257), -1);
+
+		int n = 0;
+		while (arena.allocate(64) >= 0)
+			n++;
+		expect("ranges in a full arena", n, 4);
+		expect("free", arena.getFreeBytes(), 0);
+		expect("smallest", arena.allocate(1), -1);
+
+		arena.free(128, 64);
+		expect("after a free", arena.allocate(64), 128);
+
+		// an arena smaller than its alignment has no room at all
+		expect("no capacity", new ArenaAllocator(3, 4).allocate(1), -1);
+	}
+
+	private static void random() {
+		Random random = new Random(1);
+		int capacity = 1 << 14;
+		ArenaAllocator arena = new ArenaAllocator(capacity, 4);
+		boolean[] used = new boolean[capacity];
+		ArrayList<int[]> live = new ArrayList<int[]>();
+		int usedBytes = 0;
+
+		for (int i = 0; i < 20000; i++) {
+			if (live.isEmpty() || random.nextInt(3) != 0) {
+				int size = 1 + random.nextInt(1000);
+				int aligned = (size + 3) & ~3;
+				int offset = arena.allocate(size);
+
+				if (offset < 0) {
+					// there must be no aligned free run that fits
+					for (int start = 0; start + aligned <= capacity; start += 4) {
+						int end = start;
+						while (end < start + aligned && !used[end])
+							end++;
+						if (end == start + aligned)
+							throw new AssertionError(size + " bytes not found at " + start);
+					}
+					continue;
+				}
+
+				expect("alignment", offset % 4, 0);
+				for (int b = offset; b < offset + aligned; b++) {
+					if (used[b])
+						throw new AssertionError("overlap at " + b);
+					used[b] = true;
+				}
+				usedBytes += aligned;
+				live.add(new int[] { offset, size });
+			} else {
+				int[] range = live.remove(random.nextInt(live.size()));
+				int aligned = (range[1] + 3) & ~3;
+				arena.free(range[0], range[1]);
+
+				for (int b = range[0]; b < range[0] + aligned; b++)
+					used[b] = false;
+				usedBytes -= aligned;
+			}
+
+			expect("used", arena.getUsedBytes(), usedBytes);
+			expect("allocations", arena.getAllocationCount(), live.size());
+		}
+
+		for (int[] range : live)
+			arena.free(range[0], range[1]);
+		expect("free ranges at the end", arena.getFreeRangeCount(), 1);
+		expect("largest at the end", arena.getLargestFreeRange(), capacity);
+	}
+}
@@ -0,0 +1,78 @@
+package com.android.glmap;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Contention on the published camera: one thread publishes camera
+ * snapshots, as the GL thread does each frame, while readers check that
+ * every snapshot they get is consistent, with x, y and z from the same
+ * write, and that they never see an older write after a newer one.
+ *
+ * Usage: CameraSnapshotTest [writes] [readers]
+ */
+public class CameraSnapshotTest {
+	public static void main(String[] args) throws Exception {
+		final int writes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int nrofReaders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		// write n has x = n, y = 2n, z = 3n, exact in floats below 2^24
+		final AtomicReference<Camera> camera = new AtomicReference<Camera>(new Camera(0, 0, 0));
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final long[] reads = new long[nrofReaders];
+
+		Thread[] readers = new Thread[nrofReaders];
+		for (int r = 0; r < nrofReaders; r++) {
+			final int reader = r;
+			readers[r] = new Thread() {
+				@Override
+				public void run() {
+					float last = 0;
+					long n = 0;
+					while (!done.get() && failure.get() == null) {
+						Camera c = camera.get();
+						if (c.y != 2 * c.x || c.z != 3 * c.x)
+							failure.compareAndSet(null, "torn camera " + c.x + ", " + c.y + ", "
+							      + c.z);
+						else if (c.x < last)
+							failure.compareAndSet(null, "write " + c.x + " after " + last);
+						last = c.x;
+						n++;
+					}
+					reads[reader] = n;
+				}
+			};
+			readers[r].start();
+		}
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int n = 1; n <= writes && failure.get() == null; n++) {
+					camera.set(new Camera(n, 2 * n, 3 * n));
+					// let the readers in on a single core
+					if (n % 1000 == 0)
+						Thread.yield();
+				}
+				done.set(true);
+			}
+		};
+		writer.start();
+
+		writer.join();
+		long total = 0;
+		for (int r = 0; r < nrofReaders; r++) {
+			readers[r].join();
+			total += reads[r];
+		}
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		if (camera.get().x != writes)
+			throw new AssertionError("last write " + camera.get().x);
+
+		System.out.println("CameraSnapshotTest passed, " + writes + " writes, " + total
+		      + " reads by " + nrofReaders + " readers");
+	}
+}
@@ -0,0 +1,142 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Size and decode cost of the compressed point encoding. The sections of the
+ * sample tiles are converted to tile-local multiples of the quantum, stored
+ * as zig-zag varint deltas, and compared with the float sections: the bytes
+ * of the points, the time to decode them with PointReader, and the time to
+ * load all tiles from an archive of either.
+ *
+ * Usage: PointDecodeBenchmark [quantum] [rounds]
+ */
+public class PointDecodeBenchmark {
+	private static class Section {
+		ByteBuffer floats;
+		ByteBuffer deltas;
+		int recordSize;
+	}
+
+	public static void main(String[] args) throws Exception {
+		float quantum = args.length > 0 ? Float.parseFloat(args[0]) : 0.5f;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int[][] tiles = SampleTiles.list();
+
+		TileWriter floats = new TileWriter();
+		TileWriter deltas = new TileWriter();
+		ArrayList<Section> sections = new ArrayList<Section>();
+		long[] pointBytes = new long[2];
+		long nrofPoints = 0;
+
+		for (int[] t : tiles) {
+			String name = GLMapLoader.tiledir + t[0] + "_" + t[1];
+			ByteBuffer lines = TileWriter.read(name + ".line");
+			ByteBuffer polygons = TileWriter.read(name + ".poly");
+			ByteBuffer[] original = { lines, polygons };
+			ByteBuffer[] compressed = new ByteBuffer[2];
+			int[] recordSize = { TileWriter.LINE_RECORD_SIZE, TileWriter.POLYGON_RECORD_SIZE };
+
+			for (int i = 0; i < 2; i++) {
+				if (original[i] == null)
+					continue;
+
+				Section section = new Section();
+				section.floats = original[i];
+				section.deltas = TileWriter.compress(original[i], recordSize[i], t[0], t[1], quantum);
+				section.recordSize = recordSize[i];
+				sections.add(section);
+				compressed[i] = section.deltas;
+
+				// without header and records
+				int records = original[i].getInt(0) * recordSize[i];
+				pointBytes[0] += section.floats.limit() - 8 - records;
+				pointBytes[1] += section.deltas.limit() - 28 - records;
+				nrofPoints += original[i].getInt(4);
+			}
+			floats.add(0, t[0], t[1], lines, polygons, null);
+			deltas.add(0, t[0], t[1], compressed[0], compressed[1], null);
+		}
+
+		System.out.println(tiles.length + " tiles, " + nrofPoints + " points, quantum "
+		      + quantum + "m, best of " + rounds + " rounds");
+		System.out.printf("point bytes: %d kB floats, %d kB deltas, %.1fx smaller%n",
+		                  pointBytes[0] / 1024, pointBytes[1] / 1024, (double) pointBytes[0]
+		                        / pointBytes[1]);
+
+		// the first round warms up
+		long[] decode = { Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int r = 0; r <= rounds; r++) {
+			for (int f = 0; f < 2; f++) {
+				long time = decode(sections, f == 1);
+				if (r > 0)
+					decode[f] = Math.min(decode[f], time);
+			}
+		}
+		System.out.printf("decode: %.1f ns/point floats, %.1f ns/point deltas%n", (double) decode[0]
+		      / nrofPoints, (double) decode[1] / nrofPoints);
+
+		File floatFile = File.createTempFile("floats", ".map");
+		File deltaFile = File.createTempFile("deltas", ".map");
+		floatFile.deleteOnExit();
+		deltaFile.deleteOnExit();
+
+		BufferPool bufferPool = new BufferPool(1 << 24);
+		GLMapLoader[] loaders = { new GLMapLoader(bufferPool, floats.write(floatFile)),
+		      new GLMapLoader(bufferPool, deltas.write(deltaFile)) };
+		long[] load = { Long.MAX_VALUE, Long.MAX_VALUE };
+		GLMapTile tile = new GLMapTile();
+
+		for (int r = 0; r <= rounds; r++) {
+			for (int f = 0; f < 2; f++) {
+				long start = System.nanoTime();
+				for (int[] t : tiles) {
+					loaders[f].loadMapTile(t[0], t[1], 0, tile);
+					SampleTiles.release(bufferPool, tile);
+				}
+				if (r > 0)
+					load[f] = Math.min(load[f], System.nanoTime() - start);
+			}
+		}
+		System.out.printf("load: %.1f us/tile floats, %.1f us/tile deltas%n", load[0] / 1000.0
+		      / tiles.length, load[1] / 1000.0 / tiles.length);
+	}
+
+	/**
+	 * Decode the points of all sections.
+	 *
+	 * @return the time taken in nanoseconds
+	 */
+	private static long decode(ArrayList<Section> sections, boolean compressed) {
+		float sum = 0;
+		long start = System.nanoTime();
+
+		for (Section section : sections) {
+			ByteBuffer buf = compressed ? section.deltas : section.floats;
+			PointReader points;
+			int n;
+
+			if (compressed) {
+				n = buf.getInt(12);
+				points = new PointReader.Deltas(buf, 28 + buf.getInt(8) * section.recordSize,
+				                                buf.getInt(16), buf.getInt(20), buf.getFloat(24));
+			} else {
+				n = buf.getInt(4);
+				points = new PointReader.Floats(buf, 8 + buf.getInt(0) * section.recordSize);
+			}
+
+			for (int i = 0; i < n; i++) {
+				points.next();
+				sum += points.x + points.y;
+			}
+		}
+		long time = System.nanoTime() - start;
+
+		// keep the decoding from being optimised away
+		if (sum == 0)
+			System.out.println(sum);
+		return time;
+	}
+}
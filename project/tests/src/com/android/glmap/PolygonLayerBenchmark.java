@@ -0,0 +1,71 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Load time of synthetic tiles with the same polygons in 1 to 200 distinct
+ * colours. Grouping the polygons into colour layers takes one pass over the
+ * header table whatever the number of layers, so the time should hardly
+ * change with the number of colours.
+ *
+ * Usage: PolygonLayerBenchmark [polygons]
+ */
+public class PolygonLayerBenchmark {
+	private static final int[] COLORS = { 1, 10, 50, 100, 200 };
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) throws Exception {
+		int nrofPolygons = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		System.out.println(nrofPolygons + " quads per tile, best of " + ROUNDS + " loads");
+
+		for (int c = 0; c < COLORS.length; c++) {
+			File file = File.createTempFile("layers", ".map");
+			file.deleteOnExit();
+
+			TileWriter writer = new TileWriter();
+			writer.add(0, 0, 0, TileWriter.section(new int[0][], new float[0]),
+			           polygons(nrofPolygons, COLORS[c]), null);
+			TileArchive archive = writer.write(file);
+
+			BufferPool bufferPool = new BufferPool(1 << 24);
+			GLMapLoader loader = new GLMapLoader(bufferPool, archive);
+			GLMapTile tile = new GLMapTile();
+			long best = Long.MAX_VALUE;
+
+			for (int r = 0; r < ROUNDS; r++) {
+				long start = System.nanoTime();
+				loader.loadMapTile(0, 0, 0, tile);
+				best = Math.min(best, System.nanoTime() - start);
+
+				if (tile.polygonLayers.size() != COLORS[c])
+					throw new AssertionError(tile.polygonLayers.size() + " layers");
+				SampleTiles.release(bufferPool, tile);
+			}
+
+			System.out.printf("%3d colours: %6.0f us/tile%n", COLORS[c], best / 1000.0);
+		}
+	}
+
+	/**
+	 * Random quads in the tile, the colours taking turns.
+	 */
+	private static ByteBuffer polygons(int n, int nrofColors) {
+		Random random = new Random(n);
+		int[][] records = new int[n][];
+		float[] points = new float[8 * n];
+
+		for (int i = 0; i < n; i++) {
+			records[i] = TileWriter.polygonRecord(4, 0xff000000 | (i % nrofColors) * 0x010305);
+
+			float x = random.nextFloat() * (TileWriter.TILE_SIZE - 10);
+			float y = random.nextFloat() * (TileWriter.TILE_SIZE - 10);
+			float size = 1 + random.nextFloat() * 9;
+			float[] quad = { x, y, x + size, y, x + size, y + size, x, y + size };
+			System.arraycopy(quad, 0, points, 8 * i, 8);
+		}
+		return TileWriter.section(records, points);
+	}
+}
@@ -0,0 +1,39 @@
+package com.android.glmap;
+
+import java.io.File;
+
+/**
+ * The pyramid levels the renderer can pick from: those of an archive, and
+ * of the separate tile files of map.tar.bz2, which only has level 0.
+ */
+public class PyramidLevelTest {
+	public static void main(String[] args) throws Exception {
+		int levels = GLMapLoader.findLevels();
+		if (levels != 1)
+			throw new AssertionError("sample tile levels " + Integer.toBinaryString(levels));
+
+		TileLoaderPool pool = new TileLoaderPool(new BufferPool(1 << 20), 1);
+		levels = pool.getLevels();
+		pool.shutdown();
+		if (levels != 1)
+			throw new AssertionError("loader pool levels " + Integer.toBinaryString(levels));
+
+		// an archive with tiles of levels 0 and 2 only
+		int[][] records = { TileWriter.lineRecord(2, 1, 0, 0xff000000, 0xffffffff) };
+		float[] points = { 0, 0, 10, 10 };
+
+		TileWriter writer = new TileWriter();
+		writer.add(0, 0, 0, TileWriter.section(records, points), null, null);
+		writer.add(0, 1, 0, TileWriter.section(records, points), null, null);
+		writer.add(2, 0, 0, TileWriter.section(records, points), null, null);
+
+		File file = File.createTempFile("levels", ".map");
+		file.deleteOnExit();
+
+		levels = writer.write(file).getLevels();
+		if (levels != 5)
+			throw new AssertionError("archive levels " + Integer.toBinaryString(levels));
+
+		System.out.println("PyramidLevelTest passed");
+	}
+}
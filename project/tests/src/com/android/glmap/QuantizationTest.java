@@ -0,0 +1,105 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Round trip of vertex positions through the tile-local shorts: random
+ * points across a tile are loaded as lines and triangles, every decoded
+ * position origin + short * scale has to be within scale / 2 of its point.
+ * Around Bremen floats have a resolution of 1/16m, so only the points of
+ * large pyramid tiles need rounding there; near the origin all do.
+ */
+public class QuantizationTest {
+	private static final int[][] TILES = { { 1, 1 }, { 1960, 13990 } };
+	private static final int[] EXTENTS = { 1, 16, 500, 8000 };
+	private static final int NROF_ITEMS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+
+		for (int[] tile : TILES) {
+			for (int extent : EXTENTS) {
+				float[] points = new float[6 * NROF_ITEMS];
+				for (int i = 0; i < points.length; i += 2) {
+					points[i] = tile[0] * TileWriter.TILE_SIZE + random.nextFloat() * extent;
+					points[i + 1] = tile[1] * TileWriter.TILE_SIZE + random.nextFloat() * extent;
+				}
+				check(tile[0], tile[1], points);
+			}
+		}
+		System.out.println("QuantizationTest passed");
+	}
+
+	private static void check(int x, int y, float[] points) throws Exception {
+		// lines of two points and triangles from the same points
+		int[][] lines = new int[3 * NROF_ITEMS / 2][];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = TileWriter.lineRecord(2, 1, 0, 0xff000000, 0xffffffff);
+
+		int[][] triangles = new int[NROF_ITEMS][];
+		for (int i = 0; i < triangles.length; i++)
+			triangles[i] = TileWriter.polygonRecord(3, 0xff00ff00);
+
+		TileWriter writer = new TileWriter();
+		writer.add(0, x, y, TileWriter.section(lines, points),
+		           TileWriter.section(triangles, points), null);
+
+		File file = File.createTempFile("quantization", ".map");
+		file.deleteOnExit();
+
+		GLMapLoader loader = new GLMapLoader(new BufferPool(1 << 20), writer.write(file));
+		GLMapTile tile = new GLMapTile();
+		if (!loader.loadMapTile(x, y, 0, tile))
+			throw new AssertionError("tile not loaded");
+
+		// Each line of two points starts with 4 vertices at its first point
+		// and ends with 4 at its second, with 12 bytes per vertex
+		ByteBuffer buf = tile.lineVerticesBuffer;
+		if (tile.lineLevelCount[0] != lines.length * 6 * 3)
+			throw new AssertionError(tile.lineLevelCount[0] + " line indices");
+
+		for (int v = 0; v < lines.length * 8; v++) {
+			int p = 2 * (v / 4);
+			check("line", points, p, tile.lineOriginX, tile.lineOriginY, tile.lineScale,
+			      buf.getShort(v * 12), buf.getShort(v * 12 + 2));
+		}
+
+		// Each triangle gives its 3 points in some order
+		buf = tile.polygonVerticesBuffer;
+		PolygonLayer layer = tile.polygonLayers.get(0);
+		for (int t = 0; t < triangles.length; t++) {
+			int first = layer.polygonIndex[2 * t];
+			if (layer.polygonIndex[2 * t + 1] != 3)
+				throw new AssertionError("triangle " + t + ": " + layer.polygonIndex[2 * t + 1]);
+
+			for (int v = first; v < first + 3; v++) {
+				short qx = buf.getShort(v * 4);
+				short qy = buf.getShort(v * 4 + 2);
+				int p = 6 * t;
+				while (p < 6 * t + 4
+				      && Math.max(error(points[p], tile.polygonOriginX, tile.polygonScale, qx),
+				                  error(points[p + 1], tile.polygonOriginY, tile.polygonScale, qy))
+				            > tile.polygonScale / 2)
+					p += 2;
+				check("triangle", points, p, tile.polygonOriginX, tile.polygonOriginY,
+				      tile.polygonScale, qx, qy);
+			}
+		}
+	}
+
+	private static double error(float position, float origin, float scale, short q) {
+		return Math.abs((double) origin + q * (double) scale - position);
+	}
+
+	private static void check(String what, float[] points, int p, float originX, float originY,
+	      float scale, short qx, short qy) {
+		double ex = error(points[p], originX, scale, qx);
+		double ey = error(points[p + 1], originY, scale, qy);
+
+		if (ex > scale / 2 || ey > scale / 2)
+			throw new AssertionError(what + " point " + p / 2 + " (" + points[p] + ", "
+			      + points[p + 1] + "): error " + Math.max(ex, ey) + "m at scale " + scale + "m");
+	}
+}
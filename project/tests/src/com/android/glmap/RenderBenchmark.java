@@ -0,0 +1,56 @@
+package com.android.glmap;
+
+import java.util.Map;
+
+/**
+ * Renders frames of the sample tiles through RecordingBackend, without a
+ * device, and prints the GL calls of each: state changes, draw calls,
+ * drawn vertices and uploaded bytes. Tiles are loaded and uploaded within
+ * the first frames, then the view pans by 'pan' pixels per frame.
+ *
+ * Usage: RenderBenchmark [zoom factor] [frames] [pan] [log]
+ */
+public class RenderBenchmark {
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+
+	public static void main(String[] args) throws Exception {
+		float zoom = args.length > 0 ? Float.parseFloat(args[0]) : 4;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		float pan = args.length > 2 ? Float.parseFloat(args[2]) : 50;
+		boolean log = args.length > 3 && args[3].equals("log");
+
+		RecordingBackend gl = new RecordingBackend(log, "GL_OES_element_index_uint");
+		GLMapRenderer renderer = new GLMapRenderer(null, gl);
+		renderer.zoom(zoom);
+		// upload all tiles of a frame right away
+		renderer.setUploadBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+		renderer.onSurfaceCreated(null, null);
+		System.out.println("init:     " + gl);
+		gl.reset();
+
+		renderer.onSurfaceChanged(null, WIDTH, HEIGHT);
+		System.out.println("resize:   " + gl);
+
+		long drawCalls = 0;
+		long stateChanges = 0;
+		for (int f = 1; f <= frames; f++) {
+			gl.reset();
+			if (f > 1)
+				renderer.move(pan, pan / 2);
+
+			renderer.onDrawFrame(null);
+			System.out.printf("frame %2d: %s%n", f, gl);
+
+			drawCalls += gl.getDrawCallCount();
+			stateChanges += gl.getStateChangeCount();
+		}
+
+		System.out.printf("%d frames, %.1f draw calls and %.1f state changes per frame%n",
+		                  frames, (double) drawCalls / frames, (double) stateChanges / frames);
+		System.out.println("calls of the last frame:");
+		for (Map.Entry<String, Integer> call : gl.getCalls().entrySet())
+			System.out.printf("  %-28s %6d%n", call.getKey(), call.getValue());
+	}
+}
@@ -0,0 +1,43 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The level 0 tiles in GLMapLoader.tiledir, see run.sh.
+ */
+class SampleTiles {
+	static int[][] list() {
+		String[] names = new File(GLMapLoader.tiledir).list();
+		if (names == null)
+			throw new IllegalStateException("no tiles in " + GLMapLoader.tiledir);
+
+		Arrays.sort(names);
+		ArrayList<int[]> tiles = new ArrayList<int[]>();
+
+		for (String name : names) {
+			if (!name.endsWith(".line"))
+				continue;
+
+			String[] xy = name.substring(0, name.length() - 5).split("_");
+			if (xy.length == 2)
+				tiles.add(new int[] { Integer.parseInt(xy[0]), Integer.parseInt(xy[1]) });
+		}
+		return tiles.toArray(new int[tiles.size()][]);
+	}
+
+	/**
+	 * Hand the buffers of a loaded tile back to the pool.
+	 */
+	static void release(BufferPool pool, GLMapTile tile) {
+		pool.release(tile.lineVerticesBuffer);
+		pool.release(tile.colorVerticesBuffer);
+		pool.release(tile.lineIndicesBuffer);
+		pool.release(tile.polygonVerticesBuffer);
+		tile.lineVerticesBuffer = null;
+		tile.colorVerticesBuffer = null;
+		tile.lineIndicesBuffer = null;
+		tile.polygonVerticesBuffer = null;
+	}
+}
@@ -0,0 +1,78 @@
+package com.android.glmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Time of tessellating the sample tiles straight into their direct buffers,
+ * and of the staging copy loadMapTile used to make on top: the vertices went
+ * through heap arrays, grown to the largest tile, into freshly allocated
+ * direct buffers. The best round counts.
+ *
+ * Usage: TessellationBenchmark [rounds]
+ */
+public class TessellationBenchmark {
+	private static byte[] staging = new byte[1];
+	private static long stagedBytes;
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int[][] tiles = SampleTiles.list();
+		BufferPool bufferPool = new BufferPool(1 << 24);
+		GLMapLoader loader = new GLMapLoader(bufferPool, null);
+		GLMapTile tile = new GLMapTile();
+
+		long bestLoad = Long.MAX_VALUE;
+		long bestCopy = Long.MAX_VALUE;
+
+		// the first round warms up
+		for (int r = 0; r <= rounds; r++) {
+			long load = 0;
+			long copy = 0;
+			stagedBytes = 0;
+
+			for (int[] t : tiles) {
+				long start = System.nanoTime();
+				loader.loadMapTile(t[0], t[1], 0, tile);
+				long loaded = System.nanoTime();
+
+				stage(tile.lineVerticesBuffer, tile.nrofLineVertices * tile.lineVertexSize);
+				stage(tile.colorVerticesBuffer, tile.nrofLineVertices * 8);
+				stage(tile.lineIndicesBuffer, tile.nrofLineIndices * tile.lineIndexSize);
+				stage(tile.polygonVerticesBuffer, tile.nrofPolygonVertices * 4);
+
+				load += loaded - start;
+				copy += System.nanoTime() - loaded;
+
+				SampleTiles.release(bufferPool, tile);
+			}
+
+			if (r > 0) {
+				bestLoad = Math.min(bestLoad, load);
+				bestCopy = Math.min(bestCopy, copy);
+			}
+		}
+
+		int n = tiles.length;
+		System.out.println(n + " tiles, best of " + rounds + " rounds");
+		System.out.printf("load:         %6.1f us/tile%n", bestLoad / 1000.0 / n);
+		System.out.printf("staging copy: %6.1f us/tile, %.1f kB/tile, staging array %d kB%n",
+		                  bestCopy / 1000.0 / n, stagedBytes / 1024.0 / n, staging.length / 1024);
+	}
+
+	private static void stage(ByteBuffer buf, int size) {
+		if (buf == null)
+			return;
+
+		if (staging.length < size)
+			staging = new byte[size];
+
+		buf.position(0);
+		buf.get(staging, 0, size);
+		buf.position(0);
+
+		ByteBuffer copy = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		copy.put(staging, 0, size);
+		stagedBytes += size;
+	}
+}
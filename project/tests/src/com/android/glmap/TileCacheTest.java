@@ -0,0 +1,152 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * What TileCache counts against its budget: the pool buffers of decoded
+ * tiles, but not the slices of mapped pre-tessellated tiles, which share
+ * the pages of the tile file. Only tiles that left the tile window take
+ * the budget, so after panning away and back all of them are still there.
+ */
+public class TileCacheTest {
+	private static final int TILE_SIZE = 500;
+	private static final int NROF_TILES = 8;
+
+	public static void main(String[] args) throws Exception {
+		accounting();
+		panBack();
+
+		System.out.println("TileCacheTest passed");
+	}
+
+	private static void accounting() throws Exception {
+		int[] t = SampleTiles.list()[0];
+		BufferPool bufferPool = new BufferPool(1 << 24);
+		TileCache cache = new TileCache(bufferPool, 1 << 24);
+
+		GLMapTile tile = new GLMapTile();
+		if (!new GLMapLoader(bufferPool, null).loadMapTile(t[0], t[1], 0, tile))
+			throw new AssertionError("tile not loaded");
+		tile.x = t[0];
+		tile.y = t[1];
+
+		int buffers = capacity(tile.lineVerticesBuffer) + capacity(tile.colorVerticesBuffer)
+		      + capacity(tile.lineIndicesBuffer) + capacity(tile.polygonVerticesBuffer);
+
+		// the same tile from a pre-tessellated archive
+		TileWriter writer = new TileWriter();
+		writer.add(0, t[0], t[1], null, null, TileWriter.vertices(tile));
+		File file = File.createTempFile("cache", ".map");
+		file.deleteOnExit();
+
+		GLMapTile mapped = new GLMapTile();
+		if (!new GLMapLoader(bufferPool, writer.write(file)).loadMapTile(t[0], t[1], 0, mapped))
+			throw new AssertionError("pre-tessellated tile not loaded");
+		mapped.x = t[0] + 1;
+		mapped.y = t[1];
+		if (!mapped.lineVerticesBuffer.isReadOnly())
+			throw new AssertionError("pre-tessellated tile not mapped");
+
+		cache.put(tile);
+		int entry = cache.getBytes() - buffers;
+		if (entry <= 0 || entry > 1024)
+			throw new AssertionError(cache.getBytes() + " bytes for " + buffers + " of buffers");
+
+		// only the entry itself counts for the mapped tile
+		cache.put(mapped);
+		if (cache.getBytes() != buffers + 2 * entry)
+			throw new AssertionError(cache.getBytes() + " bytes with the mapped tile");
+
+		GLMapTile out = new GLMapTile();
+		if (!cache.get(mapped.x, mapped.y, 0, out) || !cache.get(tile.x, tile.y, 0, out))
+			throw new AssertionError("tiles not cached");
+		if (cache.getBytes() != 0)
+			throw new AssertionError(cache.getBytes() + " bytes left");
+	}
+
+	private static void panBack() {
+		int[][] sample = SampleTiles.list();
+		long sumX = 0;
+		long sumY = 0;
+		for (int[] t : sample) {
+			sumX += t[0];
+			sumY += t[1];
+		}
+
+		GLMapRenderer renderer = new GLMapRenderer(null, new RecordingBackend(false,
+		      "GL_OES_element_index_uint"));
+		renderer.setUploadBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		renderer.onSurfaceCreated(null, null);
+		renderer.onSurfaceChanged(null, 480, 800);
+
+		// level 0 is the only level of the sample tiles
+		float x = (sumX / sample.length + 0.5f) * TILE_SIZE;
+		float y = (sumY / sample.length + 0.5f) * TILE_SIZE;
+		float z = 1 / 2048f;
+		int tx = (int) ((x - 0.5 * TILE_SIZE * NROF_TILES) / TILE_SIZE);
+		int ty = (int) ((y - 0.5 * TILE_SIZE * NROF_TILES) / TILE_SIZE);
+
+		// Pan three tiles to the east and back. Enough budget for the
+		// columns that leave the window on the way, but not for the window.
+		TileCache cache = renderer.getTileCache();
+		int leaving = cached(tx, tx + 3, ty) + cached(tx + 8, tx + 11, ty);
+
+		// The window moves without the camera, the frames only upload the
+		// tiles that entered it
+		renderer.mapMove(x, y, z, true);
+		renderer.onDrawFrame(null);
+		cache.trim(0);
+		cache.setMaxBytes(leaving);
+
+		for (int i = 1; i <= 3; i++) {
+			renderer.mapMove(x + i * TILE_SIZE, y, z, true);
+			renderer.onDrawFrame(null);
+		}
+
+		int hits = cache.getHits();
+		for (int i = 2; i >= 0; i--) {
+			renderer.mapMove(x + i * TILE_SIZE, y, z, true);
+			renderer.onDrawFrame(null);
+		}
+		hits = cache.getHits() - hits;
+		int expected = countTiles(tx, tx + 3, ty);
+
+		if (expected == 0)
+			throw new AssertionError("no sample tiles left the window");
+		if (hits != expected)
+			throw new AssertionError(hits + " of " + expected + " tiles cached after panning back");
+	}
+
+	// the cache budget taken by the tiles of columns x0 to x1 - 1 of a window
+	// row ty
+	private static int cached(int x0, int x1, int ty) {
+		BufferPool bufferPool = new BufferPool(0);
+		TileCache cache = new TileCache(bufferPool, Integer.MAX_VALUE);
+		GLMapLoader loader = new GLMapLoader(bufferPool, null);
+
+		for (int x = x0; x < x1; x++) {
+			for (int y = ty; y < ty + NROF_TILES; y++) {
+				GLMapTile tile = new GLMapTile();
+				if (loader.loadMapTile(x, y, 0, tile)) {
+					tile.assign(x, y, 0);
+					cache.put(tile);
+				}
+			}
+		}
+		return cache.getBytes();
+	}
+
+	private static int countTiles(int x0, int x1, int ty) {
+		int count = 0;
+		for (int x = x0; x < x1; x++)
+			for (int y = ty; y < ty + NROF_TILES; y++)
+				if (new File(GLMapLoader.tiledir + x + "_" + y + ".line").isFile())
+					count++;
+		return count;
+	}
+
+	private static int capacity(ByteBuffer buf) {
+		return buf == null ? 0 : buf.capacity();
+	}
+}
@@ -0,0 +1,44 @@
+package com.android.glmap;
+
+import java.nio.BufferUnderflowException;
+
+/**
+ * A decode that throws must not leave its slot in DECODING, where the
+ * renderer could never evict it.
+ */
+public class TileFailureTest {
+	public static void main(String[] args) throws Exception {
+		TileLoaderPool pool = new TileLoaderPool(new BufferPool(1 << 20), 1) {
+			@Override
+			boolean loadMapTile(int x, int y, int level, GLMapTile tile) {
+				// a section shorter than its header claims
+				throw new BufferUnderflowException();
+			}
+		};
+		TileScheduler scheduler = new TileScheduler(pool, TileWriter.TILE_SIZE,
+		                                            new TileScheduler.Listener() {
+			public void onTileLoaded(GLMapTile tile) {
+			}
+
+			public void onTilePrefetched(GLMapTile tile) {
+			}
+		});
+
+		GLMapTile tile = new GLMapTile();
+		tile.assign(1, 2, 0);
+		scheduler.schedule(tile, 1, 2, 0);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (tile.getState() == GLMapTile.QUEUED || tile.getState() == GLMapTile.DECODING) {
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError("slot stuck in state " + tile.getState());
+			Thread.sleep(1);
+		}
+		pool.shutdown();
+
+		if (tile.getState() != GLMapTile.EMPTY)
+			throw new AssertionError("state " + tile.getState() + " after a failed decode");
+
+		System.out.println("TileFailureTest passed");
+	}
+}
@@ -0,0 +1,66 @@
+package com.android.glmap;
+
+import java.io.File;
+
+/**
+ * Load time of the sample tiles from .line/.poly sections against the
+ * pre-tessellated format. Both archives are built from the sample tiles,
+ * the pre-tessellated sections hold the geometry the loader makes of them.
+ *
+ * Usage: TileFormatBenchmark [rounds]
+ */
+public class TileFormatBenchmark {
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int[][] tiles = SampleTiles.list();
+
+		BufferPool bufferPool = new BufferPool(1 << 24);
+		GLMapLoader loader = new GLMapLoader(bufferPool, null);
+		GLMapTile tile = new GLMapTile();
+
+		TileWriter parsed = new TileWriter();
+		TileWriter tessellated = new TileWriter();
+
+		for (int[] t : tiles) {
+			String name = GLMapLoader.tiledir + t[0] + "_" + t[1];
+			if (!loader.loadMapTile(t[0], t[1], 0, tile))
+				continue;
+
+			parsed.add(0, t[0], t[1], TileWriter.read(name + ".line"),
+			           TileWriter.read(name + ".poly"), null);
+			tessellated.add(0, t[0], t[1], null, null, TileWriter.vertices(tile));
+			SampleTiles.release(bufferPool, tile);
+		}
+
+		File parsedFile = File.createTempFile("parsed", ".map");
+		File tessellatedFile = File.createTempFile("tessellated", ".map");
+		parsedFile.deleteOnExit();
+		tessellatedFile.deleteOnExit();
+
+		GLMapLoader[] loaders = {
+		      new GLMapLoader(bufferPool, parsed.write(parsedFile)),
+		      new GLMapLoader(bufferPool, tessellated.write(tessellatedFile)) };
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+
+		// the first round warms up
+		for (int r = 0; r <= rounds; r++) {
+			for (int f = 0; f < loaders.length; f++) {
+				long start = System.nanoTime();
+				for (int[] t : tiles) {
+					if (loaders[f].loadMapTile(t[0], t[1], 0, tile)
+					      && (tile.lineVertexSize == 8) != (f == 1))
+						throw new AssertionError("tile " + t[0] + "_" + t[1] + " took the wrong path");
+					SampleTiles.release(bufferPool, tile);
+				}
+				if (r > 0)
+					best[f] = Math.min(best[f], System.nanoTime() - start);
+			}
+		}
+
+		System.out.println(tiles.length + " tiles, best of " + rounds + " rounds");
+		System.out.printf(".line/.poly:      %6.1f us/tile, %d kB%n", best[0] / 1000.0
+		      / tiles.length, parsedFile.length() / 1024);
+		System.out.printf("pre-tessellated:  %6.1f us/tile, %d kB%n", best[1] / 1000.0
+		      / tiles.length, tessellatedFile.length() / 1024);
+	}
+}
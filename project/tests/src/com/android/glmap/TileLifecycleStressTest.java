@@ -0,0 +1,164 @@
+package com.android.glmap;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Races GLMapTile.assign() against transition(). A GL thread evicts and
+ * reassigns a few slots, as GLMapRenderer.updateSlot() does, and uploads
+ * the slots that are READY_FOR_UPLOAD. Loader threads take the requests
+ * and decode them, and also replay transitions of requests whose slot has
+ * moved on. A slot that is RESIDENT must always hold the data decoded for
+ * its current tile and generation, and no transition of an older
+ * generation may succeed.
+ *
+ * Usage: TileLifecycleStressTest [assignments] [loaders]
+ */
+public class TileLifecycleStressTest {
+	private static final int NROF_SLOTS = 4;
+
+	private static class Request {
+		GLMapTile tile;
+		int generation;
+		int x;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int assignments = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int nrofLoaders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		final GLMapTile[] slots = new GLMapTile[NROF_SLOTS];
+		for (int i = 0; i < NROF_SLOTS; i++)
+			slots[i] = new GLMapTile();
+
+		final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread[] loaders = new Thread[nrofLoaders];
+		for (int l = 0; l < nrofLoaders; l++) {
+			final Random random = new Random(l);
+			loaders[l] = new Thread() {
+				@Override
+				public void run() {
+					Request old = null;
+					while (!done.get() && failure.get() == null) {
+						Request request = requests.poll();
+						if (request == null) {
+							Thread.yield();
+							continue;
+						}
+						decode(request);
+
+						// replay the transitions of an earlier request
+						if (old != null && old.tile.getGeneration() != old.generation)
+							replay(old, random);
+						old = request;
+					}
+				}
+
+				private void decode(Request request) {
+					GLMapTile tile = request.tile;
+					if (!tile.transition(request.generation, GLMapTile.QUEUED, GLMapTile.DECODING))
+						return;
+
+					// the data of this tile and generation, see check()
+					tile.nrofLineVertices = request.x;
+					tile.nrofLineIndices = request.generation;
+					Thread.yield();
+
+					tile.transition(request.generation, GLMapTile.DECODING,
+					                GLMapTile.READY_FOR_UPLOAD);
+				}
+
+				private void replay(Request old, Random random) {
+					int from = random.nextInt(GLMapTile.EVICTING + 1);
+					int to = random.nextInt(GLMapTile.EVICTING + 1);
+					int generation = old.tile.getGeneration();
+
+					if (generation != old.generation
+					      && old.tile.transition(old.generation, from, to))
+						fail(failure, "generation " + old.generation + " moved " + from + " -> "
+						      + to + " in generation " + generation);
+				}
+			};
+			loaders[l].start();
+		}
+
+		// the GL thread
+		Random random = new Random(-1);
+		int x = 0;
+		int uploads = 0;
+
+		while (x < assignments && failure.get() == null) {
+			// a frame reassigns a few slots, some more than once
+			for (int n = random.nextInt(2 * NROF_SLOTS); n > 0; n--) {
+				GLMapTile tile = slots[random.nextInt(NROF_SLOTS)];
+				if (!evict(tile))
+					continue;
+
+				tile.assign(++x, 0, 0);
+
+				Request request = new Request();
+				request.tile = tile;
+				request.generation = tile.getGeneration();
+				request.x = x;
+				if (tile.transition(request.generation, GLMapTile.EMPTY, GLMapTile.QUEUED))
+					requests.add(request);
+			}
+
+			for (GLMapTile slot : slots) {
+				if (slot.transition(GLMapTile.READY_FOR_UPLOAD, GLMapTile.RESIDENT))
+					uploads++;
+				if (slot.getState() == GLMapTile.RESIDENT)
+					check(slot, failure);
+			}
+
+			// the next frame
+			Thread.yield();
+		}
+
+		done.set(true);
+		for (Thread loader : loaders)
+			loader.join();
+
+		for (GLMapTile slot : slots) {
+			slot.transition(GLMapTile.READY_FOR_UPLOAD, GLMapTile.RESIDENT);
+			if (slot.getState() == GLMapTile.RESIDENT)
+				check(slot, failure);
+		}
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		if (uploads == 0)
+			throw new AssertionError("no tile was uploaded");
+
+		System.out.println("TileLifecycleStressTest passed, " + x + " assignments, " + uploads
+		      + " uploads");
+	}
+
+	/**
+	 * Move a slot to EVICTING like GLMapRenderer.evict(), where dropping a
+	 * queued request is left to the loaders.
+	 */
+	private static boolean evict(GLMapTile tile) {
+		int state = tile.getState();
+		if (state == GLMapTile.DECODING)
+			return false;
+
+		return tile.transition(state, GLMapTile.EVICTING);
+	}
+
+	private static void check(GLMapTile tile, AtomicReference<String> failure) {
+		int generation = tile.getGeneration();
+		if (tile.nrofLineVertices != tile.x || tile.nrofLineIndices != generation)
+			fail(failure, "tile " + tile.x + " generation " + generation + " resident with data of tile "
+			      + tile.nrofLineVertices + " generation " + tile.nrofLineIndices);
+	}
+
+	private static void fail(AtomicReference<String> failure, String message) {
+		failure.compareAndSet(null, message);
+	}
+}
@@ -0,0 +1,75 @@
+package com.android.glmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Tiles per second of a single GLMapLoader on the calling thread and of
+ * TileLoaderPool with 1, 2, 4, ... workers, up to the number of cores but
+ * at least 4.
+ *
+ * Usage: TileLoaderPoolBenchmark [rounds]
+ */
+public class TileLoaderPoolBenchmark {
+	private static final int BUFFER_POOL_SIZE = 1 << 24;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int[][] tiles = SampleTiles.list();
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println(tiles.length + " tiles, " + rounds + " rounds, " + cores + " cores");
+
+		// warm up
+		single(tiles, 1);
+
+		double base = single(tiles, rounds);
+		System.out.printf("single loader: %8.0f tiles/s%n", base);
+
+		for (int workers = 1; workers <= Math.max(cores, 4); workers *= 2) {
+			double rate = pool(tiles, rounds, workers);
+			System.out.printf("%2d workers:    %8.0f tiles/s, %.2fx%n", workers, rate, rate / base);
+		}
+	}
+
+	private static double single(int[][] tiles, int rounds) {
+		BufferPool bufferPool = new BufferPool(BUFFER_POOL_SIZE);
+		GLMapLoader loader = new GLMapLoader(bufferPool,
+		                                     TileArchive.open(GLMapLoader.archiveFile));
+		GLMapTile tile = new GLMapTile();
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int[] t : tiles) {
+				loader.loadMapTile(t[0], t[1], 0, tile);
+				SampleTiles.release(bufferPool, tile);
+			}
+		}
+		return rounds * tiles.length * 1e9 / (System.nanoTime() - start);
+	}
+
+	private static double pool(int[][] tiles, int rounds, int workers) throws Exception {
+		final BufferPool bufferPool = new BufferPool(BUFFER_POOL_SIZE);
+		final TileLoaderPool pool = new TileLoaderPool(bufferPool, workers);
+		ArrayList<Future<?>> loads = new ArrayList<Future<?>>();
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (final int[] t : tiles) {
+				loads.add(pool.submit(new Runnable() {
+					public void run() {
+						GLMapTile tile = new GLMapTile();
+						pool.loadMapTile(t[0], t[1], 0, tile);
+						SampleTiles.release(bufferPool, tile);
+					}
+				}));
+			}
+		}
+		for (Future<?> load : loads)
+			load.get();
+
+		double rate = loads.size() * 1e9 / (System.nanoTime() - start);
+		pool.shutdown();
+		return rate;
+	}
+}
@@ -0,0 +1,329 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Writes .line/.poly sections and tile archives in the formats of
+ * mapgenerator.c, for tests and benchmarks with synthetic or converted
+ * tiles.
+ */
+class TileWriter {
+	static final int TILE_SIZE = 500;
+
+	static final int LINE_RECORD_SIZE = 28;
+	static final int POLYGON_RECORD_SIZE = 8;
+
+	private static final int ARCHIVE_HEADER_SIZE = 12;
+	private static final int ARCHIVE_ENTRY_SIZE = 36;
+
+	private static class Entry {
+		int level;
+		int x;
+		int y;
+		ByteBuffer[] sections;
+	}
+
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Add a tile to the archive. Any section may be null.
+	 */
+	void add(int level, int x, int y, ByteBuffer lines, ByteBuffer polygons, ByteBuffer vertices) {
+		Entry entry = new Entry();
+		entry.level = level;
+		entry.x = x;
+		entry.y = y;
+		entry.sections = new ByteBuffer[] { lines, polygons, vertices };
+		entries.add(entry);
+	}
+
+	/**
+	 * Write a version 3 archive of the tiles added so far and open it.
+	 */
+	TileArchive write(File file) throws IOException {
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				if (a.level != b.level)
+					return a.level < b.level ? -1 : 1;
+				if (a.x != b.x)
+					return a.x < b.x ? -1 : 1;
+				return a.y < b.y ? -1 : a.y == b.y ? 0 : 1;
+			}
+		});
+
+		int size = ARCHIVE_HEADER_SIZE + entries.size() * ARCHIVE_ENTRY_SIZE;
+		for (Entry entry : entries)
+			for (ByteBuffer section : entry.sections)
+				if (section != null)
+					size += align(section.limit());
+
+		ByteBuffer archive = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		archive.putInt(TileArchive.MAGIC);
+		archive.putInt(TileArchive.VERSION);
+		archive.putInt(entries.size());
+
+		int offset = ARCHIVE_HEADER_SIZE + entries.size() * ARCHIVE_ENTRY_SIZE;
+		for (Entry entry : entries) {
+			archive.putInt(entry.level);
+			archive.putInt(entry.x);
+			archive.putInt(entry.y);
+
+			for (ByteBuffer section : entry.sections) {
+				int length = section == null ? 0 : section.limit();
+				archive.putInt(offset);
+				archive.putInt(length);
+
+				if (section != null) {
+					ByteBuffer src = section.duplicate();
+					src.position(0);
+					ByteBuffer dst = archive.duplicate();
+					dst.position(offset);
+					dst.put(src);
+				}
+				offset += align(length);
+			}
+		}
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			archive.position(0);
+			channel.write(archive);
+		} finally {
+			out.close();
+		}
+
+		return TileArchive.open(file.getPath());
+	}
+
+	private static int align(int length) {
+		return (length + 3) & ~3;
+	}
+
+	/**
+	 * A section with uncompressed points.
+	 *
+	 * @param records
+	 *            the record of each line or polygon, as ints
+	 * @param points
+	 *            x, y of all points
+	 */
+	static ByteBuffer section(int[][] records, float[] points) {
+		int recordSize = records.length > 0 ? records[0].length * 4 : 0;
+		ByteBuffer buf = ByteBuffer.allocate(8 + records.length * recordSize + points.length * 4)
+		      .order(ByteOrder.nativeOrder());
+
+		buf.putInt(records.length);
+		buf.putInt(points.length / 2);
+		for (int[] record : records)
+			for (int value : record)
+				buf.putInt(value);
+		for (float value : points)
+			buf.putFloat(value);
+
+		buf.flip();
+		return buf;
+	}
+
+	static int[] polygonRecord(int size, int rgba) {
+		return new int[] { size, rgba };
+	}
+
+	static int[] lineRecord(int length, float width, float z, int outline, int fill) {
+		return new int[] { length, Float.floatToRawIntBits(width), Float.floatToRawIntBits(z),
+		      outline, fill, 0, 0 };
+	}
+
+	/**
+	 * A pre-tessellated section, see mapgenerator.c write_vertices(), with
+	 * the level 0 geometry of a tile loaded from .line/.poly. Line vertices
+	 * are extruded to the line width, the polygons are the triangles of the
+	 * loaded tile.
+	 */
+	static ByteBuffer vertices(GLMapTile tile) {
+		int nrofLineVertices = tile.nrofLineVertices;
+		int nrofLineIndices = tile.lineLevelCount[0];
+		int indexSize = nrofLineVertices > 65536 ? 4 : 2;
+		ArrayList<PolygonLayer> layers = tile.polygonLayers;
+		int nrofLayers = layers == null ? 0 : layers.size();
+
+		int size = 64 + nrofLineVertices * 16 + nrofLineIndices * indexSize
+		      + tile.nrofPolygonVertices * 4;
+		for (int l = 0; l < nrofLayers; l++)
+			size += 32 + layers.get(l).nrofPolygons * 8;
+
+		// the bounds of the quantised positions, as mapgenerator.c writes them
+		ByteBuffer lines = tile.lineVerticesBuffer;
+		BoundingBox bounds = new BoundingBox();
+		for (int i = 0; i < nrofLineVertices; i++) {
+			int pos = i * tile.lineVertexSize;
+			bounds.add(tile.lineOriginX + extrude(lines, pos) * tile.lineScale,
+			           tile.lineOriginY + extrude(lines, pos + 2) * tile.lineScale);
+		}
+
+		BoundingBox[] layerBounds = new BoundingBox[nrofLayers];
+		for (int l = 0; l < nrofLayers; l++) {
+			PolygonLayer layer = layers.get(l);
+			layerBounds[l] = new BoundingBox();
+			for (int p = 0; p < layer.nrofPolygons; p++) {
+				int first = layer.polygonIndex[2 * p];
+				for (int i = first; i < first + layer.polygonIndex[2 * p + 1]; i++) {
+					int pos = i * 4;
+					layerBounds[l].add(tile.polygonOriginX
+					      + tile.polygonVerticesBuffer.getShort(pos) * tile.polygonScale,
+					      tile.polygonOriginY + tile.polygonVerticesBuffer.getShort(pos + 2)
+					            * tile.polygonScale);
+				}
+			}
+			bounds.add(layerBounds[l], 0);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		buf.putInt(0x564d4c47);
+		buf.putInt(5);
+		buf.putInt(nrofLineVertices);
+		buf.putInt(nrofLineIndices);
+		buf.putInt(tile.nrofPolygonVertices);
+		buf.putInt(nrofLayers);
+		buf.putFloat(tile.lineOriginX);
+		buf.putFloat(tile.lineOriginY);
+		buf.putFloat(tile.lineScale);
+		buf.putFloat(tile.polygonOriginX);
+		buf.putFloat(tile.polygonOriginY);
+		buf.putFloat(tile.polygonScale);
+		putBounds(buf, bounds);
+
+		for (int l = 0; l < nrofLayers; l++) {
+			PolygonLayer layer = layers.get(l);
+			buf.put(layer.rgba);
+			buf.putInt(layer.startVertex);
+			buf.putInt(layer.nrofVertices);
+			buf.putInt(layer.nrofPolygons);
+			putBounds(buf, layerBounds[l]);
+			for (int i = 0; i < layer.nrofPolygons * 2; i++)
+				buf.putInt(layer.polygonIndex[i]);
+		}
+
+		// x + ex, y + ey, z, s, t, 0 from x, y, ex, ey, z, s, t, 0
+		for (int i = 0; i < nrofLineVertices; i++) {
+			int pos = i * tile.lineVertexSize;
+			buf.putShort(extrude(lines, pos));
+			buf.putShort(extrude(lines, pos + 2));
+			buf.putInt(lines.getInt(pos + 8));
+		}
+
+		for (int i = 0; i < nrofLineVertices * 8; i++)
+			buf.put(tile.colorVerticesBuffer.get(i));
+
+		for (int i = 0; i < nrofLineIndices; i++) {
+			int pos = (tile.lineLevelStart[0] + i) * tile.lineIndexSize;
+			int index = tile.lineIndexSize == 2 ? tile.lineIndicesBuffer.getShort(pos) & 0xffff
+			      : tile.lineIndicesBuffer.getInt(pos);
+			if (indexSize == 2)
+				buf.putShort((short) index);
+			else
+				buf.putInt(index);
+		}
+
+		for (int i = 0; i < tile.nrofPolygonVertices * 4; i++)
+			buf.put(tile.polygonVerticesBuffer.get(i));
+
+		buf.flip();
+		return buf;
+	}
+
+	// the position at pos plus its extrusion, 4 bytes further
+	private static short extrude(ByteBuffer lines, int pos) {
+		int value = lines.getShort(pos) + lines.getShort(pos + 4);
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+	}
+
+	private static void putBounds(ByteBuffer buf, BoundingBox bounds) {
+		buf.putFloat(bounds.minX);
+		buf.putFloat(bounds.minY);
+		buf.putFloat(bounds.maxX);
+		buf.putFloat(bounds.maxY);
+	}
+
+	/**
+	 * Convert an uncompressed section of tile x/y at level 0 to the
+	 * compressed format: tile-local multiples of quantum, stored as zig-zag
+	 * varint deltas to the previous point. See mapgenerator.c write_points().
+	 */
+	static ByteBuffer compress(ByteBuffer section, int recordSize, int x, int y, float quantum) {
+		int nrofItems = section.getInt(0);
+		int nrofPoints = section.getInt(4);
+		int records = nrofItems * recordSize;
+		int originX = x * TILE_SIZE;
+		int originY = y * TILE_SIZE;
+
+		ByteBuffer buf = ByteBuffer.allocate(28 + records + nrofPoints * 10 + 3)
+		      .order(ByteOrder.nativeOrder());
+		buf.putInt(0x434d4c47);
+		buf.putInt(1);
+		buf.putInt(nrofItems);
+		buf.putInt(nrofPoints);
+		buf.putInt(originX);
+		buf.putInt(originY);
+		buf.putFloat(quantum);
+
+		for (int i = 0; i < records; i++)
+			buf.put(section.get(8 + i));
+
+		int qx = 0;
+		int qy = 0;
+		for (int i = 0; i < nrofPoints; i++) {
+			int pos = 8 + records + 8 * i;
+			int px = (int) Math.round((section.getFloat(pos) - (double) originX) / quantum);
+			int py = (int) Math.round((section.getFloat(pos + 4) - (double) originY) / quantum);
+			putVarint(buf, px - qx);
+			putVarint(buf, py - qy);
+			qx = px;
+			qy = py;
+		}
+
+		while (buf.position() % 4 != 0)
+			buf.put((byte) 0);
+
+		buf.flip();
+		return buf;
+	}
+
+	private static void putVarint(ByteBuffer buf, int value) {
+		int v = (value << 1) ^ (value >> 31);
+
+		while ((v & ~0x7f) != 0) {
+			buf.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	/**
+	 * Read a whole file, or return null if it does not exist.
+	 */
+	static ByteBuffer read(String fileName) throws IOException {
+		File file = new File(fileName);
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) in.length()).order(ByteOrder.nativeOrder());
+			in.getChannel().read(buf);
+			buf.flip();
+			return buf;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Ear clipping of polygon rings, see GLMapLoader.triangulate(). The rings
+ * are loaded as the polygons of a tile. Every ring with n points has to
+ * become exactly n - 2 triangles, and for simple rings the areas of the
+ * triangles have to add up to the area of the ring: less means a gap, more
+ * an overlap. All points are whole metres, they are quantised exactly.
+ */
+public class TriangulationTest {
+	private static final int TILE_X = 1;
+	private static final int TILE_Y = 1;
+
+	private static final ArrayList<float[]> rings = new ArrayList<float[]>();
+	private static final ArrayList<Boolean> simple = new ArrayList<Boolean>();
+
+	private static void add(boolean isSimple, float... ring) {
+		// points relative to the tile origin
+		for (int i = 0; i < ring.length; i += 2) {
+			ring[i] += TILE_X * TileWriter.TILE_SIZE;
+			ring[i + 1] += TILE_Y * TileWriter.TILE_SIZE;
+		}
+		rings.add(ring);
+		simple.add(isSimple);
+	}
+
+	public static void main(String[] args) throws Exception {
+		// convex, both orientations
+		add(true, 0, 0, 10, 0, 10, 10, 0, 10);
+		add(true, 0, 0, 0, 10, 10, 10, 10, 0);
+
+		// concave
+		add(true, 0, 0, 30, 0, 30, 30, 20, 30, 20, 10, 10, 10, 10, 30, 0, 30);
+		add(true, 0, 0, 40, 0, 40, 10, 10, 10, 10, 40, 0, 40);
+		add(true, 0, 0, 10, 20, 20, 0, 20, 40, 10, 25, 0, 40);
+		add(true, star(12, 50, 50, 40, 10));
+		add(true, comb(8));
+
+		// collinear points
+		add(true, 0, 0, 5, 0, 10, 0, 10, 5, 10, 10, 5, 10, 0, 10, 0, 5);
+		add(true, 0, 0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 5, 5);
+		add(true, 0, 0, 20, 0, 20, 10, 15, 10, 10, 10, 10, 20, 10, 30, 0, 30, 0, 20, 0, 10);
+
+		// degenerate
+		add(true, 0, 0, 10, 0, 10, 0, 10, 10, 10, 10, 10, 10, 0, 10, 0, 0);
+		add(true, 0, 0, 10, 0, 10, 10, 0, 10, 0, 0);
+		add(true, 0, 0, 10, 0, 20, 0, 30, 0);
+		add(true, 0, 0, 10, 10, 0, 0);
+		add(true, 0, 0, 10, 0, 10, 10, 10, 20, 10, 10, 0, 10);
+		add(true, 5, 5);
+		add(true, 5, 5, 6, 6);
+
+		// self-intersecting, these run out of ears
+		add(false, 0, 0, 10, 10, 10, 0, 0, 10);
+		add(false, 0, 0, 20, 0, 20, 20, 10, 20, 10, -10, 0, -10);
+		add(false, star(7, 50, 50, 40, 40, 3));
+
+		Random random = new Random(1);
+		for (int i = 0; i < 500; i++)
+			add(true, randomStar(random, 3 + random.nextInt(40)));
+
+		check();
+		System.out.println("TriangulationTest passed, " + rings.size() + " rings");
+	}
+
+	private static void check() throws Exception {
+		int nrofPoints = 0;
+		for (float[] ring : rings)
+			nrofPoints += ring.length;
+
+		int[][] records = new int[rings.size()][];
+		float[] points = new float[nrofPoints];
+		int p = 0;
+
+		for (int i = 0; i < rings.size(); i++) {
+			float[] ring = rings.get(i);
+			records[i] = TileWriter.polygonRecord(ring.length / 2, 0xff808080);
+			System.arraycopy(ring, 0, points, p, ring.length);
+			p += ring.length;
+		}
+
+		TileWriter writer = new TileWriter();
+		writer.add(0, TILE_X, TILE_Y, TileWriter.section(new int[0][], new float[0]),
+		           TileWriter.section(records, points), null);
+
+		File file = File.createTempFile("triangulation", ".map");
+		file.deleteOnExit();
+
+		final GLMapLoader loader = new GLMapLoader(new BufferPool(1 << 20), writer.write(file));
+		final GLMapTile tile = new GLMapTile();
+
+		// the forced ears must not keep the loader going round in circles
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				if (!loader.loadMapTile(TILE_X, TILE_Y, 0, tile))
+					throw new AssertionError("tile not loaded");
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(10000);
+		if (thread.isAlive())
+			throw new AssertionError("triangulation does not terminate");
+		if (tile.polygonLayers == null)
+			throw new AssertionError("tile not loaded");
+
+		PolygonLayer layer = tile.polygonLayers.get(0);
+		ByteBuffer buf = tile.polygonVerticesBuffer;
+		double scale = tile.polygonScale;
+
+		for (int i = 0; i < rings.size(); i++) {
+			float[] ring = rings.get(i);
+			int n = ring.length / 2;
+			int first = layer.polygonIndex[2 * i];
+			int count = layer.polygonIndex[2 * i + 1];
+
+			if (count != (n < 3 ? 0 : 3 * (n - 2)))
+				throw new AssertionError("ring " + i + ": " + count + " vertices for " + n
+				      + " points");
+
+			double area = 0;
+			for (int v = first; v < first + count; v += 3) {
+				double ax = buf.getShort(4 * v) * scale;
+				double ay = buf.getShort(4 * v + 2) * scale;
+				double bx = buf.getShort(4 * v + 4) * scale;
+				double by = buf.getShort(4 * v + 6) * scale;
+				double cx = buf.getShort(4 * v + 8) * scale;
+				double cy = buf.getShort(4 * v + 10) * scale;
+				area += Math.abs((bx - ax) * (cy - ay) - (by - ay) * (cx - ax)) / 2;
+			}
+
+			double ringArea = 0;
+			for (int a = 0, b = n - 1; a < n; b = a++)
+				ringArea += ((double) ring[2 * b] - ring[0]) * ((double) ring[2 * a + 1] - ring[1])
+				      - ((double) ring[2 * a] - ring[0]) * ((double) ring[2 * b + 1] - ring[1]);
+			ringArea = Math.abs(ringArea) / 2;
+
+			if (simple.get(i) && Math.abs(area - ringArea) > 1e-6 * (ringArea + 1))
+				throw new AssertionError("ring " + i + ": triangles cover " + area
+				      + "m2 of " + ringArea + "m2");
+		}
+	}
+
+	/**
+	 * A star with n tips around x, y, the tips at distance outer and the
+	 * corners between them at distance inner. With step > 1 the ring visits
+	 * every step-th tip and crosses itself.
+	 */
+	private static float[] star(int n, float x, float y, float outer, float inner, int step) {
+		float[] ring = new float[2 * n];
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i * step / n;
+			float r = i % 2 == 0 ? outer : inner;
+			ring[2 * i] = Math.round(x + r * Math.cos(a));
+			ring[2 * i + 1] = Math.round(y + r * Math.sin(a));
+		}
+		return ring;
+	}
+
+	private static float[] star(int n, float x, float y, float outer, float inner) {
+		return star(2 * n, x, y, outer, inner, 1);
+	}
+
+	/**
+	 * A comb with n teeth, open at the top.
+	 */
+	private static float[] comb(int n) {
+		float[] ring = new float[4 + 8 * n];
+		int p = 0;
+		ring[p++] = 20 * n;
+		ring[p++] = 0;
+		ring[p++] = 0;
+		ring[p++] = 0;
+		for (int i = 0; i < n; i++) {
+			ring[p++] = 20 * i;
+			ring[p++] = 100;
+			ring[p++] = 20 * i + 10;
+			ring[p++] = 100;
+			ring[p++] = 20 * i + 10;
+			ring[p++] = 20;
+			ring[p++] = 20 * i + 20;
+			ring[p++] = 20;
+		}
+		return ring;
+	}
+
+	/**
+	 * A simple ring of n points around the centre of the tile, in
+	 * increasing directions less than half a turn apart and at random
+	 * distances.
+	 */
+	private static float[] randomStar(Random random, int n) {
+		float[] ring = new float[2 * n];
+
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * (i + 0.9 * random.nextDouble()) / n;
+			double r = 10 + random.nextInt(200);
+			ring[2 * i] = (float) Math.floor(250 + r * Math.cos(a));
+			ring[2 * i + 1] = (float) Math.floor(250 + r * Math.sin(a));
+		}
+		return ring;
+	}
+}
@@ -0,0 +1,104 @@
+package com.android.glmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A pre-tessellated section that is truncated or has bad counts in its
+ * header is not loaded, the tile is decoded from its .line/.poly sections
+ * instead. A valid section brings the bounds of its tile and layers.
+ */
+public class VertexSectionTest {
+	public static void main(String[] args) throws Exception {
+		int[] t = SampleTiles.list()[0];
+		BufferPool bufferPool = new BufferPool(1 << 24);
+
+		GLMapTile tile = new GLMapTile();
+		if (!new GLMapLoader(bufferPool, null).loadMapTile(t[0], t[1], 0, tile))
+			throw new AssertionError("tile not loaded");
+		if (tile.polygonLayers == null)
+			throw new AssertionError("sample tile without polygons");
+
+		ByteBuffer lines = TileWriter.read(GLMapLoader.tiledir + t[0] + "_" + t[1] + ".line");
+		ByteBuffer polygons = TileWriter.read(GLMapLoader.tiledir + t[0] + "_" + t[1] + ".poly");
+		ByteBuffer vertices = TileWriter.vertices(tile);
+		int size = vertices.limit();
+
+		GLMapTile mapped = check(bufferPool, lines, polygons, vertices, true, "valid section");
+		if (!mapped.polygonTriangles)
+			throw new AssertionError("pre-tessellated polygons drawn as fans");
+
+		// the bounds are read from the section, and match those of the
+		// decoded tile up to the quantisation
+		near(mapped.bounds, tile.bounds, tile.lineScale, "tile");
+		for (int l = 0; l < tile.polygonLayers.size(); l++)
+			near(mapped.polygonLayers.get(l).bounds, tile.polygonLayers.get(l).bounds,
+			     tile.polygonScale, "layer " + l);
+
+		ByteBuffer truncated = vertices.duplicate();
+		truncated.limit(size - 1);
+		check(bufferPool, lines, polygons, truncated, false, "truncated streams");
+
+		// cut off in the layer table
+		truncated.limit(64 + 20);
+		check(bufferPool, lines, polygons, truncated, false, "truncated layer table");
+
+		int[] counts = { 8, 12, 16, 20 };
+		for (int offset : counts) {
+			ByteBuffer bad = copy(vertices);
+			bad.putInt(offset, -1);
+			check(bufferPool, lines, polygons, bad, false, "count at " + offset + " negative");
+
+			bad.putInt(offset, Integer.MAX_VALUE);
+			check(bufferPool, lines, polygons, bad, false, "count at " + offset + " too large");
+		}
+
+		// the polygon count of the first layer, and its first polygon
+		ByteBuffer bad = copy(vertices);
+		bad.putInt(64 + 12, Integer.MAX_VALUE / 2);
+		check(bufferPool, lines, polygons, bad, false, "polygon count too large");
+
+		bad = copy(vertices);
+		bad.putInt(64 + 32, tile.nrofPolygonVertices);
+		check(bufferPool, lines, polygons, bad, false, "polygon out of range");
+
+		System.out.println("VertexSectionTest passed");
+	}
+
+	private static ByteBuffer copy(ByteBuffer buf) {
+		ByteBuffer copy = ByteBuffer.allocate(buf.limit()).order(buf.order());
+		copy.put(buf.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	private static void near(BoundingBox a, BoundingBox b, float scale, String what) {
+		if (Math.abs(a.minX - b.minX) > scale || Math.abs(a.minY - b.minY) > scale
+		      || Math.abs(a.maxX - b.maxX) > scale || Math.abs(a.maxY - b.maxY) > scale)
+			throw new AssertionError(what + " bounds " + a.minX + " " + a.minY + " " + a.maxX + " "
+			      + a.maxY + ", decoded " + b.minX + " " + b.minY + " " + b.maxX + " " + b.maxY);
+	}
+
+	private static GLMapTile check(BufferPool bufferPool, ByteBuffer lines, ByteBuffer polygons,
+	      ByteBuffer vertices, boolean mapped, String what) throws Exception {
+		TileWriter writer = new TileWriter();
+		writer.add(0, 0, 0, lines, polygons, vertices);
+		File file = File.createTempFile("vertices", ".map");
+		file.deleteOnExit();
+
+		GLMapLoader loader = new GLMapLoader(bufferPool, writer.write(file));
+		GLMapTile tile = new GLMapTile();
+		if (!loader.loadMapTile(0, 0, 0, tile))
+			throw new AssertionError(what + ": tile not loaded");
+
+		boolean readOnly = tile.lineVerticesBuffer.isReadOnly();
+		if (readOnly != mapped)
+			throw new AssertionError(what + ": " + (readOnly ? "pre-tessellated" : "decoded")
+			      + " tile");
+		if (!readOnly)
+			SampleTiles.release(bufferPool, tile);
+
+		file.delete();
+		return tile;
+	}
+}
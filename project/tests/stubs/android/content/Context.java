@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Compile-only stand-in.
+ */
+public class Context {
+}
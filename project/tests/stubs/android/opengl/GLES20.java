@@ -0,0 +1,232 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * Compile-only stand-in for the GLES20 constants and functions used by the
+ * app. There is no GL context on a JVM, calling a function fails.
+ */
+public class GLES20 {
+	public static final int GL_ALWAYS = 519;
+	public static final int GL_ARRAY_BUFFER = 34962;
+	public static final int GL_BACK = 1029;
+	public static final int GL_BLEND = 3042;
+	public static final int GL_BYTE = 5120;
+	public static final int GL_COLOR_BUFFER_BIT = 16384;
+	public static final int GL_COMPILE_STATUS = 35713;
+	public static final int GL_CULL_FACE = 2884;
+	public static final int GL_CW = 2304;
+	public static final int GL_DEPTH_BUFFER_BIT = 256;
+	public static final int GL_DEPTH_TEST = 2929;
+	public static final int GL_DYNAMIC_DRAW = 35048;
+	public static final int GL_ELEMENT_ARRAY_BUFFER = 34963;
+	public static final int GL_EQUAL = 514;
+	public static final int GL_EXTENSIONS = 7939;
+	public static final int GL_FLOAT = 5126;
+	public static final int GL_FRAGMENT_SHADER = 35632;
+	public static final int GL_INVERT = 5386;
+	public static final int GL_KEEP = 7680;
+	public static final int GL_LEQUAL = 515;
+	public static final int GL_LINK_STATUS = 35714;
+	public static final int GL_NO_ERROR = 0;
+	public static final int GL_ONE = 1;
+	public static final int GL_ONE_MINUS_SRC_ALPHA = 771;
+	public static final int GL_SCISSOR_TEST = 3089;
+	public static final int GL_SHORT = 5122;
+	public static final int GL_STENCIL_BUFFER_BIT = 1024;
+	public static final int GL_STENCIL_TEST = 2960;
+	public static final int GL_TRIANGLES = 4;
+	public static final int GL_TRIANGLE_FAN = 6;
+	public static final int GL_TRIANGLE_STRIP = 5;
+	public static final int GL_UNSIGNED_BYTE = 5121;
+	public static final int GL_UNSIGNED_INT = 5125;
+	public static final int GL_UNSIGNED_SHORT = 5123;
+	public static final int GL_VERTEX_SHADER = 35633;
+	public static final int GL_ZERO = 0;
+
+	public static void glAttachShader(int program, int shader) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glBindBuffer(int target, int buffer) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glBlendFunc(int sfactor, int dfactor) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glBufferData(int target, int size, Buffer data, int usage) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glBufferSubData(int target, int offset, int size, Buffer data) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glClear(int mask) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glClearColor(float red, float green, float blue, float alpha) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glCompileShader(int shader) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static int glCreateProgram() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static int glCreateShader(int type) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glCullFace(int mode) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDeleteProgram(int program) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDeleteShader(int shader) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDepthFunc(int func) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDepthMask(boolean flag) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDisable(int cap) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDisableVertexAttribArray(int index) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDrawArrays(int mode, int first, int count) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glDrawElements(int mode, int count, int type, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glEnable(int cap) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glEnableVertexAttribArray(int index) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glFrontFace(int mode) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glGenBuffers(int n, int[] buffers, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static int glGetAttribLocation(int program, String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static int glGetError() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static String glGetProgramInfoLog(int program) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static String glGetShaderInfoLog(int shader) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static String glGetString(int name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static int glGetUniformLocation(int program, String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glLinkProgram(int program) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glShaderSource(int shader, String string) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glStencilFunc(int func, int ref, int mask) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glStencilMask(int mask) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glStencilOp(int fail, int zfail, int zpass) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glUniform1f(int location, float x) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glUniform2f(int location, float x, float y) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glUniform4f(int location, float x, float y, float z, float w) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glUseProgram(int program) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glVertexAttrib2f(int index, float x, float y) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+	      int stride, int offset) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+	      int stride, Buffer ptr) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void glViewport(int x, int y, int width, int height) {
+		throw new UnsupportedOperationException();
+	}
+}
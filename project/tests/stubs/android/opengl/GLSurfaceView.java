@@ -0,0 +1,72 @@
+package android.opengl;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.opengles.GL10;
+
+import android.content.Context;
+import android.view.MotionEvent;
+
+/**
+ * Compile-only stand-in, the tests drive the renderer without a view.
+ */
+public class GLSurfaceView {
+	public static final int RENDERMODE_WHEN_DIRTY = 0;
+	public static final int RENDERMODE_CONTINUOUSLY = 1;
+
+	public interface Renderer {
+		void onSurfaceCreated(GL10 gl, EGLConfig config);
+
+		void onSurfaceChanged(GL10 gl, int width, int height);
+
+		void onDrawFrame(GL10 gl);
+	}
+
+	public interface EGLConfigChooser {
+		EGLConfig chooseConfig(EGL10 egl, EGLDisplay display);
+	}
+
+	private final Context context;
+
+	public GLSurfaceView(Context context) {
+		this.context = context;
+	}
+
+	public Context getContext() {
+		return context;
+	}
+
+	public int getWidth() {
+		return 0;
+	}
+
+	public int getHeight() {
+		return 0;
+	}
+
+	public void setEGLConfigChooser(EGLConfigChooser configChooser) {
+	}
+
+	public void setEGLContextClientVersion(int version) {
+	}
+
+	public void setRenderer(Renderer renderer) {
+	}
+
+	public void setRenderMode(int renderMode) {
+	}
+
+	public void requestRender() {
+	}
+
+	public void onPause() {
+	}
+
+	public void onResume() {
+	}
+
+	public boolean onTouchEvent(MotionEvent event) {
+		return false;
+	}
+}
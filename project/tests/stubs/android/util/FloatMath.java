@@ -0,0 +1,17 @@
+package android.util;
+
+/**
+ * Stand-in with the float math functions of the platform.
+ */
+public final class FloatMath {
+	private FloatMath() {
+	}
+
+	public static float floor(float value) {
+		return (float) Math.floor(value);
+	}
+
+	public static float sqrt(float value) {
+		return (float) Math.sqrt(value);
+	}
+}
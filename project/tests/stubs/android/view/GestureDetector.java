@@ -0,0 +1,35 @@
+package android.view;
+
+/**
+ * Compile-only stand-in.
+ */
+public class GestureDetector {
+	public interface OnGestureListener {
+		boolean onDown(MotionEvent e);
+
+		boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY);
+
+		boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY);
+	}
+
+	public static class SimpleOnGestureListener implements OnGestureListener {
+		public boolean onDown(MotionEvent e) {
+			return false;
+		}
+
+		public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+			return false;
+		}
+
+		public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+			return false;
+		}
+	}
+
+	public GestureDetector(OnGestureListener listener) {
+	}
+
+	public boolean onTouchEvent(MotionEvent event) {
+		return false;
+	}
+}
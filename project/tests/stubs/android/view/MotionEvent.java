@@ -0,0 +1,27 @@
+package android.view;
+
+/**
+ * Compile-only stand-in.
+ */
+public class MotionEvent {
+	public static final int ACTION_UP = 1;
+	public static final int ACTION_MOVE = 2;
+	public static final int ACTION_POINTER_2_DOWN = 0x105;
+	public static final int ACTION_POINTER_2_UP = 0x106;
+
+	public int getAction() {
+		return 0;
+	}
+
+	public int getPointerCount() {
+		return 1;
+	}
+
+	public float getX(int pointerIndex) {
+		return 0;
+	}
+
+	public float getY(int pointerIndex) {
+		return 0;
+	}
+}
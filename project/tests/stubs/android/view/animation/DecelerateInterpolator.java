@@ -0,0 +1,7 @@
+package android.view.animation;
+
+/**
+ * Compile-only stand-in.
+ */
+public class DecelerateInterpolator {
+}
@@ -0,0 +1,31 @@
+package android.widget;
+
+import android.content.Context;
+import android.view.animation.DecelerateInterpolator;
+
+/**
+ * Compile-only stand-in.
+ */
+public class Scroller {
+	public Scroller(Context context, DecelerateInterpolator interpolator) {
+	}
+
+	public void fling(int startX, int startY, int velocityX, int velocityY, int minX, int maxX,
+	      int minY, int maxY) {
+	}
+
+	public void forceFinished(boolean finished) {
+	}
+
+	public int getDuration() {
+		return 0;
+	}
+
+	public int getFinalX() {
+		return 0;
+	}
+
+	public int getFinalY() {
+		return 0;
+	}
+}
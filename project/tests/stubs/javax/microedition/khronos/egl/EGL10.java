@@ -0,0 +1,21 @@
+package javax.microedition.khronos.egl;
+
+/**
+ * Compile-only stand-in for the part used by MultisampleConfigChooser.
+ */
+public interface EGL10 {
+	int EGL_BLUE_SIZE = 0x3022;
+	int EGL_DEPTH_SIZE = 0x3025;
+	int EGL_GREEN_SIZE = 0x3023;
+	int EGL_NONE = 0x3038;
+	int EGL_RED_SIZE = 0x3024;
+	int EGL_RENDERABLE_TYPE = 0x3040;
+	int EGL_SAMPLES = 0x3031;
+	int EGL_SAMPLE_BUFFERS = 0x3032;
+	int EGL_STENCIL_SIZE = 0x3026;
+
+	boolean eglChooseConfig(EGLDisplay display, int[] attribList, EGLConfig[] configs,
+	      int configSize, int[] numConfig);
+
+	boolean eglGetConfigAttrib(EGLDisplay display, EGLConfig config, int attribute, int[] value);
+}
@@ -0,0 +1,7 @@
+package javax.microedition.khronos.egl;
+
+/**
+ * Compile-only stand-in.
+ */
+public abstract class EGLDisplay {
+}
@@ -0,0 +1,7 @@
+package javax.microedition.khronos.opengles;
+
+/**
+ * Compile-only stand-in.
+ */
+public interface GL10 {
+}